@@ -0,0 +1,80 @@
+package com.yarmis.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Measures the time that an operation takes, in the way of a micro benchmark
+ * harness: the operation is warmed up first, it runs many times per
+ * measurement such that the overhead of measuring is spread out, and its
+ * results are consumed such that the compiler can't remove it.
+ * </p>
+ * <p>
+ * The median of the measurements is printed in nanoseconds per operation,
+ * together with the best one.
+ * </p>
+ */
+final class Bench {
+
+    private static final int WARMUPS = 5;
+
+    private static final int MEASUREMENTS = 10;
+
+    /**
+     * Consumes the results of the operations.
+     */
+    static volatile long sink;
+
+    // No instances.
+    private Bench() {
+    }
+
+    /**
+     * Measures the given operation and prints the outcome.
+     * 
+     * @param name
+     *            What is measured.
+     * @param operation
+     *            The operation.
+     * @param times
+     *            How many times the operation runs per measurement.
+     * @return The median time of the operation, in nanoseconds.
+     * @throws Exception
+     *             If the operation fails.
+     */
+    static double measure(String name, Operation operation, int times)
+	    throws Exception {
+	for (int i = 0; i < Bench.WARMUPS; ++i)
+	    Bench.sink += operation.run(times);
+
+	double[] measured = new double[Bench.MEASUREMENTS];
+	for (int i = 0; i < measured.length; ++i) {
+	    long start = System.nanoTime();
+	    Bench.sink += operation.run(times);
+	    measured[i] = (System.nanoTime() - start) / (double) times;
+	}
+	Arrays.sort(measured);
+
+	double median = measured[measured.length / 2];
+	System.out.printf("%-44s %10.1f ns/op  (best %.1f)%n", name, median,
+		measured[0]);
+	return median;
+    }
+
+    /**
+     * An operation that is measured.
+     */
+    interface Operation {
+
+	/**
+	 * Runs the operation the given amount of times.
+	 * 
+	 * @param times
+	 *            How many times to run it.
+	 * @return Anything that depends on the results, which is consumed.
+	 * @throws Exception
+	 *             If the operation fails.
+	 */
+	long run(int times) throws Exception;
+    }
+}
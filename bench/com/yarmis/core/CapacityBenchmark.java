@@ -0,0 +1,157 @@
+package com.yarmis.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.yarmis.core.exceptions.OverloadedException;
+import com.yarmis.core.security.DemandRights;
+
+/**
+ * <p>
+ * Measures how many blocking remote calls can be in flight at the same time
+ * in every {@code ExecutionMode}. The host runs a method that sleeps, and the
+ * client makes the given amounts of calls to it at once, over the loopback
+ * interface.
+ * </p>
+ * <p>
+ * For every amount of calls this prints how many completed and how many were
+ * rejected with an {@code OverloadedException}, how long it took, how many
+ * calls were in flight on average, and the peak amount of platform threads.
+ * {@code VIRTUAL} falls back to platform threads on a runtime without virtual
+ * threads, which is printed as well.
+ * </p>
+ * 
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.CapacityBenchmark [calls...]
+ * </pre>
+ */
+public class CapacityBenchmark {
+
+    /**
+     * How long every call blocks on the host, in milliseconds.
+     */
+    private static final int SLEEP = 500;
+
+    /**
+     * The Module as the host implements it.
+     */
+    public static class Host {
+
+	public interface Sleeper {
+
+	    @DemandRights({})
+	    Integer sleep(Integer millis);
+	}
+    }
+
+    /**
+     * The Module as the client calls it, without waiting for the result.
+     */
+    public static class Client {
+
+	public interface Sleeper {
+
+	    @DemandRights({})
+	    CompletableFuture<Integer> sleep(Integer millis);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	int[] amounts = { 256, 1024, 4096 };
+	if (args.length > 0) {
+	    amounts = new int[args.length];
+	    for (int i = 0; i < args.length; ++i)
+		amounts[i] = Integer.parseInt(args[i]);
+	}
+
+	Client.Sleeper client = ModuleManager
+		.createModule(Client.Sleeper.class);
+	Host.Sleeper host = ModuleManager.createModule(Host.Sleeper.class);
+	@SuppressWarnings("unchecked")
+	Module<Host.Sleeper> module = (Module<Host.Sleeper>) host;
+	module.useLocalImplementation(new Host.Sleeper() {
+
+	    @Override
+	    public Integer sleep(Integer millis) {
+		try {
+		    Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		return millis;
+	    }
+
+	});
+	module.setLocal();
+	ModuleManager.makeAllAccessible();
+
+	Loopback.start(new ConnectivityPlugin(), new ConnectivityPlugin());
+	client.sleep(0).get();
+
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	for (ExecutionMode mode : ExecutionMode.values()) {
+	    CommunicationManager.setExecutionMode(mode);
+	    String fallback = mode.isSupported() ? ""
+		    : " (not supported, falls back to PLATFORM)";
+	    System.out.println(mode + fallback + ", at most "
+		    + CommunicationManager.getRequestThreads(mode)
+		    + " requests at once");
+
+	    for (int amount : amounts) {
+		threads.resetPeakThreadCount();
+		Outcomes outcomes = new Outcomes(amount);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < amount; ++i)
+		    client.sleep(CapacityBenchmark.SLEEP)
+			    .whenComplete(outcomes);
+		outcomes.done.await();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		int completed = outcomes.completed.get();
+		System.out.printf(
+			"  %5d calls: %5d completed, %5d rejected in %5d ms,"
+				+ " %6.0f in flight, %5d platform threads%n",
+			amount, completed, outcomes.rejected.get(), elapsed,
+			completed * (double) CapacityBenchmark.SLEEP / elapsed,
+			threads.getPeakThreadCount());
+	    }
+	}
+	System.exit(0);
+    }
+
+    /**
+     * Counts the outcomes of the calls.
+     */
+    private static final class Outcomes implements
+	    BiConsumer<Integer, Throwable> {
+
+	private final AtomicInteger completed = new AtomicInteger();
+
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	private final CountDownLatch done;
+
+	private Outcomes(int calls) {
+	    this.done = new CountDownLatch(calls);
+	}
+
+	@Override
+	public void accept(Integer value, Throwable failure) {
+	    if (failure != null && failure.getCause() != null)
+		failure = failure.getCause();
+
+	    if (failure == null)
+		this.completed.incrementAndGet();
+	    else if (failure instanceof OverloadedException)
+		this.rejected.incrementAndGet();
+	    else
+		failure.printStackTrace();
+	    this.done.countDown();
+	}
+    }
+}
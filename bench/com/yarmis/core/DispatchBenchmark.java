@@ -0,0 +1,161 @@
+package com.yarmis.core;
+
+import java.lang.reflect.Method;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.yarmis.core.security.DemandRights;
+import com.yarmis.core.security.Right;
+
+/**
+ * <p>
+ * Compares the cost of dispatching a request to its method through a
+ * {@code DispatchTable} to looking the method up by reflection and calling
+ * {@code Method.invoke}, as requests were dispatched before, which is kept
+ * here for that purpose. Both start from the same request, and parse its
+ * arguments in the same way, such that only the dispatch differs. The old
+ * code invoked the method on the proxy of the Module, which is left out here,
+ * so the numbers of reflection are if anything too low.
+ * </p>
+ * <p>
+ * A request that names its method by number skips the lookup by name, which
+ * is measured as well.
+ * </p>
+ *
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.DispatchBenchmark
+ * </pre>
+ */
+public class DispatchBenchmark {
+
+    private static final int TIMES = 1 << 18;
+
+    public static void main(String[] args) throws Exception {
+	final Calculator implementation = new Calculator() {
+
+	    @Override
+	    public Integer add(Integer first, Integer second) {
+		return first + second;
+	    }
+
+	    @Override
+	    public String repeat(String text, Integer times) {
+		return text;
+	    }
+
+	};
+	ModuleInvocationHandler<Calculator> handler;
+	handler = new ModuleInvocationHandler<Calculator>();
+	handler.useLocalImplementation(implementation);
+	handler.setLocal();
+	final DispatchTable table = new DispatchTable(Calculator.class,
+		handler);
+
+	final JSONObject request = new JSONObject();
+	request.put(Communication.TYPE, Communication.REQUEST);
+	request.put(Communication.Request.MODULE, table.getModule());
+	request.put(Communication.Request.METHOD, "add");
+	request.put(Communication.Request.VALUES, new JSONArray().put(
+		DispatchBenchmark.value(20)).put(DispatchBenchmark.value(22)));
+	final JSONArray values = request
+		.getJSONArray(Communication.Request.VALUES);
+	final DispatchTable.Entry entry = table.lookup("add", values);
+
+	if (!Integer.valueOf(42).equals(
+		DispatchBenchmark.reflect(implementation, request).invoke(
+			implementation, DispatchBenchmark.arguments(values))))
+	    throw new AssertionError("The reflective dispatch is wrong.");
+
+	Bench.measure("getMethod + Method.invoke", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    Method method = DispatchBenchmark.reflect(implementation,
+			    request);
+		    sum += (Integer) method.invoke(implementation,
+			    DispatchBenchmark.arguments(values));
+		}
+		return sum;
+	    }
+
+	}, DispatchBenchmark.TIMES);
+
+	Bench.measure("DispatchTable, by name", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    DispatchTable.Entry found = table.lookup(
+			    request.getString(Communication.Request.METHOD),
+			    values);
+		    sum += (Integer) table.dispatch(found,
+			    DispatchBenchmark.arguments(values));
+		}
+		return sum;
+	    }
+
+	}, DispatchBenchmark.TIMES);
+
+	Bench.measure("DispatchTable, by number", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    if (!entry.accepts(values))
+			throw new AssertionError("The signature differs.");
+		    sum += (Integer) table.dispatch(entry,
+			    DispatchBenchmark.arguments(values));
+		}
+		return sum;
+	    }
+
+	}, DispatchBenchmark.TIMES);
+    }
+
+    /**
+     * Looks up the method that the given request names, as
+     * {@code RequestReceiver.findMethod} used to.
+     */
+    private static Method reflect(Object module, JSONObject request)
+	    throws NoSuchMethodException {
+	JSONArray arguments = request
+		.getJSONArray(Communication.Request.VALUES);
+	Class<?>[] parameterTypes = new Class<?>[arguments.length()];
+	for (int i = 0; i < arguments.length(); ++i)
+	    parameterTypes[i] = Communication.convertCharToClass(Communication
+		    .typeOf(arguments.getJSONObject(i)));
+	return module.getClass().getMethod(
+		request.getString(Communication.Request.METHOD),
+		parameterTypes);
+    }
+
+    private static Object[] arguments(JSONArray values) {
+	Object[] arguments = new Object[values.length()];
+	for (int i = 0; i < arguments.length; ++i)
+	    arguments[i] = Communication.parseValue(values.getJSONObject(i));
+	return arguments;
+    }
+
+    private static JSONObject value(Object value) {
+	return new JSONObject().put(Communication.Value.TYPE,
+		Communication.convertClassToChar(value.getClass())).put(
+		Communication.Value.VALUE, value);
+    }
+
+    /**
+     * The Module that is dispatched to.
+     */
+    public interface Calculator {
+
+	@DemandRights(Right.PLAY_STATE_INFO)
+	Integer add(Integer first, Integer second);
+
+	@DemandRights(Right.PLAY_STATE_INFO)
+	String repeat(String text, Integer times);
+    }
+}
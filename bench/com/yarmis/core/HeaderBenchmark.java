@@ -0,0 +1,223 @@
+package com.yarmis.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Compares encoding and decoding a frame header with a {@code HeaderLayout}
+ * to the bit by bit code that {@code Message} used before, which is kept
+ * here for that purpose. Both handle the same headers: version 1, the signed
+ * flag, and lengths that vary.
+ * </p>
+ * 
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.HeaderBenchmark
+ * </pre>
+ */
+public class HeaderBenchmark {
+
+    private static final int VERSION_BITS = 4, TYPE_BITS = 4,
+	    LENGTH_BITS = 24;
+
+    private static final int TIMES = 1 << 20;
+
+    /**
+     * The lengths of the headers, of which there are a power of two.
+     */
+    private static final int[] LENGTHS = new int[1024];
+    static {
+	for (int i = 0; i < HeaderBenchmark.LENGTHS.length; ++i)
+	    HeaderBenchmark.LENGTHS[i] = (i * 7919) & 0xFFFFFF;
+    }
+
+    public static void main(String[] args) throws Exception {
+	final HeaderLayout layout = new HeaderLayout(
+		HeaderBenchmark.VERSION_BITS, HeaderBenchmark.TYPE_BITS,
+		HeaderBenchmark.LENGTH_BITS);
+	final int mask = HeaderBenchmark.LENGTHS.length - 1;
+
+	// The encoded headers, one after the other.
+	final ByteBuffer headers = ByteBuffer
+		.allocate(HeaderLayout.SIZE * HeaderBenchmark.LENGTHS.length);
+	for (int length : HeaderBenchmark.LENGTHS)
+	    headers.put(HeaderBenchmark.legacyHeader(1, length, true, false));
+	headers.flip();
+
+	for (int length : HeaderBenchmark.LENGTHS) {
+	    int header = headers.getInt();
+	    if (layout.unpack(header, 2) != length
+		    || layout.unpack(header, 1) != 1)
+		throw new AssertionError("The layouts differ for " + length);
+	}
+
+	Bench.measure("encode, bit by bit", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) {
+		long sum = 0;
+		for (int i = 0; i < times; ++i)
+		    sum += HeaderBenchmark.legacyHeader(1,
+			    HeaderBenchmark.LENGTHS[i & mask], true, false)[3];
+		return sum;
+	    }
+
+	}, HeaderBenchmark.TIMES);
+
+	Bench.measure("encode, HeaderLayout", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) {
+		ByteBuffer target = ByteBuffer.allocate(HeaderLayout.SIZE);
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    int header = layout.pack(0, 0, 1);
+		    header = layout.pack(header, 1, 1);
+		    header = layout.pack(header, 2,
+			    HeaderBenchmark.LENGTHS[i & mask]);
+		    target.putInt(0, header);
+		    sum += target.get(3);
+		}
+		return sum;
+	    }
+
+	}, HeaderBenchmark.TIMES);
+
+	final byte[] raw = headers.array();
+	Bench.measure("decode, bit by bit", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) throws IOException {
+		ByteArrayInputStream input = new ByteArrayInputStream(raw);
+		int[] bits = { HeaderBenchmark.VERSION_BITS,
+			HeaderBenchmark.TYPE_BITS,
+			HeaderBenchmark.LENGTH_BITS };
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    if ((i & mask) == 0)
+			input.reset();
+		    sum += HeaderBenchmark.legacyBitBlocks(bits, input)[2];
+		}
+		return sum;
+	    }
+
+	}, HeaderBenchmark.TIMES);
+
+	Bench.measure("decode, HeaderLayout", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) {
+		ByteBuffer source = ByteBuffer.wrap(raw);
+		long sum = 0;
+		for (int i = 0; i < times; ++i) {
+		    int header = source.getInt((i & mask) * HeaderLayout.SIZE);
+		    sum += layout.unpack(header, 0) + layout.unpack(header, 1)
+			    + layout.unpack(header, 2);
+		}
+		return sum;
+	    }
+
+	}, HeaderBenchmark.TIMES);
+    }
+
+    /**
+     * How {@code Message.makeHeader} composed a header before it used a
+     * {@code HeaderLayout}.
+     */
+    private static byte[] legacyHeader(int version, int length,
+	    boolean isSigned, boolean isDedicated) {
+	ByteBuffer bb = ByteBuffer.wrap(new byte[HeaderLayout.SIZE]);
+	int shift = 7;
+	byte b = 0;
+
+	for (int i = HeaderBenchmark.VERSION_BITS - 1; i > 0; i--) {
+	    b |= (version / (1 << i)) << shift--;
+	    version %= (1 << i);
+	    if (shift < 0) {
+		bb.put(b);
+		b = 0;
+		shift = 7;
+	    }
+	}
+	b |= version << shift--;
+	if (shift < 0) {
+	    bb.put(b);
+	    b = 0;
+	    shift = 7;
+	}
+	int type = 0;
+	type |= (isSigned ? 0x01 : 0);
+	type |= (isDedicated ? 0x02 : 0);
+
+	for (int i = HeaderBenchmark.TYPE_BITS - 1; i > 0; i--) {
+	    b |= (type / (1 << i)) << shift--;
+	    type %= (1 << i);
+	    if (shift < 0) {
+		bb.put(b);
+		b = 0;
+		shift = 7;
+	    }
+	}
+	b |= type << shift--;
+	if (shift < 0) {
+	    bb.put(b);
+	    b = 0;
+	    shift = 7;
+	}
+
+	for (int i = HeaderBenchmark.LENGTH_BITS - 1; i > 0; i--) {
+	    b |= (length / (1 << i)) << shift--;
+	    length %= (1 << i);
+	    if (shift < 0) {
+		bb.put(b);
+		b = 0;
+		shift = 7;
+	    }
+	}
+	b |= length << shift--;
+	if (shift < 0) {
+	    bb.put(b);
+	    b = 0;
+	    shift = 7;
+	}
+
+	return bb.array();
+    }
+
+    /**
+     * How {@code Message.MessageReader} read the fields of a header before it
+     * used a {@code HeaderLayout}.
+     */
+    private static int[] legacyBitBlocks(int[] numBits, InputStream bb)
+	    throws IOException {
+	int pos = 0;
+	int b = 0;
+	int value[] = new int[numBits.length];
+	for (int i = 0; i < numBits.length; i++) {
+	    int remaining = numBits[i];
+	    while (remaining > 0) {
+		if (pos == 0) {
+		    int read = bb.read();
+		    if (read == -1) {
+			throw new IOException("Stream closed");
+		    }
+		    b = 0xFF & read;
+		    pos = 8;
+		}
+		int maskSize = ((remaining - 1) % 8) + 1 > pos ? pos
+			: ((remaining - 1) % 8) + 1;
+		byte mask = (byte) (0xFF >> (8 - maskSize));
+		mask <<= pos - maskSize;
+		int val = b & mask;
+		pos -= maskSize;
+		val >>= pos;
+		remaining -= maskSize;
+		val <<= remaining;
+		value[i] |= val;
+	    }
+	}
+	return value;
+    }
+}
@@ -0,0 +1,44 @@
+package com.yarmis.core;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+
+/**
+ * Hosts and connects to that host within the same process, over the loopback
+ * interface, such that a benchmark can make remote calls to itself.
+ */
+final class Loopback {
+
+    // No instances.
+    private Loopback() {
+    }
+
+    /**
+     * Starts hosting with the given plugin, and connects to the host with the
+     * other one. The remote calls of the Modules go to the host from then on.
+     * 
+     * @param host
+     *            The plugin that hosts.
+     * @param client
+     *            The plugin that connects to the host.
+     * @return The Connection of the client.
+     * @throws Exception
+     *             If the host can't be started or connected to.
+     */
+    static Connection start(ConnectivityPlugin host, ConnectivityPlugin client)
+	    throws Exception {
+	CommunicationManager.setConnectivityPlugin(host);
+	host.startHosting();
+
+	Device device = new Device(InetAddress.getLoopbackAddress(),
+		"loopback");
+	Connection connection = client.connectTo(device);
+
+	// The CommunicationManager doesn't connect while it is hosting, so the
+	// Host is set as it would have been.
+	Field field = CommunicationManager.class.getDeclaredField("HOST");
+	field.setAccessible(true);
+	field.set(null, device);
+	return connection;
+    }
+}
@@ -0,0 +1,171 @@
+package com.yarmis.core;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import com.yarmis.core.security.DemandRights;
+
+/**
+ * <p>
+ * Measures the latency and the throughput of remote calls over a single
+ * {@code Connection} with 1, 16 and 256 calls in flight. The host returns at
+ * once, and the client starts a new call whenever one completes, such that
+ * the given amount of calls is outstanding all the time, over the loopback
+ * interface.
+ * </p>
+ * <p>
+ * For every amount this prints the calls per second, and the median, the
+ * 99th percentile and the worst latency of a call. The host uses the
+ * {@code NioConnectivityPlugin} when {@code nio} is given.
+ * </p>
+ *
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.PipeliningBenchmark [nio]
+ * </pre>
+ */
+public class PipeliningBenchmark {
+
+    private static final int[] IN_FLIGHT = { 1, 16, 256 };
+
+    /**
+     * The amount of calls per amount in flight, after the warm-up.
+     */
+    private static final int CALLS = 50000;
+
+    private static final int WARMUP = 10000;
+
+    /**
+     * The Module as the host implements it.
+     */
+    public static class Host {
+
+	public interface Echo {
+
+	    @DemandRights({})
+	    Integer echo(Integer value);
+	}
+    }
+
+    /**
+     * The Module as the client calls it, without waiting for the result.
+     */
+    public static class Client {
+
+	public interface Echo {
+
+	    @DemandRights({})
+	    CompletableFuture<Integer> echo(Integer value);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	boolean nio = args.length > 0 && args[0].equals("nio");
+
+	Client.Echo client = ModuleManager.createModule(Client.Echo.class);
+	Host.Echo host = ModuleManager.createModule(Host.Echo.class);
+	@SuppressWarnings("unchecked")
+	Module<Host.Echo> module = (Module<Host.Echo>) host;
+	module.useLocalImplementation(new Host.Echo() {
+
+	    @Override
+	    public Integer echo(Integer value) {
+		return value;
+	    }
+
+	});
+	module.setLocal();
+	ModuleManager.makeAllAccessible();
+
+	Loopback.start(nio ? new NioConnectivityPlugin(1)
+		: new ConnectivityPlugin(), new ConnectivityPlugin());
+	client.echo(0).get();
+
+	System.out.println(nio ? "NioConnectivityPlugin"
+		: "ConnectivityPlugin");
+	for (int inFlight : PipeliningBenchmark.IN_FLIGHT) {
+	    PipeliningBenchmark.run(client, inFlight,
+		    PipeliningBenchmark.WARMUP);
+	    long[] latencies = new long[PipeliningBenchmark.CALLS];
+	    long elapsed = PipeliningBenchmark.run(client, inFlight,
+		    latencies.length, latencies);
+	    Arrays.sort(latencies);
+
+	    System.out.printf("  %3d in flight: %7.0f calls/s, latency"
+		    + " median %7.1f us, p99 %7.1f us, max %8.1f us%n",
+		    inFlight, latencies.length * 1e9 / elapsed,
+		    latencies[latencies.length / 2] / 1e3,
+		    latencies[latencies.length * 99 / 100] / 1e3,
+		    latencies[latencies.length - 1] / 1e3);
+	}
+	System.exit(0);
+    }
+
+    private static long run(Client.Echo client, int inFlight, int calls)
+	    throws InterruptedException {
+	return PipeliningBenchmark.run(client, inFlight, calls,
+		new long[calls]);
+    }
+
+    /**
+     * Makes the given amount of calls, with at most the given amount in
+     * flight.
+     *
+     * @param latencies
+     *            Receives the latency of every call, in nanoseconds.
+     * @return How long all calls took, in nanoseconds.
+     */
+    private static long run(Client.Echo client, int inFlight, int calls,
+	    long[] latencies) throws InterruptedException {
+	Semaphore permits = new Semaphore(inFlight);
+	CountDownLatch done = new CountDownLatch(calls);
+
+	long start = System.nanoTime();
+	for (int i = 0; i < calls; ++i) {
+	    permits.acquire();
+	    // Created first, such that the latency includes sending the call.
+	    Completion completion = new Completion(latencies, i, permits, done);
+	    client.echo(i).whenComplete(completion);
+	}
+	done.await();
+	return System.nanoTime() - start;
+    }
+
+    /**
+     * Records the latency of a call, and makes room for the next one.
+     */
+    private static final class Completion implements
+	    BiConsumer<Integer, Throwable> {
+
+	private final long start = System.nanoTime();
+
+	private final long[] latencies;
+
+	private final int call;
+
+	private final Semaphore permits;
+
+	private final CountDownLatch done;
+
+	private Completion(long[] latencies, int call, Semaphore permits,
+		CountDownLatch done) {
+	    this.latencies = latencies;
+	    this.call = call;
+	    this.permits = permits;
+	    this.done = done;
+	}
+
+	@Override
+	public void accept(Integer value, Throwable failure) {
+	    this.latencies[this.call] = System.nanoTime() - this.start;
+	    if (failure != null)
+		failure.printStackTrace();
+	    else if (value != this.call)
+		System.err.println("Call " + this.call + " got " + value);
+	    this.permits.release();
+	    this.done.countDown();
+	}
+    }
+}
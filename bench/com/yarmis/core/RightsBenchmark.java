@@ -0,0 +1,125 @@
+package com.yarmis.core;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.yarmis.core.exceptions.InsufficientRightsException;
+import com.yarmis.core.exceptions.NoDeclaredRightsException;
+import com.yarmis.core.security.DemandRights;
+import com.yarmis.core.security.Right;
+
+/**
+ * <p>
+ * Compares checking the Rights of a call with {@code SecurityManager}, which
+ * compares the mask of the method to the mask of the device, to reading the
+ * {@code DemandRights} annotation and removing the Rights of the device from
+ * a list of them, as the calls were checked before, which is kept here for
+ * that purpose. Both check methods that demand one and three Rights, for a
+ * device that has every Right, and both allow every call.
+ * </p>
+ * <p>
+ * The old code removed from the list that {@code Arrays.asList} gives, which
+ * can't be changed, so every allowed call failed. It is kept here with a copy
+ * of that list, as it was meant to work.
+ * </p>
+ *
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.RightsBenchmark
+ * </pre>
+ */
+public class RightsBenchmark {
+
+    private static final int TIMES = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+	Device device = new Device(InetAddress.getLoopbackAddress(), "device");
+	device.setRights(EnumSet.allOf(Right.class));
+	final Connection connection = new Connection(device);
+	DispatchTable table = new DispatchTable(Player.class,
+		new ModuleInvocationHandler<Player>());
+
+	for (String name : new String[] { "pause", "vote" }) {
+	    final Method method = Player.class.getMethod(name);
+	    final DispatchTable.Entry entry = table.lookup(method);
+
+	    Bench.measure(name + ", annotation and removeAll",
+		    new Bench.Operation() {
+
+			@Override
+			public long run(int times) throws Exception {
+			    long sum = 0;
+			    for (int i = 0; i < times; ++i) {
+				RightsBenchmark.validateMethod(method,
+					connection.getDevice());
+				sum += i;
+			    }
+			    return sum;
+			}
+
+		    }, RightsBenchmark.TIMES / 16);
+
+	    Bench.measure(name + ", masks", new Bench.Operation() {
+
+		@Override
+		public long run(int times) throws Exception {
+		    long sum = 0;
+		    for (int i = 0; i < times; ++i) {
+			SecurityManager.validateMethod(entry, connection);
+			sum += i;
+		    }
+		    return sum;
+		}
+
+	    }, RightsBenchmark.TIMES);
+	}
+    }
+
+    /**
+     * Validates a call as {@code SecurityManager.validateMethod} used to.
+     */
+    private static void validateMethod(Method method, Device device)
+	    throws NoDeclaredRightsException, InsufficientRightsException {
+	List<Right> rights = RightsBenchmark.getRights(device);
+
+	if (rights == null || rights.size() == 0)
+	    throw new InsufficientRightsException();
+
+	DemandRights requiredRightAnnotation = method
+		.getAnnotation(DemandRights.class);
+	if (requiredRightAnnotation == null)
+	    throw new NoDeclaredRightsException("The intended method "
+		    + method.getName() + " is not callable.");
+
+	List<Right> insufficient = new ArrayList<Right>(
+		Arrays.asList(requiredRightAnnotation.value()));
+	insufficient.removeAll(rights);
+
+	if (insufficient.size() > 0)
+	    throw new InsufficientRightsException(insufficient);
+    }
+
+    /**
+     * The Rights of a device, as {@code SecurityManager.getRights} used to
+     * give them.
+     */
+    private static List<Right> getRights(Device device) {
+	return Arrays.asList(Right.values());
+    }
+
+    /**
+     * The Module of which the calls are checked.
+     */
+    public interface Player {
+
+	@DemandRights(Right.PLAY_STATE)
+	void pause();
+
+	@DemandRights({ Right.PLAY_STATE, Right.VOTE_REQUEST,
+		Right.PLAYLIST_EDIT })
+	void vote();
+    }
+}
@@ -0,0 +1,97 @@
+package com.yarmis.core;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+
+import com.yarmis.core.security.Crypto;
+
+/**
+ * <p>
+ * Compares the throughput of signed frames when every frame is signed with a
+ * public key, as the frames were before sessions, to when every frame is
+ * signed with the HMAC key of a session. A frame is signed by one side and
+ * checked by the other, for frames of several sizes. The handshake that sets
+ * up a session is measured as well, as it is the only public-key work that is
+ * left.
+ * </p>
+ * 
+ * <pre>
+ * java -cp out:bench-out com.yarmis.core.SigningBenchmark
+ * </pre>
+ */
+public class SigningBenchmark {
+
+    private static final int[] SIZES = { 64, 1024, 16384 };
+
+    public static void main(String[] args) throws Exception {
+	final KeyPair pair = Crypto.generateKeyPair();
+
+	final Session sender = new Session();
+	final Session receiver = new Session();
+	sender.complete(receiver.hello());
+	receiver.complete(sender.hello());
+
+	for (int size : SigningBenchmark.SIZES) {
+	    final byte[] payload = new byte[size];
+
+	    double before = Bench.measure(size + " B, public-key signature",
+		    new Bench.Operation() {
+
+			@Override
+			public long run(int times) throws Exception {
+			    long valid = 0;
+			    for (int i = 0; i < times; ++i) {
+				byte[] signature = Crypto.sign(payload,
+					pair.getPrivate());
+				if (Crypto.isSignatureValid(payload,
+					signature, pair.getPublic()))
+				    ++valid;
+			    }
+			    return valid;
+			}
+
+		    }, 200);
+
+	    double after = Bench.measure(size + " B, session HMAC",
+		    new Bench.Operation() {
+
+			@Override
+			public long run(int times) throws Exception {
+			    long valid = 0;
+			    for (int i = 0; i < times; ++i) {
+				byte[] frame = sender.frame(
+					ByteBuffer.wrap(payload)).toByteArray();
+				Message message = receiver.newReader()
+					.readFrom(ByteBuffer.wrap(frame));
+				if (receiver.isAuthentic(message))
+				    ++valid;
+			    }
+			    return valid;
+			}
+
+		    }, 20000);
+
+	    System.out.printf("  %.0f frames/s before, %.0f frames/s after,"
+		    + " %.1f MB/s after%n", 1e9 / before, 1e9 / after,
+		    size * 1e3 / after);
+	}
+
+	Bench.measure("handshake, both sides", new Bench.Operation() {
+
+	    @Override
+	    public long run(int times) throws Exception {
+		long established = 0;
+		for (int i = 0; i < times; ++i) {
+		    Session one = new Session();
+		    Session two = new Session();
+		    one.complete(two.hello());
+		    two.complete(one.hello());
+		    if (one.isEstablished() && two.isEstablished())
+			++established;
+		}
+		return established;
+	    }
+
+	}, 100);
+    }
+}
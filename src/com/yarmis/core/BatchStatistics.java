@@ -0,0 +1,77 @@
+package com.yarmis.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Counts the batches of requests that are sent over a {@code Connection}. Every
+ * time that the requests that were collected during the batch window are sent
+ * counts as a batch, even if it holds a single request.
+ * </p>
+ * <p>
+ * Requests that are sent while batching is disabled are not counted.
+ * </p>
+ */
+public final class BatchStatistics {
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final AtomicInteger largest = new AtomicInteger();
+
+    BatchStatistics() {
+    }
+
+    /**
+     * Counts a batch of the given size.
+     */
+    void record(int size) {
+	this.batches.increment();
+	this.requests.add(size);
+
+	int largest;
+	while (size > (largest = this.largest.get())
+		&& !this.largest.compareAndSet(largest, size))
+	    ;
+    }
+
+    /**
+     * The amount of batches that have been sent.
+     */
+    public long getBatchCount() {
+	return this.batches.sum();
+    }
+
+    /**
+     * The amount of requests that have been sent in batches.
+     */
+    public long getRequestCount() {
+	return this.requests.sum();
+    }
+
+    /**
+     * The amount of requests in the largest batch that has been sent.
+     */
+    public int getLargestBatchSize() {
+	return this.largest.get();
+    }
+
+    /**
+     * The average amount of requests per batch, or 0 if no batch has been
+     * sent.
+     */
+    public double getAverageBatchSize() {
+	long batches = this.batches.sum();
+	return batches == 0 ? 0 : (double) this.requests.sum() / batches;
+    }
+
+    @Override
+    public String toString() {
+	return "batches: " + this.getBatchCount() + ", requests: "
+		+ this.getRequestCount() + ", average: "
+		+ String.format("%.1f", this.getAverageBatchSize())
+		+ ", largest: " + this.getLargestBatchSize();
+    }
+}
@@ -0,0 +1,532 @@
+package com.yarmis.core;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Encodes requests and responses in a compact binary form, and decodes them
+ * back into the same {@code JSONObject}s that their JSON text would give.
+ * </p>
+ * <p>
+ * An encoded message starts with {@code MAGIC}, which is never the first byte
+ * of JSON text, followed by the kind of message and its fields. Every value is
+ * written as its type character, followed by:
+ * </p>
+ * <ul>
+ * <li>{@code b}: a single byte;</li>
+ * <li>{@code c}, {@code i}, {@code l}: a varint, zigzag encoded for
+ * {@code i} and {@code l};</li>
+ * <li>{@code f}, {@code d}: 4 or 8 bytes;</li>
+ * <li>{@code s}: a varint length, followed by as many bytes of UTF-8;</li>
+ * <li>{@code E}: a varint of the number of the exception, 0 if it is not
+ * known, followed by its message as for {@code s}.</li>
+ * </ul>
+ * <p>
+ * A {@code null} value is written as its type character with the highest bit
+ * set, without anything following it, except for the number of an
+ * exception.
+ * </p>
+ * <p>
+ * The identifier of a request, and of its response, is written as a varint.
+ * A request follows it with a varint of its deadline, which is 0 if it has
+ * none.
+ * A batch is written as a varint of the amount of messages in it, followed by
+ * each of them in binary form, preceded by a varint of its length.
+ * A request names its method by a varint that is one more than the number of
+ * the method, or by zero followed by the names of the module and the method.
+ * </p>
+ */
+final class BinaryCodec {
+
+    /**
+     * The first byte of every encoded message.
+     */
+    static final int MAGIC = 0xB1;
+
+    private static final int REQUEST = 0;
+    private static final int RESPONSE = 1;
+    private static final int BATCH = 2;
+
+    /**
+     * Set in the type character of a {@code null} value.
+     */
+    private static final int NULL_FLAG = 0x80;
+
+    /**
+     * The type of a response without a value.
+     */
+    private static final int NO_VALUE = 0;
+
+    private static final Set<String> REQUEST_KEYS = BinaryCodec.keys(
+	    Communication.TYPE, Communication.Request.IDENTIFIER,
+	    Communication.Request.MODULE, Communication.Request.METHOD,
+	    Communication.Request.ID, Communication.Request.DEADLINE,
+	    Communication.Request.VALUES);
+
+    private static final Set<String> RESPONSE_KEYS = BinaryCodec.keys(
+	    Communication.TYPE, Communication.Response.IDENTIFIER,
+	    Communication.Response.SUCCESS, Communication.Response.VALUE);
+
+    private static final Set<String> BATCH_KEYS = BinaryCodec.keys(
+	    Communication.TYPE, Communication.Batch.MESSAGES);
+
+    private static final Set<String> VALUE_KEYS = BinaryCodec.keys(
+	    Communication.Value.TYPE, Communication.Value.VALUE,
+	    Communication.Value.CODE);
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Indicates whether the given payload holds a message in binary form.
+     *
+     * @param payload
+     *            The payload, from its position up to its limit.
+     * @return true if it is binary, false if it should be JSON text.
+     */
+    static boolean isBinary(ByteBuffer payload) {
+	return payload.hasRemaining()
+		&& (payload.get(payload.position()) & 0xFF) == BinaryCodec.MAGIC;
+    }
+
+    /**
+     * Encodes the given message.
+     *
+     * @param message
+     *            The message to encode.
+     * @return The encoded message, or {@code null} if it can't be represented
+     *         in binary form, in which case it should be sent as JSON.
+     */
+    static byte[] encode(JSONObject message) {
+	String type = message.optString(Communication.TYPE);
+	Output out = new Output();
+
+	if (Communication.REQUEST.equals(type)) {
+	    if (!BinaryCodec.REQUEST_KEYS.containsAll(message.keySet()))
+		return null;
+	    JSONArray values = message.optJSONArray(Communication.Request.VALUES);
+	    if (values == null
+		    || !BinaryCodec.writeIdentifier(out,
+			    message.opt(Communication.Request.IDENTIFIER)))
+		return null;
+
+	    Object deadline = message.opt(Communication.Request.DEADLINE);
+	    if (deadline == null)
+		out.writeVarint(0);
+	    else if (!BinaryCodec.writeIdentifier(out, deadline))
+		return null;
+
+	    Object id = message.opt(Communication.Request.ID);
+	    if (id instanceof Integer && (Integer) id >= 0)
+		out.writeVarint((Integer) id + 1L);
+	    else if (id != null)
+		return null;
+	    else {
+		out.writeVarint(0);
+		if (!BinaryCodec.writeString(out,
+			message.opt(Communication.Request.MODULE))
+			|| !BinaryCodec.writeString(out,
+				message.opt(Communication.Request.METHOD)))
+		    return null;
+	    }
+
+	    out.writeVarint(values.length());
+	    for (int i = 0; i < values.length(); ++i) {
+		JSONObject value = values.optJSONObject(i);
+		if (value == null || !BinaryCodec.writeValue(out, value))
+		    return null;
+	    }
+	    return out.toByteArray(BinaryCodec.REQUEST);
+	}
+
+	if (Communication.RESPONSE.equals(type)) {
+	    if (!BinaryCodec.RESPONSE_KEYS.containsAll(message.keySet()))
+		return null;
+	    Object success = message.opt(Communication.Response.SUCCESS);
+	    if (!(success instanceof Boolean)
+		    || !BinaryCodec.writeIdentifier(out,
+			    message.opt(Communication.Response.IDENTIFIER)))
+		return null;
+	    out.write((Boolean) success ? 1 : 0);
+
+	    Object value = message.opt(Communication.Response.VALUE);
+	    if (value == null)
+		out.write(BinaryCodec.NO_VALUE);
+	    else if (!(value instanceof JSONObject)
+		    || !BinaryCodec.writeValue(out, (JSONObject) value))
+		return null;
+	    return out.toByteArray(BinaryCodec.RESPONSE);
+	}
+
+	if (Communication.BATCH.equals(type)) {
+	    if (!BinaryCodec.BATCH_KEYS.containsAll(message.keySet()))
+		return null;
+	    JSONArray messages = message
+		    .optJSONArray(Communication.Batch.MESSAGES);
+	    if (messages == null)
+		return null;
+
+	    out.writeVarint(messages.length());
+	    for (int i = 0; i < messages.length(); ++i) {
+		JSONObject element = messages.optJSONObject(i);
+		byte[] encoded = element == null ? null : BinaryCodec
+			.encode(element);
+		if (encoded == null)
+		    return null;
+		out.writeVarint(encoded.length);
+		out.write(encoded);
+	    }
+	    return out.toByteArray(BinaryCodec.BATCH);
+	}
+
+	return null;
+    }
+
+    /**
+     * Decodes the message in the given payload.
+     *
+     * @param payload
+     *            The payload, from its position up to its limit.
+     * @return The decoded message.
+     * @throws IOException
+     *             If the payload doesn't hold a valid message.
+     */
+    static JSONObject decode(final ByteBuffer payload) throws IOException {
+	final ByteBuffer source = payload.duplicate();
+	return BinaryCodec.decode(new InputStream() {
+
+	    @Override
+	    public int read() {
+		return source.hasRemaining() ? source.get() & 0xFF : -1;
+	    }
+
+	    @Override
+	    public int read(byte[] b, int off, int len) {
+		if (!source.hasRemaining())
+		    return -1;
+		int count = Math.min(len, source.remaining());
+		source.get(b, off, count);
+		return count;
+	    }
+
+	});
+    }
+
+    /**
+     * Decodes the message that is read from the given stream.
+     *
+     * @param stream
+     *            The stream, which starts with {@code MAGIC}.
+     * @return The decoded message.
+     * @throws IOException
+     *             If the stream doesn't hold a valid message.
+     */
+    static JSONObject decode(InputStream stream) throws IOException {
+	DataInput in = new DataInputStream(stream);
+	if (in.readUnsignedByte() != BinaryCodec.MAGIC)
+	    throw new IOException("The message is not in binary form.");
+
+	int kind = in.readUnsignedByte();
+	JSONObject message = new JSONObject();
+	switch (kind) {
+	case REQUEST:
+	    message.put(Communication.TYPE, Communication.REQUEST);
+	    message.put(Communication.Request.IDENTIFIER,
+		    BinaryCodec.readVarlong(in));
+
+	    long deadline = BinaryCodec.readVarlong(in);
+	    if (deadline > 0)
+		message.put(Communication.Request.DEADLINE, deadline);
+
+	    long id = BinaryCodec.readVarlong(in);
+	    if (id > 0)
+		message.put(Communication.Request.ID, (int) (id - 1));
+	    else {
+		message.put(Communication.Request.MODULE,
+			BinaryCodec.readString(in));
+		message.put(Communication.Request.METHOD,
+			BinaryCodec.readString(in));
+	    }
+
+	    int count = BinaryCodec.readVarint(in);
+	    JSONArray values = new JSONArray();
+	    for (int i = 0; i < count; ++i)
+		values.put(BinaryCodec.readValue(in, in.readUnsignedByte()));
+	    message.put(Communication.Request.VALUES, values);
+	    return message;
+
+	case RESPONSE:
+	    message.put(Communication.TYPE, Communication.RESPONSE);
+	    message.put(Communication.Response.IDENTIFIER,
+		    BinaryCodec.readVarlong(in));
+	    message.put(Communication.Response.SUCCESS, in.readBoolean());
+
+	    int type = in.readUnsignedByte();
+	    if (type != BinaryCodec.NO_VALUE)
+		message.put(Communication.Response.VALUE,
+			BinaryCodec.readValue(in, type));
+	    return message;
+
+	case BATCH:
+	    message.put(Communication.TYPE, Communication.BATCH);
+	    JSONArray messages = new JSONArray();
+	    int size = BinaryCodec.readVarint(in);
+	    for (int i = 0; i < size; ++i) {
+		int length = BinaryCodec.readVarint(in);
+		if (length < 0)
+		    throw new IOException("Invalid length of a message: "
+			    + length);
+		byte[] element = new byte[length];
+		in.readFully(element);
+		messages.put(BinaryCodec.decode(ByteBuffer.wrap(element)));
+	    }
+	    message.put(Communication.Batch.MESSAGES, messages);
+	    return message;
+
+	default:
+	    throw new IOException("Unknown kind of message: " + kind);
+	}
+    }
+
+    /**
+     * Writes a value, as created by {@code CommunicationManager}.
+     *
+     * @return false if the value can't be represented.
+     */
+    private static boolean writeValue(Output out, JSONObject value) {
+	if (!BinaryCodec.VALUE_KEYS.containsAll(value.keySet()))
+	    return false;
+	Object typeField = value.opt(Communication.Value.TYPE);
+	if (!(typeField instanceof Integer))
+	    return false;
+	int type = (Integer) typeField;
+	if (type <= 0 || type >= BinaryCodec.NULL_FLAG)
+	    return false;
+
+	Object code = value.opt(Communication.Value.CODE);
+	if (code != null
+		&& (type != 'E' || !(code instanceof Integer) || (Integer) code < 0))
+	    return false;
+
+	Object raw = value.opt(Communication.Value.VALUE);
+	boolean isNull = raw == null || raw == JSONObject.NULL;
+	out.write(isNull ? type | BinaryCodec.NULL_FLAG : type);
+	if (type == 'E')
+	    out.writeVarint(code == null ? ExceptionRegistry.UNKNOWN
+		    : (Integer) code);
+	if (isNull)
+	    return true;
+
+	switch (type) {
+	case 'b':
+	    if (!(raw instanceof Boolean))
+		return false;
+	    out.write((Boolean) raw ? 1 : 0);
+	    return true;
+	case 'c':
+	    if (!(raw instanceof Character))
+		return false;
+	    out.writeVarint((Character) raw);
+	    return true;
+	case 'd':
+	    if (!(raw instanceof Number))
+		return false;
+	    out.writeLong(Double.doubleToLongBits(((Number) raw).doubleValue()));
+	    return true;
+	case 'f':
+	    if (!(raw instanceof Number))
+		return false;
+	    out.writeInt(Float.floatToIntBits(((Number) raw).floatValue()));
+	    return true;
+	case 'i':
+	    if (!(raw instanceof Integer))
+		return false;
+	    int i = (Integer) raw;
+	    out.writeVarint(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+	    return true;
+	case 'l':
+	    if (!(raw instanceof Long || raw instanceof Integer))
+		return false;
+	    long l = ((Number) raw).longValue();
+	    out.writeVarint((l << 1) ^ (l >> 63));
+	    return true;
+	case 's':
+	case 'E':
+	    return BinaryCodec.writeString(out, raw);
+	default:
+	    return false;
+	}
+    }
+
+    private static JSONObject readValue(DataInput in, int type)
+	    throws IOException {
+	JSONObject value = new JSONObject();
+	value.put(Communication.Value.TYPE, type & ~BinaryCodec.NULL_FLAG);
+	if ((type & ~BinaryCodec.NULL_FLAG) == 'E') {
+	    int code = BinaryCodec.readVarint(in);
+	    if (code != ExceptionRegistry.UNKNOWN)
+		value.put(Communication.Value.CODE, code);
+	}
+	if ((type & BinaryCodec.NULL_FLAG) != 0)
+	    return value;
+
+	switch (type) {
+	case 'b':
+	    value.put(Communication.Value.VALUE, in.readBoolean());
+	    break;
+	case 'c':
+	    value.put(Communication.Value.VALUE,
+		    Character.valueOf((char) BinaryCodec.readVarint(in)));
+	    break;
+	case 'd':
+	    value.put(Communication.Value.VALUE, in.readDouble());
+	    break;
+	case 'f':
+	    value.put(Communication.Value.VALUE,
+		    Float.valueOf(in.readFloat()));
+	    break;
+	case 'i':
+	    int i = BinaryCodec.readVarint(in);
+	    value.put(Communication.Value.VALUE, (i >>> 1) ^ -(i & 1));
+	    break;
+	case 'l':
+	    long l = BinaryCodec.readVarlong(in);
+	    value.put(Communication.Value.VALUE, (l >>> 1) ^ -(l & 1));
+	    break;
+	case 's':
+	case 'E':
+	    value.put(Communication.Value.VALUE, BinaryCodec.readString(in));
+	    break;
+	default:
+	    throw new IOException("Unknown type of value: " + type);
+	}
+	return value;
+    }
+
+    /**
+     * @return false if the given object is not a String.
+     */
+    private static boolean writeString(Output out, Object string) {
+	if (!(string instanceof String))
+	    return false;
+	byte[] bytes = ((String) string).getBytes(StandardCharsets.UTF_8);
+	out.writeVarint(bytes.length);
+	out.write(bytes);
+	return true;
+    }
+
+    /**
+     * Writes the identifier of a request as a varint.
+     *
+     * @return false if the given object is not a non-negative whole number.
+     */
+    private static boolean writeIdentifier(Output out, Object identifier) {
+	if (!(identifier instanceof Integer || identifier instanceof Long))
+	    return false;
+	long value = ((Number) identifier).longValue();
+	if (value < 0)
+	    return false;
+	out.writeVarint(value);
+	return true;
+    }
+
+    private static String readString(DataInput in) throws IOException {
+	int length = BinaryCodec.readVarint(in);
+	if (length < 0)
+	    throw new IOException("Invalid length of a string: " + length);
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+	return (int) BinaryCodec.readVarlong(in);
+    }
+
+    private static long readVarlong(DataInput in) throws IOException {
+	long value = 0;
+	for (int shift = 0; shift < 64; shift += 7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+	throw new IOException("Malformed varint.");
+    }
+
+    private static Set<String> keys(String... keys) {
+	return new HashSet<String>(Arrays.asList(keys));
+    }
+
+    /**
+     * A growable array to encode into. The kind of message is only filled in
+     * once the message is complete.
+     */
+    private static final class Output {
+
+	private byte[] bytes = new byte[64];
+
+	/**
+	 * The second byte is reserved for the kind of message.
+	 */
+	private int count = 2;
+
+	private Output() {
+	    this.bytes[0] = (byte) BinaryCodec.MAGIC;
+	}
+
+	private void write(int b) {
+	    this.ensure(1);
+	    this.bytes[this.count++] = (byte) b;
+	}
+
+	private void write(byte[] b) {
+	    this.ensure(b.length);
+	    System.arraycopy(b, 0, this.bytes, this.count, b.length);
+	    this.count += b.length;
+	}
+
+	private void writeInt(int value) {
+	    this.ensure(4);
+	    for (int shift = 24; shift >= 0; shift -= 8)
+		this.bytes[this.count++] = (byte) (value >>> shift);
+	}
+
+	private void writeLong(long value) {
+	    this.ensure(8);
+	    for (int shift = 56; shift >= 0; shift -= 8)
+		this.bytes[this.count++] = (byte) (value >>> shift);
+	}
+
+	private void writeVarint(long value) {
+	    this.ensure(10);
+	    while ((value & ~0x7FL) != 0) {
+		this.bytes[this.count++] = (byte) ((value & 0x7F) | 0x80);
+		value >>>= 7;
+	    }
+	    this.bytes[this.count++] = (byte) value;
+	}
+
+	private void ensure(int length) {
+	    if (this.count + length > this.bytes.length)
+		this.bytes = Arrays.copyOf(this.bytes,
+			Math.max(this.bytes.length * 2, this.count + length));
+	}
+
+	private byte[] toByteArray(int kind) {
+	    this.bytes[1] = (byte) kind;
+	    return Arrays.copyOf(this.bytes, this.count);
+	}
+    }
+}
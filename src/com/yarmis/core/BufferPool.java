@@ -0,0 +1,164 @@
+package com.yarmis.core;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A pool of direct {@code ByteBuffer}s that are used to encode and decode
+ * {@code Message} frames, such that sending and receiving a frame does not
+ * allocate a new buffer each time.
+ * </p>
+ * <p>
+ * Buffers are grouped in size classes of powers of two. Each size class is
+ * split in stripes, and a thread always uses the same stripe, such that
+ * threads rarely compete for the same buffers. A buffer may be released by
+ * another thread than the one that acquired it.
+ * </p>
+ */
+final class BufferPool {
+
+    /**
+     * The pool that is shared by all connections.
+     */
+    static final BufferPool DEFAULT = new BufferPool();
+
+    /**
+     * The smallest size class is 2^MIN_SHIFT bytes.
+     */
+    private static final int MIN_SHIFT = 9;
+
+    /**
+     * The largest size class is 2^MAX_SHIFT bytes. Larger buffers are
+     * allocated when needed, and are not pooled.
+     */
+    private static final int MAX_SHIFT = 20;
+
+    /**
+     * The maximum amount of idle buffers per stripe of a size class.
+     */
+    private static final int MAX_IDLE = 8;
+
+    /**
+     * The stripes of each size class, indexed by [class][stripe].
+     */
+    private final Stripe[][] classes;
+
+    /**
+     * Used to find the stripe of a thread: stripes.length - 1.
+     */
+    private final int stripeMask;
+
+    BufferPool() {
+	int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime()
+		.availableProcessors()) * 2 - 1);
+	this.stripeMask = stripes - 1;
+	this.classes = new Stripe[MAX_SHIFT - MIN_SHIFT + 1][stripes];
+	for (Stripe[] sizeClass : this.classes)
+	    for (int i = 0; i < sizeClass.length; ++i)
+		sizeClass[i] = new Stripe();
+    }
+
+    /**
+     * Obtains a direct buffer that can hold at least {@code size} bytes. The
+     * position of the buffer is 0, and its limit is {@code size}.
+     *
+     * @param size
+     *            The amount of bytes that is needed.
+     * @return The buffer. This should be released when it is no longer used.
+     */
+    ByteBuffer acquire(int size) {
+	int index = BufferPool.sizeClass(size);
+
+	ByteBuffer buffer = null;
+	if (index < this.classes.length)
+	    buffer = this.poll(index);
+	if (buffer == null)
+	    buffer = ByteBuffer
+		    .allocateDirect(index < this.classes.length ? 1 << (index + MIN_SHIFT)
+			    : size);
+
+	buffer.limit(size);
+	return buffer;
+    }
+
+    /**
+     * Returns the given buffer to the pool. The buffer must not be used
+     * anymore after it is released.
+     *
+     * @param buffer
+     *            The buffer that was acquired from this pool.
+     */
+    void release(ByteBuffer buffer) {
+	if (buffer == null || !buffer.isDirect())
+	    return;
+
+	int capacity = buffer.capacity();
+	int index = BufferPool.sizeClass(capacity);
+
+	// Only buffers with the exact size of a class are pooled.
+	if (index < this.classes.length
+		&& capacity == 1 << (index + MIN_SHIFT)) {
+	    buffer.clear();
+	    this.stripe(index).offer(buffer);
+	}
+    }
+
+    /**
+     * Takes an idle buffer of the given size class, preferably from the stripe
+     * of the current thread. Buffers are often released by another thread than
+     * the one that acquired them, so the other stripes are tried as well.
+     */
+    private ByteBuffer poll(int index) {
+	Stripe[] stripes = this.classes[index];
+	int own = (int) Thread.currentThread().getId() & this.stripeMask;
+	for (int i = 0; i < stripes.length; ++i) {
+	    ByteBuffer buffer = stripes[(own + i) & this.stripeMask].poll();
+	    if (buffer != null)
+		return buffer;
+	}
+	return null;
+    }
+
+    private Stripe stripe(int index) {
+	return this.classes[index][(int) Thread.currentThread().getId()
+		& this.stripeMask];
+    }
+
+    /**
+     * Determines the index of the smallest size class that can hold the given
+     * amount of bytes.
+     */
+    private static int sizeClass(int size) {
+	if (size <= 1 << MIN_SHIFT)
+	    return 0;
+	return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * The idle buffers of one stripe of a size class.
+     */
+    private static final class Stripe {
+
+	private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private ByteBuffer poll() {
+	    ByteBuffer buffer = this.idle.poll();
+	    if (buffer != null)
+		this.size.decrementAndGet();
+	    return buffer;
+	}
+
+	private void offer(ByteBuffer buffer) {
+	    // Drop the buffer if the stripe already holds enough.
+	    if (this.size.incrementAndGet() > MAX_IDLE)
+		this.size.decrementAndGet();
+	    else
+		this.idle.offer(buffer);
+	}
+    }
+}
@@ -0,0 +1,242 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * The reassembled payload of a logical message that is received in chunks.
+ * The chunks can be read while they are still coming in, either as a stream of
+ * bytes or as a sequence of {@code ByteBuffer}s.
+ * </p>
+ * <p>
+ * Only a bounded amount of chunks is buffered. If the reader falls behind, the
+ * connection that delivers the chunks stops reading until the reader has
+ * caught up, so the payload is never held in memory as a whole. The thread
+ * that delivers the chunks never waits for the reader, as it may be serving
+ * many other connections.
+ * </p>
+ */
+public final class ChunkedInputStream extends InputStream {
+
+    /**
+     * The amount of buffered chunks at which the connection stops reading.
+     * It starts reading again once the reader has taken half of them.
+     */
+    private static final int CAPACITY = 16;
+
+    /**
+     * Marks the end of the payload in the queue of chunks.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * The identifier of the stream, as chosen by the sender.
+     */
+    private final int id;
+
+    /**
+     * The connection that delivers the chunks.
+     */
+    private final Connection connection;
+
+    /**
+     * The buffered chunks. The queue itself is not bounded, as the chunks
+     * that were read already are always added, but no more are read once it
+     * holds {@code CAPACITY} chunks.
+     */
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<ByteBuffer>();
+
+    /**
+     * Indicates that this stream has stopped the connection from reading.
+     */
+    private final AtomicBoolean throttling = new AtomicBoolean();
+
+    /**
+     * The chunk that is currently being read, or {@code null} if the next
+     * chunk still has to be taken from the queue.
+     */
+    private ByteBuffer current = null;
+
+    /**
+     * Indicates that the end of the payload has been reached by the reader.
+     */
+    private boolean ended = false;
+
+    /**
+     * Indicates that the stream was aborted before the last chunk came in.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     * Indicates that the reader is no longer interested in the remaining
+     * chunks.
+     */
+    private volatile boolean closed = false;
+
+    ChunkedInputStream(int id, Connection connection) {
+	this.id = id;
+	this.connection = connection;
+    }
+
+    /**
+     * The identifier of this stream, as chosen by the sender.
+     *
+     * @return The identifier.
+     */
+    public int getId() {
+	return this.id;
+    }
+
+    /**
+     * Adds the data of a received chunk. The data is copied, as the buffer it
+     * is in is reused once the frame has been handled. This never waits; if
+     * the maximum amount of chunks is buffered, the connection is stopped
+     * from reading until the reader has caught up.
+     *
+     * @param data
+     *            The data of the chunk.
+     * @param last
+     *            Indicates whether this was the last chunk.
+     */
+    void offer(ByteBuffer data, boolean last) {
+	if (this.closed)
+	    return;
+
+	if (data.hasRemaining()) {
+	    ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+	    copy.put(data);
+	    copy.flip();
+	    this.chunks.add(copy);
+	}
+	if (last)
+	    this.chunks.add(END);
+
+	if (this.chunks.size() >= ChunkedInputStream.CAPACITY
+		&& this.throttling.compareAndSet(false, true))
+	    this.connection.throttle();
+
+	// The reader may have closed the stream in the meantime, without
+	// seeing that it was throttling.
+	if (this.closed)
+	    this.release();
+    }
+
+    /**
+     * Lets the connection read again if this stream stopped it, and the
+     * reader has taken enough of the chunks.
+     */
+    private void release() {
+	if (this.throttling.get()
+		&& (this.closed || this.chunks.size() <= ChunkedInputStream.CAPACITY / 2)
+		&& this.throttling.compareAndSet(true, false))
+	    this.connection.unthrottle();
+    }
+
+    /**
+     * Aborts this stream because no more chunks will come in. The reader will
+     * get an IOException once it has read all chunks that did come in.
+     */
+    void abort() {
+	this.aborted = true;
+    }
+
+    /**
+     * <p>
+     * Obtains the next chunk of the payload, waiting for it if it hasn't come
+     * in yet. This allows the payload to be consumed as a sequence of buffers,
+     * without copying. It should not be mixed with the {@code read} methods.
+     * </p>
+     *
+     * @return The next chunk, or {@code null} if the end of the payload has
+     *         been reached.
+     * @throws IOException
+     *             If the stream was aborted, or if the thread was
+     *             interrupted while waiting.
+     */
+    public ByteBuffer nextChunk() throws IOException {
+	if (this.current != null && this.current.hasRemaining()) {
+	    ByteBuffer chunk = this.current;
+	    this.current = null;
+	    return chunk.asReadOnlyBuffer();
+	}
+
+	if (this.ended)
+	    return null;
+
+	try {
+	    ByteBuffer chunk;
+	    while ((chunk = this.chunks.poll(100, TimeUnit.MILLISECONDS)) == null)
+		if (this.aborted && this.chunks.isEmpty())
+		    throw new IOException("Stream " + this.id
+			    + " was aborted before it was complete.");
+	    this.release();
+
+	    if (chunk == END) {
+		this.ended = true;
+		return null;
+	    }
+	    return chunk.asReadOnlyBuffer();
+	} catch (InterruptedException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    @Override
+    public int read() throws IOException {
+	if (!this.fill())
+	    return -1;
+	return this.current.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+	if (len == 0)
+	    return 0;
+	if (!this.fill())
+	    return -1;
+
+	int count = Math.min(len, this.current.remaining());
+	this.current.get(b, off, count);
+	return count;
+    }
+
+    @Override
+    public int available() {
+	return this.current == null ? 0 : this.current.remaining();
+    }
+
+    /**
+     * Closes this stream. Chunks that come in afterwards are discarded.
+     */
+    @Override
+    public void close() {
+	this.closed = true;
+	this.chunks.clear();
+	this.current = null;
+	this.ended = true;
+	this.release();
+    }
+
+    /**
+     * Makes sure that the current chunk has remaining data.
+     *
+     * @return false if the end of the payload has been reached, true
+     *         otherwise.
+     */
+    private boolean fill() throws IOException {
+	while (this.current == null || !this.current.hasRemaining()) {
+	    this.current = null;
+	    ByteBuffer next = this.nextChunk();
+	    if (next == null)
+		return false;
+	    this.current = next;
+	}
+	return true;
+    }
+}
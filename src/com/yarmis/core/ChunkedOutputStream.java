@@ -0,0 +1,112 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Sends a logical message over a {@code Connection} in bounded chunks. Every
+ * time a chunk is full, it is sent as a separate {@code Message} frame, so the
+ * message never has to be held in memory as a whole.
+ * </p>
+ * <p>
+ * If the message turns out to fit in a single chunk, it is sent as an
+ * ordinary frame when the stream is closed.
+ * </p>
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+    private final Connection connection;
+
+    /**
+     * The chunk that is being filled. The first bytes hold the identifier of
+     * the stream.
+     */
+    private final ByteBuffer chunk;
+
+    /**
+     * Indicates whether a chunk of this stream has been sent already.
+     */
+    private boolean started = false;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a new ChunkedOutputStream.
+     *
+     * @param connection
+     *            The connection to send the chunks over.
+     * @param id
+     *            The identifier of the stream, which must be unique for the
+     *            connection as long as the stream is open.
+     * @param chunkSize
+     *            The maximum amount of bytes of the message per chunk.
+     */
+    ChunkedOutputStream(Connection connection, int id, int chunkSize) {
+	this.connection = connection;
+	this.chunk = ByteBuffer.allocate(Message.CHUNK_HEADER_SIZE + chunkSize);
+	this.chunk.putInt(id);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+	this.ensureOpen();
+	if (!this.chunk.hasRemaining())
+	    this.sendChunk(false);
+	this.chunk.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+	this.ensureOpen();
+	while (len > 0) {
+	    if (!this.chunk.hasRemaining())
+		this.sendChunk(false);
+
+	    int count = Math.min(len, this.chunk.remaining());
+	    this.chunk.put(b, off, count);
+	    off += count;
+	    len -= count;
+	}
+    }
+
+    /**
+     * Sends what has been written as the last chunk, or as an ordinary frame if
+     * it all fitted in one chunk.
+     */
+    @Override
+    public void close() throws IOException {
+	if (this.closed)
+	    return;
+	this.closed = true;
+
+	if (this.started)
+	    this.sendChunk(true);
+	else {
+	    ByteBuffer payload = this.chunk.duplicate();
+	    payload.flip();
+	    payload.position(Message.CHUNK_HEADER_SIZE);
+	    this.connection.sendFrame(payload);
+	}
+    }
+
+    /**
+     * Sends the current chunk, and starts a new one. The chunk can be reused
+     * right away, as sending a frame doesn't keep a reference to its payload.
+     * It is signed when the frame is created, so it is fixed by then too.
+     */
+    private void sendChunk(boolean last) throws IOException {
+	ByteBuffer payload = this.chunk.duplicate();
+	payload.flip();
+	this.connection.sendChunk(payload, last);
+
+	this.started = true;
+	this.chunk.position(Message.CHUNK_HEADER_SIZE);
+    }
+
+    private void ensureOpen() throws IOException {
+	if (this.closed)
+	    throw new IOException("The stream has been closed.");
+    }
+}
@@ -7,7 +7,7 @@ import com.yarmis.core.exceptions.UnsuccessfulRequestException;
 class Communication {
 
     public static final int PORT = 4223;
-    private static final char EXCEPTION_SEPARATOR = ':';
+    static final char EXCEPTION_SEPARATOR = ':';
 
     public static final String NOTIFICATION = "notification";
 
@@ -24,6 +24,17 @@ class Communication {
 	public static final String METHOD = "method";
 	public static final String VALUES = "values";
 	public static final String IDENTIFIER = "identifier";
+	/**
+	 * The number of the method, as published by the host in its schema. If
+	 * present, it replaces the module and the method.
+	 */
+	public static final String ID = "id";
+	/**
+	 * The amount of milliseconds that the requester is still waiting for
+	 * the response, when it sends the request. Absent if it waits as long as
+	 * it takes.
+	 */
+	public static final String DEADLINE = "deadline";
     }
 
     public static final String RESPONSE = "response";
@@ -31,6 +42,12 @@ class Communication {
     public static class Value {
 	public static final String TYPE = "type";
 	public static final String VALUE = "value";
+	/**
+	 * The number of an exception in the {@code ExceptionRegistry}. Absent if
+	 * the exception is not known there, in which case the value holds the
+	 * name of its class as well as its message.
+	 */
+	public static final String CODE = "code";
     }
 
     public static final class Response {
@@ -39,6 +56,25 @@ class Communication {
 	public static final String VALUE = "value";
     }
 
+    public static final String BATCH = "batch";
+
+    public static final class Batch {
+	/**
+	 * The requests, or the responses, in the batch.
+	 */
+	public static final String MESSAGES = "messages";
+    }
+
+    public static final String SCHEMA = "schema";
+
+    public static final class Schema {
+	/**
+	 * Maps the key of every method, as in {@code Module.method(ii)}, to its
+	 * number.
+	 */
+	public static final String METHODS = "methods";
+    }
+
     public static final String TYPE = "type";
 
     public static final char convertClassToChar(Class<?> _class) {
@@ -85,34 +121,60 @@ class Communication {
 	}
     }
 
+    /**
+     * Obtains the type character of a value in a JSONObject, as it was put
+     * there by {@code convertClassToChar}.
+     * 
+     * @param value
+     *            The JSONObject that contains the key
+     *            {@code Communication.Value.TYPE}.
+     * @return The type character.
+     */
+    public static final char typeOf(JSONObject value) {
+	return (char) value.getInt(Communication.Value.TYPE);
+    }
+
     /**
      * Parses a value from a JSONObject. It expects that the JSONObject contains
      * the keys {@code Communication.Value.VALUE} and
-     * {@code Communication.Value.TYPE}.
+     * {@code Communication.Value.TYPE}. The value may be held as text, as it
+     * is when it was parsed from JSON, or already as an object of its type, as
+     * it is when it was decoded from binary form.
      * 
      * @param value
      * @return
      */
     public static final Object parseValue(JSONObject value) {
-	String rawVal = value.getString(Communication.Value.VALUE);
+	char type = Communication.typeOf(value);
+	// An exception is still created if it has no message.
+	if (type == EXCEPTION_CHAR)
+	    return parseException(value);
 
-	switch ((char) value.getInt(Communication.Value.TYPE)) {
+	Object rawVal = value.opt(Communication.Value.VALUE);
+	if (rawVal == null || rawVal == JSONObject.NULL)
+	    return null;
+
+	switch (type) {
 	case 'b':
-	    return Boolean.parseBoolean(rawVal);
+	    return rawVal instanceof Boolean ? rawVal : Boolean
+		    .parseBoolean(rawVal.toString());
 	case 'c':
-	    return (char) Integer.parseInt(rawVal);
+	    return rawVal instanceof Number ? (char) ((Number) rawVal)
+		    .intValue() : rawVal.toString().charAt(0);
 	case 'd':
-	    return Double.parseDouble(rawVal);
+	    return rawVal instanceof Number ? ((Number) rawVal).doubleValue()
+		    : Double.parseDouble(rawVal.toString());
 	case 'f':
-	    return Float.parseFloat(rawVal);
+	    return rawVal instanceof Number ? ((Number) rawVal).floatValue()
+		    : Float.parseFloat(rawVal.toString());
 	case 'i':
-	    return Integer.parseInt(rawVal);
+	    return rawVal instanceof Number ? ((Number) rawVal).intValue()
+		    : Integer.parseInt(rawVal.toString());
 	case 'l':
-	    return Long.parseLong(rawVal);
+	    return rawVal instanceof Number ? ((Number) rawVal).longValue()
+		    : Long.parseLong(rawVal.toString());
 	case 's':
-	    return rawVal;
-	case EXCEPTION_CHAR:
-	    return parseException(rawVal);
+	    return rawVal.toString();
 	default:
 	    return null;
 	}
@@ -121,57 +183,66 @@ class Communication {
 
     /**
      * <p>
-     * Tries to parse an Exception from the given raw value. The raw value is
-     * expected to be formed as
-     * {@code com.package.exceptions.MyException:Some error message, which can contain the char :.}
-     * . This would then be inflated into a new instance of MyException, with
-     * {@code Some error message ... } as its message.
+     * Creates an Exception again from a value that was made by
+     * {@code convertException}. If the value has a number, the exception is
+     * created by the {@code ExceptionRegistry}, with the value as its
+     * message.
      * </p>
      * <p>
-     * If the creation of such an exception fails, an
-     * UnsuccesfulRequestException will be thrown instead, containing the entire
-     * raw value.
+     * Otherwise, the value is expected to be formed as
+     * {@code com.package.exceptions.MyException:Some error message, which can contain the char :.}
+     * . This would then be inflated into a new instance of MyException, with
+     * {@code Some error message ... } as its message. If the creation of such
+     * an exception fails, an UnsuccesfulRequestException is created instead,
+     * containing the entire raw value.
      * </p>
      * 
-     * @param rawVal
-     *            The raw value from which to parse the exception.
+     * @param value
+     *            The value from which to parse the exception.
      * @return The created exception.
      */
-    private static final Exception parseException(String rawVal) {
-	int indexOfSplit = rawVal.indexOf(EXCEPTION_SEPARATOR);
-
-	try {
-	    return (Exception) Class.forName(rawVal.substring(0, indexOfSplit))
-		    .getConstructor(String.class)
-		    .newInstance(rawVal.substring(indexOfSplit + 1));
-	} catch (Exception e) {
-	    e.printStackTrace();
-	}
-
-	return new UnsuccessfulRequestException(rawVal);
+    private static final Exception parseException(JSONObject value) {
+	Object rawVal = value.opt(Communication.Value.VALUE);
+	String message = rawVal == null || rawVal == JSONObject.NULL ? null
+		: rawVal.toString();
+
+	int code = value.optInt(Communication.Value.CODE,
+		ExceptionRegistry.UNKNOWN);
+	if (code != ExceptionRegistry.UNKNOWN)
+	    return ExceptionRegistry.create(code, message);
+
+	int indexOfSplit = message == null ? -1 : message
+		.indexOf(EXCEPTION_SEPARATOR);
+	if (indexOfSplit < 0)
+	    return new UnsuccessfulRequestException(message);
+	return ExceptionRegistry.create(message.substring(0, indexOfSplit),
+		message.substring(indexOfSplit + 1));
     }
 
     /**
-     * Converts an Exception to a String, such that it can be used by
-     * parseException to be read into an Exception.
+     * Converts an exception to a value, such that it can be read back into
+     * an Exception by parseValue. An exception that is known by the
+     * {@code ExceptionRegistry} is converted to its number and its message.
+     * Any other exception is converted to the name of its class and its
+     * message.
      * 
      * @param exception
-     * @return
-     */
-    public static final String convertException(Exception exception) {
-	return exception.getClass().getName() + EXCEPTION_SEPARATOR
-		+ exception.getMessage();
-    }
-
-    /**
-     * Creates an identifier. This consists of the IP address, followed by an @
-     * and a time stamp. This makes it unique across devices and across time.
-     * 
-     * @return
+     *            The exception to convert.
+     * @return The value, as a JSONObject.
      */
-    public static final String getIdentifier() {
-	return CommunicationManager.connectivity.localAddress() + "@"
-		+ System.currentTimeMillis();
+    public static final JSONObject convertException(Throwable exception) {
+	JSONObject value = new JSONObject().put(Communication.Value.TYPE,
+		EXCEPTION_CHAR);
+
+	int code = ExceptionRegistry.codeOf(exception);
+	if (code == ExceptionRegistry.UNKNOWN)
+	    return value.put(Communication.Value.VALUE, exception.getClass()
+		    .getName() + EXCEPTION_SEPARATOR + exception.getMessage());
+
+	value.put(Communication.Value.CODE, code);
+	if (exception.getMessage() != null)
+	    value.put(Communication.Value.VALUE, exception.getMessage());
+	return value;
     }
 
     /**
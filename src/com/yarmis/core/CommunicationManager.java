@@ -2,12 +2,20 @@ package com.yarmis.core;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.yarmis.core.Communication.CommunicationException;
+import com.yarmis.core.security.Right;
 
 public class CommunicationManager {
 
@@ -17,9 +25,10 @@ public class CommunicationManager {
     static ConnectivityPlugin connectivity = new ConnectivityPlugin();
 
     /**
-     * A mapping of an identifier to a {@code Connection}.
+     * A mapping of an identifier to a {@code Connection}. Connections are
+     * registered and dropped by the event loops and readers concurrently.
      */
-    private static HashMap<Device, Connection> connections = new HashMap<Device, Connection>();
+    private static final ConcurrentHashMap<Device, Connection> connections = new ConcurrentHashMap<Device, Connection>();
 
     /**
      * The device of the host in the mapping of {@code Connection}s.
@@ -29,17 +38,285 @@ public class CommunicationManager {
     /**
      * The handler that handles messages.
      */
-    private static MessageHandler messageHandler;
+    private static MessageHandler messageHandler = new MessageHandler();
 
     /**
-     * A Mapping of identifiers to the accompanying result objects.
+     * The kind of threads that are used to read from {@code Connection}s and
+     * to run incoming requests. The default can be set with the system
+     * property {@code yarmis.execution}.
      */
-    private static HashMap<String, Result> results = new HashMap<String, Result>();
+    private static ExecutionMode executionMode = ExecutionMode.parse(
+	    System.getProperty("yarmis.execution"), ExecutionMode.PLATFORM);
+
+    /**
+     * The encoding of the messages over {@code Connection}s that are set up
+     * from now on. The default can be set with the system property
+     * {@code yarmis.encoding}.
+     */
+    private static Encoding encoding = Encoding.parse(
+	    System.getProperty("yarmis.encoding"), Encoding.JSON);
+
+    /**
+     * How long a remote call waits for its response, in milliseconds, unless
+     * its method or Module sets a timeout itself. 0 waits as long as it takes,
+     * which is the default unless it is set with the system property
+     * {@code yarmis.timeout}.
+     */
+    private static volatile long timeout = Long.getLong("yarmis.timeout", 0);
+
+    /**
+     * The window in which requests are collected into a batch, in
+     * nanoseconds, or 0 if requests are sent right away. The default can be
+     * set in microseconds with the system property {@code yarmis.batch.window}.
+     */
+    private static volatile long batchWindow = TimeUnit.MICROSECONDS
+	    .toNanos(Long.getLong("yarmis.batch.window", 0));
+
+    /**
+     * The maximum amount of requests in a batch. The default can be set with
+     * the system property {@code yarmis.batch.size}.
+     */
+    private static volatile int maxBatchSize = Integer.getInteger(
+	    "yarmis.batch.size", 64);
+
+    /**
+     * The executor on which the listeners of a {@code Result} are called, or
+     * null to call them on the thread that received the response.
+     */
+    private static volatile Executor callbackExecutor = null;
+
+    /**
+     * Receives the streams of data that are opened by the other side, or null
+     * if they are discarded.
+     */
+    private static volatile StreamHandler streamHandler = null;
+
+    /**
+     * The maximum amount of incoming streams that are consumed at the same
+     * time. The default can be set with the system property
+     * {@code yarmis.streams.threads}.
+     */
+    private static int streamThreads = Integer.getInteger(
+	    "yarmis.streams.threads", 16);
+
+    /**
+     * The executor on which incoming streams are consumed. It is created when
+     * it is needed for the first time.
+     */
+    private static ExecutorService streamExecutor;
+
+    /**
+     * The maximum amount of threads that run incoming requests, or 0 for the
+     * default of the {@code ExecutionMode}. The default can be set with the
+     * system property {@code yarmis.requests.threads}.
+     */
+    private static volatile int requestThreads = Integer.getInteger(
+	    "yarmis.requests.threads", 0);
+
+    /**
+     * The maximum amount of platform threads that run incoming requests,
+     * unless it is set.
+     */
+    private static final int PLATFORM_REQUEST_THREADS = 256;
+
+    /**
+     * The maximum amount of virtual threads that run incoming requests,
+     * unless it is set. A blocked virtual thread only takes the memory of its
+     * stack, so this only guards against running out of memory; the requests
+     * of a single device are held back by the bound on their queue.
+     */
+    private static final int VIRTUAL_REQUEST_THREADS = 16384;
+
+    /**
+     * The maximum amount of incoming requests per device and {@code Priority}
+     * that wait for a thread. The default can be set with the system property
+     * {@code yarmis.requests.queue}.
+     */
+    private static volatile int requestQueueSize = Integer.getInteger(
+	    "yarmis.requests.queue", 1024);
+
+    /**
+     * The priority of the incoming requests that demand a {@code Right}, by
+     * the ordinal of that Right. It is replaced as a whole when it changes.
+     */
+    private static volatile Priority[] rightPriorities = CommunicationManager
+	    .defaultPriorities();
+
+    /**
+     * The {@code RequestReceiver} that runs the requests that are received
+     * while hosting. It is created when it is needed for the first time, and
+     * created again after the settings it depends on have changed.
+     */
+    private static volatile RequestReceiver requestReceiver;
 
     // No instances of CommunicationManager
     private CommunicationManager() {
     }
 
+    /**
+     * Sets the {@code ConnectivityPlugin} that provides the network connection
+     * capabilities. This can not be changed while hosting.
+     * 
+     * @param plugin
+     *            The ConnectivityPlugin to use.
+     */
+    public static void setConnectivityPlugin(ConnectivityPlugin plugin) {
+	if (CommunicationManager.connectivity != null
+		&& CommunicationManager.connectivity.isHosting())
+	    throw new IllegalStateException(
+		    "Can't change the ConnectivityPlugin while hosting.");
+	CommunicationManager.connectivity = plugin;
+    }
+
+    /**
+     * Sets the kind of threads that are used to read from {@code Connection}s
+     * and to run incoming requests. {@code Connection}s that already exist
+     * keep their current reader. Requests that are already running are
+     * completed on their current thread.
+     * 
+     * @param mode
+     *            The ExecutionMode to use.
+     */
+    public static synchronized void setExecutionMode(ExecutionMode mode) {
+	if (mode == null)
+	    throw new IllegalArgumentException("The ExecutionMode can't be null");
+
+	CommunicationManager.executionMode = mode;
+
+	// Let the next request create a receiver that uses the new mode.
+	if (CommunicationManager.requestReceiver != null) {
+	    CommunicationManager.requestReceiver.shutdown();
+	    CommunicationManager.requestReceiver = null;
+	}
+    }
+
+    /**
+     * Obtains the kind of threads that are used to read from
+     * {@code Connection}s and to run incoming requests.
+     * 
+     * @return The current ExecutionMode.
+     */
+    public static ExecutionMode getExecutionMode() {
+	return CommunicationManager.executionMode;
+    }
+
+    /**
+     * Sets how many incoming requests are run at the same time, and how many
+     * may wait for that per device and {@code Priority}. A request that
+     * arrives while the requests of its device and priority that are waiting
+     * already fill up that amount is rejected with an
+     * {@code OverloadedException}. Requests that are already waiting or
+     * running are still completed.
+     * <p>
+     * Unless this is set, at most 256 requests run at the same time on
+     * platform threads, and at most 16384 on virtual threads. Virtual threads
+     * are cheap enough that requests which block, for instance on another
+     * remote call, don't have to wait for each other; what a single device
+     * can have waiting is still bounded by the queue size.
+     * </p>
+     * 
+     * @param threads
+     *            The maximum amount of threads that run requests.
+     * @param queueSize
+     *            The maximum amount of waiting requests per device and
+     *            priority.
+     */
+    public static synchronized void setRequestLimits(int threads,
+	    int queueSize) {
+	if (threads <= 0 || queueSize <= 0)
+	    throw new IllegalArgumentException(
+		    "The amount of threads and the queue size must be positive.");
+
+	CommunicationManager.requestThreads = threads;
+	CommunicationManager.requestQueueSize = queueSize;
+
+	// Let the next request create a receiver that uses the new limits.
+	if (CommunicationManager.requestReceiver != null) {
+	    CommunicationManager.requestReceiver.shutdown();
+	    CommunicationManager.requestReceiver = null;
+	}
+    }
+
+    /**
+     * The maximum amount of threads that run incoming requests on threads of
+     * the given {@code ExecutionMode}.
+     */
+    static int getRequestThreads(ExecutionMode mode) {
+	if (CommunicationManager.requestThreads > 0)
+	    return CommunicationManager.requestThreads;
+	if (mode == ExecutionMode.VIRTUAL && mode.isSupported())
+	    return CommunicationManager.VIRTUAL_REQUEST_THREADS;
+	return CommunicationManager.PLATFORM_REQUEST_THREADS;
+    }
+
+    /**
+     * The maximum amount of incoming requests per device and {@code Priority}
+     * that wait for a thread.
+     */
+    static int getRequestQueueSize() {
+	return CommunicationManager.requestQueueSize;
+    }
+
+    /**
+     * Sets the priority of the incoming requests for the methods that demand
+     * the given {@code Right}. A method that demands several Rights gets the
+     * most urgent of their priorities. Modules can override this with
+     * {@code Module.setPriority}.
+     * 
+     * @param right
+     *            The Right.
+     * @param priority
+     *            The priority of the requests that demand it.
+     */
+    public static synchronized void setPriority(Right right, Priority priority) {
+	if (priority == null)
+	    throw new IllegalArgumentException("The Priority can't be null");
+
+	Priority[] priorities = CommunicationManager.rightPriorities.clone();
+	priorities[right.ordinal()] = priority;
+	CommunicationManager.rightPriorities = priorities;
+    }
+
+    /**
+     * Obtains the priority of the incoming requests for the methods that
+     * demand the given {@code Right}.
+     */
+    public static Priority getPriority(Right right) {
+	return CommunicationManager.rightPriorities[right.ordinal()];
+    }
+
+    /**
+     * Controlling what is playing is what people wait for, while browsing the
+     * library or downloading a playlist is bulk work.
+     */
+    private static Priority[] defaultPriorities() {
+	Priority[] priorities = new Priority[Right.values().length];
+	Arrays.fill(priorities, Priority.NORMAL);
+	priorities[Right.PLAY_STATE.ordinal()] = Priority.HIGH;
+	priorities[Right.PLAY_ORDER.ordinal()] = Priority.HIGH;
+	priorities[Right.LIBRARY_SEARCH_ACCESS.ordinal()] = Priority.LOW;
+	priorities[Right.PLAYLIST_DOWNLOAD.ordinal()] = Priority.LOW;
+	return priorities;
+    }
+
+    /**
+     * Obtains the RequestReceiver, creating it if it doesn't exist yet. This
+     * runs for every incoming request, so the lock is only taken to create
+     * it.
+     */
+    private static RequestReceiver requestReceiver() {
+	RequestReceiver receiver = CommunicationManager.requestReceiver;
+	if (receiver != null)
+	    return receiver;
+
+	synchronized (CommunicationManager.class) {
+	    if (CommunicationManager.requestReceiver == null)
+		CommunicationManager.requestReceiver = new RequestReceiver(
+			CommunicationManager.executionMode);
+	    return CommunicationManager.requestReceiver;
+	}
+    }
+
     /**
      * Verifies that a ConnectivityPlugin has been set properly. If this is not
      * the case an exception will be thrown. Otherwise the method will terminate
@@ -51,6 +328,189 @@ public class CommunicationManager {
 		    "The ConnectivityPlugin was not set");
     }
 
+    /**
+     * Sets the encoding of the messages over {@code Connection}s that are set
+     * up from now on. The encoding of an existing Connection can be set with
+     * {@code Connection.setEncoding}.
+     * 
+     * @param encoding
+     *            The encoding to use.
+     */
+    public static void setEncoding(Encoding encoding) {
+	CommunicationManager.encoding = encoding;
+    }
+
+    /**
+     * The encoding of the messages over {@code Connection}s that are set up
+     * from now on.
+     */
+    public static Encoding getEncoding() {
+	return CommunicationManager.encoding;
+    }
+
+    /**
+     * Sets how long a remote call waits for its response, unless its method or
+     * Module sets a timeout itself. If no response has come in by then, the
+     * call fails with a {@code RequestTimeoutException}.
+     * 
+     * @param timeout
+     *            The timeout, or 0 to wait as long as it takes.
+     * @param unit
+     *            The unit of the timeout.
+     */
+    public static void setTimeout(long timeout, TimeUnit unit) {
+	if (timeout < 0)
+	    throw new IllegalArgumentException("The timeout can't be negative.");
+	CommunicationManager.timeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * How long a remote call waits for its response, in milliseconds, unless
+     * its method or Module sets a timeout itself.
+     */
+    static long getTimeout() {
+	return CommunicationManager.timeout;
+    }
+
+    /**
+     * Sets the executor on which the listeners of a {@code Result} are called
+     * from now on. Without one, they are called on the thread that received
+     * the response, which then can't read other responses until they return.
+     * 
+     * @param executor
+     *            The executor, or null to call the listeners on the thread
+     *            that received the response.
+     * @see Result#addOnResultReceivedListener(Result.OnResultReceivedListener)
+     */
+    public static void setCallbackExecutor(Executor executor) {
+	CommunicationManager.callbackExecutor = executor;
+    }
+
+    /**
+     * The executor on which the listeners of a {@code Result} are called, or
+     * null if they are called on the thread that received the response.
+     */
+    static Executor getCallbackExecutor() {
+	return CommunicationManager.callbackExecutor;
+    }
+
+    /**
+     * Sets what receives the streams of data that the other side opens with
+     * {@code Connection.openDataStream()}. Each stream is handed over as soon
+     * as its first chunk comes in, on a thread of the stream executor.
+     * 
+     * @param handler
+     *            The StreamHandler, or null to discard the streams.
+     */
+    public static void setStreamHandler(StreamHandler handler) {
+	CommunicationManager.streamHandler = handler;
+    }
+
+    /**
+     * What receives the streams of data, or null if they are discarded.
+     */
+    static StreamHandler getStreamHandler() {
+	return CommunicationManager.streamHandler;
+    }
+
+    /**
+     * Sets how many incoming streams, of data or of messages that are too
+     * large for a single frame, are consumed at the same time. A stream that
+     * comes in while that many are being consumed is discarded, rather than
+     * kept waiting, as the Connection that it comes in over would stop
+     * reading once it is full. Streams that are already being consumed are
+     * completed.
+     * 
+     * @param threads
+     *            The maximum amount of threads that consume streams.
+     */
+    public static synchronized void setStreamThreads(int threads) {
+	if (threads <= 0)
+	    throw new IllegalArgumentException(
+		    "The amount of threads must be positive.");
+
+	CommunicationManager.streamThreads = threads;
+
+	// Let the next stream create an executor that uses the new limit.
+	if (CommunicationManager.streamExecutor != null) {
+	    CommunicationManager.streamExecutor.shutdown();
+	    CommunicationManager.streamExecutor = null;
+	}
+    }
+
+    /**
+     * Obtains the executor on which incoming streams are consumed, creating
+     * it if it doesn't exist yet. It rejects a stream while all of its
+     * threads are busy.
+     */
+    static synchronized Executor getStreamExecutor() {
+	if (CommunicationManager.streamExecutor == null) {
+	    final ExecutionMode mode = CommunicationManager.executionMode;
+	    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+		    CommunicationManager.streamThreads,
+		    CommunicationManager.streamThreads, 60, TimeUnit.SECONDS,
+		    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable task) {
+			    return mode.newThread(task, "yarmis-stream");
+			}
+
+		    });
+	    executor.allowCoreThreadTimeOut(true);
+	    CommunicationManager.streamExecutor = executor;
+	}
+	return CommunicationManager.streamExecutor;
+    }
+
+    /**
+     * Sets the window in which requests are collected into a single batch.
+     * The requests that are made within the window of the first one are sent
+     * together, and answered together. This saves a frame, and a write, per
+     * request, at the cost of up to a window of extra latency. The thread that
+     * makes a request doesn't wait for the window; the batch is written on
+     * another thread once the window has passed.
+     * 
+     * @param window
+     *            The window, or 0 to send every request right away.
+     * @param unit
+     *            The unit of the window.
+     */
+    public static void setBatchWindow(long window, TimeUnit unit) {
+	if (window < 0)
+	    throw new IllegalArgumentException("The window can't be negative.");
+	CommunicationManager.batchWindow = unit.toNanos(window);
+    }
+
+    /**
+     * The window in which requests are collected into a batch, in
+     * nanoseconds, or 0 if batching is disabled.
+     */
+    static long getBatchWindow() {
+	return CommunicationManager.batchWindow;
+    }
+
+    /**
+     * Sets the maximum amount of requests in a batch. A batch that is full is
+     * sent right away, before its window has passed.
+     * 
+     * @param size
+     *            The maximum amount of requests.
+     */
+    public static void setMaxBatchSize(int size) {
+	if (size < 1)
+	    throw new IllegalArgumentException(
+		    "A batch must be able to hold a request.");
+	CommunicationManager.maxBatchSize = size;
+    }
+
+    /**
+     * The maximum amount of requests in a batch.
+     */
+    static int getMaxBatchSize() {
+	return CommunicationManager.maxBatchSize;
+    }
+
     /**
      * Registers the given Connection as an active connection.
      * 
@@ -59,15 +519,22 @@ public class CommunicationManager {
      */
     static void register(Connection connection) {
 
-	if (CommunicationManager.connections
-		.containsKey(connection.getDevice()))
+	// TODO further administration regarding registering Connections.
+	if (CommunicationManager.connections.putIfAbsent(
+		connection.getDevice(), connection) != null)
 	    throw new IllegalArgumentException(
 		    "A Connection is already registered for device: "
 			    + connection.getDevice().getName());
 
-	// TODO further administration regarding registering Connections.
-	connections.put(connection.getDevice(), connection);
+    }
 
+    /**
+     * Publishes the current schema of the Modules over all active
+     * connections.
+     */
+    static void publishSchema() {
+	for (Connection connection : CommunicationManager.connections.values())
+	    connection.publishSchema();
     }
 
     /**
@@ -80,13 +547,12 @@ public class CommunicationManager {
      */
     static void drop(Device device) {
 
-	if (!CommunicationManager.connections.containsKey(device))
+	// TODO further administration regarding dropping Connections.
+	if (device == null
+		|| CommunicationManager.connections.remove(device) == null)
 	    throw new IllegalArgumentException(
 		    "No Connection is registered for device: "
-			    + device.getName());
-
-	// TODO further administration regarding dropping Connections.
-	connections.remove(device);
+			    + (device == null ? null : device.getName()));
 
     }
 
@@ -123,40 +589,32 @@ public class CommunicationManager {
     }
 
     /**
-     * Registers a Result for the given identifier.
-     * 
-     * @param identifier
-     * @return
-     */
-    private static Result register(String identifier) {
-	Result result = new Result();
-	CommunicationManager.results.put(identifier, result);
-	return result;
-    }
-
-    /**
-     * Requests for the given method to be executed by the Host.
+     * Requests for the given method to be executed by the Host. This doesn't
+     * wait for the requests that are still outstanding, the Host answers each
+     * of them as soon as it completes.
      * 
      * @param m
      *            The Method to execute on the Host.
+     * @param timeout
+     *            How long to wait for the response in milliseconds, or 0 to
+     *            wait as long as it takes.
      * @param args
      *            The arguments to provide to the Host
      * @return A Result object that can be used to retrieve the return value.
      */
-    static Result request(Method m, Object... args) {
+    static Result request(Method m, long timeout, Object... args) {
 
 	verifyConnectivityPlugin();
 
-	String identifier = Communication.getIdentifier();
-	Result result = register(identifier);
+	Connection connection = CommunicationManager.connections.get(HOST);
+	if (connection == null)
+	    throw new CommunicationException(new IOException(
+		    "Not connected to a host."));
 
-	try {
-	    CommunicationManager.connections.get(HOST).send(
-		    makeRequest(identifier, m, args));
-	} catch (IOException e) {
-	    throw new CommunicationException(e);
-	}
-	return result;
+	RequestSender sender = connection.getRequestSender();
+	long identifier = sender.nextIdentifier();
+	return sender.send(identifier,
+		makeRequest(identifier, connection, m, args), timeout);
 
     }
 
@@ -169,6 +627,10 @@ public class CommunicationManager {
      * 
      * @param identifier
      *            The identifier to use for this request
+     * @param connection
+     *            The connection over which the request is sent. If the other
+     *            side has published a number for the method, the method is
+     *            named by that number.
      * @param m
      *            The method that needs to be requested
      * @param args
@@ -177,19 +639,31 @@ public class CommunicationManager {
      * @return The created JSONObject, containing a request for the invocation
      *         of the given method, with the given arguments.
      */
-    private static JSONObject makeRequest(String identifier, Method m,
-	    Object... args) {
+    private static JSONObject makeRequest(long identifier,
+	    Connection connection, Method m, Object... args) {
 	JSONObject obj = new JSONObject();
+	obj.put(Communication.TYPE, Communication.REQUEST);
 	obj.put(Communication.Request.IDENTIFIER, identifier);
-	obj.put(Communication.Request.METHOD, m.getName());
-	obj.put(Communication.Request.MODULE, m.getDeclaringClass()
-		.getSimpleName());
+	// The deadline is added by the RequestSender, once it is written.
+
+	String module = m.getDeclaringClass().getSimpleName();
+	DispatchTable table = ModuleManager.getDispatchTable(module);
+	DispatchTable.Entry entry = table == null ? null : table.lookup(m);
+	int id = entry == null ? -1 : connection.getRemoteId(entry);
+	if (id >= 0)
+	    obj.put(Communication.Request.ID, id);
+	else {
+	    // The other side hasn't published a number for it (yet).
+	    obj.put(Communication.Request.METHOD, m.getName());
+	    obj.put(Communication.Request.MODULE, module);
+	}
+
+	Class<?>[] types = m.getParameterTypes();
 	JSONArray arguments = new JSONArray();
 	for (int i = 0; i < args.length; ++i)
-	    arguments.put((new JSONObject()).put(
-		    Communication.Value.TYPE,
-		    Communication.convertClassToChar(m.getParameterTypes()[i]))
-		    .put(Communication.Value.VALUE, args[i]));
+	    arguments.put((new JSONObject()).put(Communication.Value.TYPE,
+		    Communication.convertClassToChar(types[i])).put(
+		    Communication.Value.VALUE, args[i]));
 
 	obj.put(Communication.Request.VALUES, arguments);
 
@@ -211,20 +685,23 @@ public class CommunicationManager {
      * @return The created JSONObject, containing a response for the execution
      *         of the request with the same identifier.
      */
-    private static JSONObject makeResponse(String identifier, boolean success,
+    private static JSONObject makeResponse(long identifier, boolean success,
 	    Object value) {
 	JSONObject obj = new JSONObject();
+	obj.put(Communication.TYPE, Communication.RESPONSE);
 	obj.put(Communication.Response.IDENTIFIER, identifier);
 	obj.put(Communication.Response.SUCCESS, success);
 
 	if (value == null)
 	    obj.put(Communication.Response.VALUE, (Object) null);
+	else if (!success)
+	    obj.put(Communication.Response.VALUE,
+		    Communication.convertException((Throwable) value));
 	else
 	    obj.put(Communication.Response.VALUE,
 		    new JSONObject().put(Communication.Value.TYPE,
 			    Communication.convertClassToChar(value.getClass()))
-			    .put(Communication.Value.VALUE,
-				    (success) ? value : Communication.convertException((Exception)value)));
+			    .put(Communication.Value.VALUE, value));
 
 	return obj;
     }
@@ -244,12 +721,10 @@ public class CommunicationManager {
      *            The value that came from the execution of the given request
      *            message
      */
-    private static void respondToMessage(JSONObject message,
+    static void respondToMessage(JSONObject message,
 	    Connection connection, boolean success, Object value) {
 	try {
-	    connection.send(makeResponse(
-		    message.getString(Communication.Request.IDENTIFIER),
-		    success, value));
+	    connection.send(makeResponse(message, success, value));
 
 	} catch (IOException e) {
 	    e.printStackTrace();
@@ -257,6 +732,32 @@ public class CommunicationManager {
 
     }
 
+    /**
+     * Creates a JSON response to the given request message.
+     * 
+     * @see #respondToMessage(JSONObject, Connection, boolean, Object)
+     */
+    static JSONObject makeResponse(JSONObject message, boolean success,
+	    Object value) {
+	return makeResponse(message.getLong(Communication.Request.IDENTIFIER),
+		success, value);
+    }
+
+    /**
+     * Creates a batch of the given requests or responses, which is sent as a
+     * single message.
+     * 
+     * @param messages
+     *            The requests or the responses.
+     * @return The created JSONObject, containing the batch.
+     */
+    static JSONObject makeBatch(JSONArray messages) {
+	JSONObject obj = new JSONObject();
+	obj.put(Communication.TYPE, Communication.BATCH);
+	obj.put(Communication.Batch.MESSAGES, messages);
+	return obj;
+    }
+
     /**
      * Entry point for incoming messages. This needs to be called by a
      * Connection to indicate that it received a message. This checks the
@@ -299,7 +800,13 @@ public class CommunicationManager {
 		    this.handleNotification(message);
 		// Response
 		else if (Communication.RESPONSE.equalsIgnoreCase(type))
-		    this.handleResponse(message);
+		    receiver.getRequestSender().report(message);
+		// Batch of requests or responses
+		else if (Communication.BATCH.equalsIgnoreCase(type))
+		    this.handleBatch(message, receiver);
+		// Schema
+		else if (Communication.SCHEMA.equalsIgnoreCase(type))
+		    receiver.learnSchema(message);
 		// Request - May throw an Exception
 		else if (Communication.REQUEST.equalsIgnoreCase(type))
 		    this.handleRequest(message, receiver);
@@ -310,8 +817,14 @@ public class CommunicationManager {
 			    + " is unexpected.");
 
 	    } catch (Throwable throwable) {
-		CommunicationManager.respondToMessage(message, receiver, false,
-			throwable);
+		// Only requests are answered, answering anything else could
+		// start an endless exchange of failures.
+		if (Communication.REQUEST.equalsIgnoreCase(message
+			.optString(Communication.TYPE)))
+		    CommunicationManager.respondToMessage(message, receiver,
+			    false, throwable);
+		else
+		    throwable.printStackTrace();
 	    }
 	}
 
@@ -327,24 +840,46 @@ public class CommunicationManager {
 	}
 
 	/**
-	 * Handle for dealing with responses. This will release the
-	 * {@code Result} waiting for this response.
+	 * Handle for dealing with batches. The messages in the batch are
+	 * handled one by one, except that the responses to the requests in it
+	 * are sent back in a single batch, once all of them have been
+	 * performed.
 	 * 
-	 * @param response
-	 *            THe response that was received.
+	 * @param batch
+	 *            The batch that was received.
+	 * @param connection
+	 *            The {@code Connection} over which it was received.
 	 */
-	private void handleResponse(JSONObject response) {
-	    String identifier = response
-		    .getString(Communication.Response.IDENTIFIER);
-	    if (CommunicationManager.results.containsKey(identifier))
-		CommunicationManager.results.get(identifier).set(response);
-	    else
-		throw new IllegalStateException("Request " + identifier
-			+ " is not known as an outstanding request.");
+	private void handleBatch(JSONObject batch, Connection connection) {
+	    JSONArray messages = batch
+		    .getJSONArray(Communication.Batch.MESSAGES);
+
+	    int requests = 0;
+	    for (int i = 0; i < messages.length(); ++i)
+		if (Communication.REQUEST.equalsIgnoreCase(messages
+			.getJSONObject(i).optString(Communication.TYPE)))
+		    ++requests;
+	    ResponseBatch responses = new ResponseBatch(connection, requests);
+
+	    for (int i = 0; i < messages.length(); ++i) {
+		JSONObject message = messages.getJSONObject(i);
+		if (!Communication.REQUEST.equalsIgnoreCase(message
+			.optString(Communication.TYPE)))
+		    this.handleIncomingMessage(message, connection);
+		else if (!CommunicationManager.connectivity.isHosting())
+		    responses.add(CommunicationManager.makeResponse(message,
+			    false, new IllegalStateException(
+				    "Can't handle a request when not hosting")));
+		else
+		    CommunicationManager.requestReceiver().handleRequest(
+			    message, connection, responses);
+	    }
 	}
 
 	/**
-	 * Handle for dealing with requests.
+	 * Handle for dealing with requests. The request is run by the
+	 * {@code RequestReceiver}, which also sends the response, such that the
+	 * thread that received the request is free to read the next message.
 	 * 
 	 * @param request
 	 * @param connection
@@ -353,8 +888,8 @@ public class CommunicationManager {
 	private void handleRequest(JSONObject request, Connection connection)
 		throws Throwable {
 	    if (CommunicationManager.connectivity.isHosting())
-		CommunicationManager.respondToMessage(request, connection,
-			true, ModuleManager.handleRequest(request, SecurityManager.getRights(connection.getDevice())));
+		CommunicationManager.requestReceiver().handleRequest(request,
+			connection);
 	    else
 		throw new IllegalStateException(
 			"Can't handle a request when not hosting");
@@ -1,13 +1,27 @@
 package com.yarmis.core;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -29,6 +43,36 @@ public class Connection {
      */
     boolean isClosed = false;
 
+    /**
+     * The size of the buffer that is initially used to read frames.
+     */
+    static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The maximum size of the payload of a single frame. Larger messages are
+     * sent in chunks of this size.
+     */
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Set in the identifier of a stream of data, as opened by
+     * {@code openDataStream}, to tell it apart from a message that is sent in
+     * chunks.
+     */
+    private static final int DATA_STREAM = 0x80000000;
+
+    /**
+     * The size of the buffer in which the queued frames are collected before
+     * they are written to the output stream.
+     */
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The amount of bytes that may be queued before a sender has to help
+     * writing them out.
+     */
+    static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
     private final InputStream inputStream;
 
     private final OutputStream outputStream;
@@ -38,6 +82,79 @@ public class Connection {
      */
     private final Device device;
 
+    /**
+     * Provides the identifiers for the streams that are sent over this
+     * Connection.
+     */
+    private final AtomicInteger nextStream = new AtomicInteger();
+
+    /**
+     * The streams that are being received over this Connection, by their
+     * identifier.
+     */
+    private final ConcurrentHashMap<Integer, ChunkedInputStream> incomingStreams = new ConcurrentHashMap<Integer, ChunkedInputStream>();
+
+    /**
+     * The amount of incoming streams whose reader has fallen behind. Nothing
+     * is read from this Connection until it is 0 again.
+     */
+    private final AtomicInteger throttlingStreams = new AtomicInteger();
+
+    /**
+     * Notified when the Reader may go on reading.
+     */
+    private final Object readable = new Object();
+
+    /**
+     * The keys with which the frames over this Connection are signed.
+     */
+    private final Session session = new Session();
+
+    /**
+     * Held while a frame is signed and sent, such that the frames are sent in
+     * the order of their nonces.
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * The frames that are waiting to be written to the output stream, in
+     * buffers from the {@code BufferPool}.
+     */
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * The amount of bytes in the outgoing frames.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Held by the thread that writes the outgoing frames.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The buffer in which the outgoing frames are collected, such that many
+     * small frames take a single write. Only used while holding the write
+     * lock.
+     */
+    private byte[] writeBuffer;
+
+    /**
+     * The numbers of the methods of the other side, by their key, as published
+     * in its schema.
+     */
+    private final ConcurrentHashMap<String, Integer> remoteMethods = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Sends the requests over this Connection and matches their responses.
+     */
+    private final RequestSender requestSender = new RequestSender(this);
+
+    /**
+     * The encoding of the messages that are sent over this Connection.
+     */
+    private volatile Encoding encoding = CommunicationManager.getEncoding();
+
     /**
      * Connects to a specific device, based on its address and port
      */
@@ -61,8 +178,58 @@ public class Connection {
 	this.setup();
     }
 
+    /**
+     * Creates a Connection for a transport that delivers the incoming messages
+     * itself, through {@code receive(Message)}. No Reader is started for such a
+     * Connection, and the transport has to call {@code startSession()} once it
+     * is ready to send.
+     * 
+     * @param identifier
+     *            The address of the device to which this is a Connection.
+     */
+    protected Connection(InetAddress identifier) {
+	this.inputStream = null;
+	this.outputStream = null;
+	this.device = this.identifyDevice(identifier);
+    }
+
+    /**
+     * Creates a Connection to the given device for a transport that delivers
+     * the incoming messages itself, through {@code receive(Message)}. No
+     * Reader is started for such a Connection, and the transport has to call
+     * {@code startSession()} once it is ready to send.
+     * 
+     * @param device
+     *            The device to which this is a Connection.
+     */
+    protected Connection(Device device) {
+	this.inputStream = null;
+	this.outputStream = null;
+	this.device = device;
+    }
+
     private final void setup() {
-	(new Thread(new Reader())).start();
+	CommunicationManager.getExecutionMode()
+		.newThread(new Reader(), "yarmis-reader-" + this.device.getName())
+		.start();
+
+	try {
+	    this.startSession();
+	} catch (IOException e) {
+	    // The Reader finds out that the stream is closed, and drops this
+	    // Connection.
+	}
+    }
+
+    /**
+     * Sends the handshake that sets up the session of this Connection. Nothing
+     * else is sent until the handshake of the other side has been received.
+     * 
+     * @throws IOException
+     */
+    protected final void startSession() throws IOException {
+	this.send(Message.frame(ByteBuffer.wrap(this.session.hello().toString()
+		.getBytes(StandardCharsets.UTF_8))));
     }
 
     private final Device identifyDevice(InetAddress identifier) {
@@ -74,11 +241,14 @@ public class Connection {
 	return this.device;
     }
 
-    public final void close() throws IOException {
+    public void close() throws IOException {
 	this.isClosed = true;
+	this.readingChanged();
 
-	this.inputStream.close();
-	this.outputStream.close();
+	if (this.inputStream != null)
+	    this.inputStream.close();
+	if (this.outputStream != null)
+	    this.outputStream.close();
     }
 
     /**
@@ -96,22 +266,281 @@ public class Connection {
      * connection, or @code{null} if no public key is associated with this
      * connection.
      * 
-     * @return [description]
+     * @return The fingerprint of the identity that the other side authenticated
+     *         with during the handshake, or null if it is anonymous or if the
+     *         handshake hasn't completed yet.
      */
     public String getKeyFingerprint() {
-	return null;
+	return this.session.getFingerprint();
+    }
+
+    /**
+     * The sender of the requests over this Connection.
+     */
+    RequestSender getRequestSender() {
+	return this.requestSender;
+    }
+
+    /**
+     * The statistics of the batches of requests that have been sent over this
+     * Connection.
+     * 
+     * @see CommunicationManager#setBatchWindow(long, java.util.concurrent.TimeUnit)
+     */
+    public BatchStatistics getBatchStatistics() {
+	return this.requestSender.getBatchStatistics();
+    }
+
+    /**
+     * Sets the encoding of the messages that are sent over this Connection from
+     * now on. Messages in either encoding are always understood when they are
+     * received.
+     * 
+     * @param encoding
+     *            The encoding to use.
+     */
+    public void setEncoding(Encoding encoding) {
+	this.encoding = encoding;
+    }
+
+    /**
+     * The encoding of the messages that are sent over this Connection.
+     */
+    public Encoding getEncoding() {
+	return this.encoding;
     }
 
     /**
-     * Sends a JSONObject over the connection.
+     * Sends a JSONObject over the connection. The JSONObject is sent as the
+     * payload of a single {@code Message} frame, or in chunks if it is larger
+     * than {@code CHUNK_SIZE}. The payload is the UTF-8 encoded JSON text of
+     * the message, or its binary form if that is the encoding of this
+     * Connection.
      * 
      * @param message
      *            The message to send
      * @throws IOException
      */
     protected void send(JSONObject message) throws IOException {
-	new BufferedWriter(new OutputStreamWriter(this.outputStream))
-		.write(message.toString());
+	if (this.encoding == Encoding.BINARY) {
+	    byte[] payload = BinaryCodec.encode(message);
+	    // Messages that have no binary form are sent as JSON text.
+	    if (payload != null) {
+		this.send(payload);
+		return;
+	    }
+	}
+
+	String text = message.toString();
+
+	// Every char takes at least one byte.
+	if (text.length() <= Connection.CHUNK_SIZE) {
+	    byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+	    if (payload.length <= Connection.CHUNK_SIZE) {
+		this.sendFrame(ByteBuffer.wrap(payload));
+		return;
+	    }
+	}
+
+	Writer writer = new OutputStreamWriter(this.openStream(),
+		StandardCharsets.UTF_8);
+	writer.write(text);
+	writer.close();
+    }
+
+    /**
+     * Sends an encoded message, in a single frame or in chunks.
+     */
+    private void send(byte[] payload) throws IOException {
+	if (payload.length <= Connection.CHUNK_SIZE) {
+	    this.sendFrame(ByteBuffer.wrap(payload));
+	    return;
+	}
+
+	OutputStream stream = this.openStream();
+	stream.write(payload);
+	stream.close();
+    }
+
+    /**
+     * Opens a stream over which a logical message of any size can be sent.
+     * What is written is sent in chunks of {@code CHUNK_SIZE} bytes, and the
+     * message is complete once the stream is closed. The receiving side gets
+     * it as a {@code ChunkedInputStream}.
+     * 
+     * @return The opened stream.
+     */
+    protected OutputStream openStream() {
+	return new ChunkedOutputStream(this, this.nextStream.getAndIncrement()
+		& ~Connection.DATA_STREAM, Connection.CHUNK_SIZE);
+    }
+
+    /**
+     * Opens a stream over which data of any size can be sent. What is written
+     * is sent in chunks, and the stream is complete once it is closed. The
+     * receiving side hands it to its {@code StreamHandler} as a
+     * {@code ChunkedInputStream}, as it comes in.
+     * 
+     * @return The opened stream.
+     * @see CommunicationManager#setStreamHandler(StreamHandler)
+     */
+    public OutputStream openDataStream() {
+	return new ChunkedOutputStream(this, this.nextStream.getAndIncrement()
+		| Connection.DATA_STREAM, Connection.CHUNK_SIZE);
+    }
+
+    /**
+     * Sends a frame with the given payload, signed with the key of the
+     * session. This waits until the session is established.
+     * 
+     * @param payload
+     *            The payload, from its position up to its limit.
+     * @throws IOException
+     *             If the session could not be established.
+     */
+    void sendFrame(ByteBuffer payload) throws IOException {
+	this.session.await();
+	// The frames have to go out in the order of their nonces, otherwise a
+	// frame that is overtaken by many others looks like a replay.
+	synchronized (this.sendLock) {
+	    this.queue(this.session.frame(payload));
+	}
+	this.flush();
+    }
+
+    /**
+     * Sends a frame that carries one chunk of a larger logical message,
+     * signed with the key of the session. This waits until the session is
+     * established.
+     * 
+     * @see Message#chunk(ByteBuffer, boolean)
+     * @throws IOException
+     *             If the session could not be established.
+     */
+    void sendChunk(ByteBuffer payload, boolean last) throws IOException {
+	this.session.await();
+	synchronized (this.sendLock) {
+	    this.queue(this.session.chunk(payload, last));
+	}
+	this.flush();
+    }
+
+    /**
+     * Creates a reader for the frames that are received over this connection.
+     * It skips the frames that were received before, based on their nonce.
+     * 
+     * @return The reader.
+     */
+    protected Message.MessageReader newReader() {
+	return this.session.newReader();
+    }
+
+    /**
+     * Sends a {@code Message} frame over the connection. Frames that are sent
+     * by different threads are never interleaved.
+     * 
+     * @param message
+     *            The frame to send
+     * @throws IOException
+     */
+    protected void send(Message message) throws IOException {
+	this.queue(message);
+	this.flush();
+    }
+
+    /**
+     * Adds a {@code Message} frame to the frames that are waiting to be
+     * written, without writing it yet. The frames are written in the order in
+     * which they were queued. If too many bytes are waiting already, this
+     * writes them before it returns.
+     * 
+     * @param message
+     *            The frame to queue.
+     * @throws IOException
+     *             If the waiting frames could not be written.
+     */
+    protected void queue(Message message) throws IOException {
+	ByteBuffer frame = BufferPool.DEFAULT.acquire(message.size());
+	message.writeTo(frame);
+	frame.flip();
+
+	this.outgoing.add(frame);
+	long queued = this.queuedBytes.addAndGet(frame.remaining());
+	if (queued <= Connection.MAX_QUEUED_BYTES)
+	    return;
+
+	// The writer can't keep up, so wait for it and help out.
+	this.writeLock.lock();
+	try {
+	    this.writeQueued();
+	} finally {
+	    this.writeLock.unlock();
+	}
+    }
+
+    /**
+     * Makes sure that the frames that have been queued are written. If
+     * another thread is writing already, that thread writes them as well and
+     * this returns right away, so a failure to write shows up on that thread.
+     * 
+     * @throws IOException
+     *             If the waiting frames could not be written.
+     */
+    protected void flush() throws IOException {
+	do {
+	    if (!this.writeLock.tryLock())
+		return;
+	    try {
+		this.writeQueued();
+	    } finally {
+		this.writeLock.unlock();
+	    }
+	    // A frame may have been queued by a thread that found the lock taken
+	    // just before it was released.
+	} while (!this.outgoing.isEmpty());
+    }
+
+    /**
+     * Writes the waiting frames to the output stream, collecting them in the
+     * write buffer, such that many small frames take a single write, and
+     * flushes it once no frames are left. The buffers of the frames go back to
+     * the pool. Must hold the write lock.
+     */
+    private void writeQueued() throws IOException {
+	if (this.outgoing.isEmpty())
+	    return;
+	if (this.writeBuffer == null)
+	    this.writeBuffer = new byte[Connection.WRITE_BUFFER_SIZE];
+
+	ByteBuffer frame = null;
+	try {
+	    int position = 0;
+	    while ((frame = this.outgoing.poll()) != null) {
+		this.queuedBytes.addAndGet(-frame.remaining());
+		// A frame that doesn't fit goes through the buffer in parts.
+		while (frame.hasRemaining()) {
+		    if (position == this.writeBuffer.length) {
+			this.outputStream.write(this.writeBuffer, 0, position);
+			position = 0;
+		    }
+		    int count = Math.min(frame.remaining(),
+			    this.writeBuffer.length - position);
+		    frame.get(this.writeBuffer, position, count);
+		    position += count;
+		}
+		BufferPool.DEFAULT.release(frame);
+	    }
+	    if (position > 0)
+		this.outputStream.write(this.writeBuffer, 0, position);
+	    this.outputStream.flush();
+	} catch (IOException e) {
+	    // The stream is broken, so the rest can't be sent either.
+	    BufferPool.DEFAULT.release(frame);
+	    while ((frame = this.outgoing.poll()) != null)
+		BufferPool.DEFAULT.release(frame);
+	    this.queuedBytes.set(0);
+	    throw e;
+	}
     }
 
     protected void receive(JSONObject message) {
@@ -121,30 +550,335 @@ public class Connection {
     }
 
     /**
-     * Reads the incoming messages over this connection.
+     * Handles a complete {@code Message} frame that was received over this
+     * connection. The payload of the frame is the UTF-8 encoded JSON text of
+     * the message, or its binary form. Until the session is established, only the handshake of the
+     * other side is accepted, and afterwards only frames that it has signed.
      * 
-     * @author Maurice
+     * @param message
+     *            The frame that was received.
+     */
+    protected void receive(Message message) {
+	if (!this.session.isEstablished()) {
+	    this.receiveHandshake(message);
+	    return;
+	}
+	if (!this.session.isAuthentic(message))
+	    return;
+
+	if (message.isChunk()) {
+	    this.receiveChunk(message);
+	    return;
+	}
+
+	ByteBuffer payload = message.getPayloadBuffer();
+	try {
+	    if (BinaryCodec.isBinary(payload))
+		this.receive(BinaryCodec.decode(payload));
+	    else
+		this.receive(new JSONObject(StandardCharsets.UTF_8.decode(
+			payload).toString()));
+	} catch (JSONException e) {
+	    // The other side sent something that isn't a message.
+	    e.printStackTrace();
+	} catch (IOException e) {
+	    // The binary form is malformed.
+	}
+    }
+
+    /**
+     * Learns the numbers of the methods of the other side from its schema.
      * 
+     * @param schema
+     *            The schema that the other side published.
      */
-    private final class Reader implements Runnable {
+    void learnSchema(JSONObject schema) {
+	JSONObject methods = schema.getJSONObject(Communication.Schema.METHODS);
+	for (String key : methods.keySet())
+	    this.remoteMethods.put(key, methods.getInt(key));
+	// A schema lists all methods, so those it leaves out have been retired.
+	this.remoteMethods.keySet().retainAll(methods.keySet());
+    }
 
-	public void run() {
-	    BufferedReader reader = null;
-	    reader = new BufferedReader(new InputStreamReader(
-		    Connection.this.inputStream));
+    /**
+     * Publishes the current schema of the Modules to the other side, if the
+     * session has been established. Otherwise the schema is published once
+     * the handshake of the other side comes in.
+     */
+    void publishSchema() {
+	if (!this.session.isEstablished())
+	    return;
+	try {
+	    this.send(ModuleManager.createSchema());
+	} catch (IOException e) {
+	    // Nothing can be sent anymore, which will show up on the other side.
+	}
+    }
 
-	    JSONTokener tokener = new JSONTokener(reader);
-	    while (!Connection.this.isClosed && tokener.more()) {
-		try {
-		    Connection.this.receive(new JSONObject(tokener));
-		} catch (JSONException e) {
+    /**
+     * Obtains the number by which the other side knows the given method.
+     * 
+     * @param entry
+     *            The entry of the method in the dispatch table of its Module.
+     * @return The number, or -1 if the other side didn't publish it.
+     */
+    int getRemoteId(DispatchTable.Entry entry) {
+	Integer id = this.remoteMethods.get(entry.getKey());
+	return id == null ? -1 : id;
+    }
+
+    /**
+     * Completes the session with the handshake of the other side, and
+     * publishes the schema of the Modules to it. If the handshake is not
+     * valid, this Connection is dropped.
+     * 
+     * @param message
+     *            The frame that should hold the handshake.
+     */
+    private void receiveHandshake(Message message) {
+	if (message.isChunk())
+	    return;
+
+	try {
+	    JSONObject hello = new JSONObject(StandardCharsets.UTF_8.decode(
+		    message.getPayloadBuffer()).toString());
+	    if (Session.HANDSHAKE.equals(hello.optString(Communication.TYPE))) {
+		this.session.complete(hello);
+		this.send(ModuleManager.createSchema());
+	    }
+	} catch (JSONException e) {
+	    // Not a handshake. Nothing else is accepted until one comes in.
+	} catch (GeneralSecurityException e) {
+	    e.printStackTrace();
+	    this.drop();
+	} catch (IOException e) {
+	    // Nothing can be sent anymore, which will show up on the other side.
+	}
+    }
+
+    /**
+     * Passes a received chunk on to the stream it belongs to. The first chunk
+     * of a stream opens that stream.
+     * 
+     * @param chunk
+     *            The frame that carries the chunk.
+     */
+    private void receiveChunk(Message chunk) {
+	int id = chunk.getStreamId();
+
+	ChunkedInputStream stream = this.incomingStreams.get(id);
+	if (stream == null) {
+	    stream = new ChunkedInputStream(id, this);
+	    this.incomingStreams.put(id, stream);
+	    this.receive(stream);
+	}
+
+	stream.offer(chunk.getChunkData(), chunk.isLastChunk());
+
+	if (chunk.isLastChunk())
+	    this.incomingStreams.remove(id);
+    }
+
+    /**
+     * Handles a stream that is received in chunks, as soon as its first chunk
+     * comes in. A stream of data is handed to the {@code StreamHandler}, and
+     * a message that is sent in chunks is decoded while its chunks come in,
+     * such that its frames never have to be held in memory. Both are consumed
+     * on the stream executor of the {@code CommunicationManager}; a stream
+     * that comes in while all of its threads are busy is discarded.
+     * 
+     * @param stream
+     *            The stream that provides the payload.
+     */
+    protected void receive(final ChunkedInputStream stream) {
+	Runnable consumer;
+	if ((stream.getId() & Connection.DATA_STREAM) != 0) {
+	    final StreamHandler handler = CommunicationManager
+		    .getStreamHandler();
+	    if (handler == null) {
+		// Nobody is interested in the data.
+		stream.close();
+		return;
+	    }
+	    consumer = new Runnable() {
+
+		@Override
+		public void run() {
+		    try {
+			handler.receive(Connection.this, stream);
+		    } catch (IOException e) {
+			// The stream was aborted.
+		    } catch (RuntimeException e) {
+			e.printStackTrace();
+		    } finally {
+			stream.close();
+		    }
+		}
+
+	    };
+	} else
+	    consumer = new Runnable() {
+
+		@Override
+		public void run() {
+		    Connection.this.receiveMessage(stream);
+		}
+
+	    };
+
+	try {
+	    CommunicationManager.getStreamExecutor().execute(consumer);
+	} catch (RejectedExecutionException e) {
+	    System.err.println("Discarded stream " + stream.getId() + " from "
+		    + this.device.getName()
+		    + ", too many streams are being received.");
+	    stream.close();
+	}
+    }
+
+    /**
+     * Decodes a message that is received in chunks, and handles it.
+     */
+    private void receiveMessage(ChunkedInputStream stream) {
+	try {
+	    PushbackInputStream input = new PushbackInputStream(stream);
+	    int first = input.read();
+	    if (first < 0)
+		return;
+	    input.unread(first);
+	    if (first == BinaryCodec.MAGIC)
+		this.receive(BinaryCodec.decode(input));
+	    else
+		this.receive(new JSONObject(new JSONTokener(
+			new InputStreamReader(input, StandardCharsets.UTF_8))));
+	} catch (JSONException e) {
+	    // The other side sent something that isn't a message.
+	    e.printStackTrace();
+	} catch (IOException e) {
+	    // The stream was aborted, or its binary form is malformed.
+	} finally {
+	    stream.close();
+	}
+    }
+
+    /**
+     * Called by an incoming stream whose reader has fallen behind. Nothing is
+     * read from this Connection until every such stream has caught up again.
+     */
+    final void throttle() {
+	if (this.throttlingStreams.getAndIncrement() == 0)
+	    this.readingChanged();
+    }
+
+    /**
+     * Called by an incoming stream whose reader has caught up again.
+     */
+    final void unthrottle() {
+	if (this.throttlingStreams.decrementAndGet() == 0)
+	    this.readingChanged();
+    }
+
+    /**
+     * Indicates whether nothing may be read from this Connection, because the
+     * reader of an incoming stream has fallen behind.
+     */
+    protected final boolean isThrottled() {
+	return this.throttlingStreams.get() > 0;
+    }
+
+    /**
+     * Called when this Connection becomes throttled, or no longer throttled,
+     * or when it is closed. A transport that reads the incoming messages
+     * itself must stop reading while {@code isThrottled()}, without waiting
+     * on the thread that calls this; it can check {@code isThrottled()} to
+     * find out which of both happened.
+     */
+    protected void readingChanged() {
+	synchronized (this.readable) {
+	    this.readable.notifyAll();
+	}
+    }
 
+    /**
+     * Waits until this Connection may be read from again.
+     */
+    private void awaitReadable() throws InterruptedIOException {
+	synchronized (this.readable) {
+	    while (this.isThrottled() && !this.isClosed)
+		try {
+		    this.readable.wait();
+		} catch (InterruptedException e) {
+		    throw new InterruptedIOException();
 		}
+	}
+    }
+
+    /**
+     * Reads the incoming messages over this connection. Each message is a
+     * {@code Message} frame, which is only decoded once it has been read
+     * completely.
+     * 
+     * @author Maurice
+     * 
+     */
+    private final class Reader implements Runnable {
 
+	public void run() {
+	    DataInputStream input = new DataInputStream(
+		    new BufferedInputStream(Connection.this.inputStream));
+	    Message.MessageReader reader = Connection.this.newReader();
+
+	    // Every frame is read into the same buffer, which only grows when a
+	    // frame doesn't fit. The frame is handled before the next is read.
+	    ByteBuffer buffer = ByteBuffer.allocate(Connection.INITIAL_BUFFER_SIZE);
+
+	    try {
+		while (!Connection.this.isClosed
+			&& (buffer = Message.readFrame(input, buffer)) != null) {
+		    Message message = reader.readFrom(buffer);
+		    // Replayed frames are skipped.
+		    if (message != null)
+			Connection.this.receive(message);
+		    Connection.this.awaitReadable();
+		}
+	    } catch (ParseException e) {
+		// The stream is corrupt, there is no way to find the next frame.
+		e.printStackTrace();
+	    } catch (IOException e) {
+		// The stream was closed.
 	    }
 
+	    Connection.this.drop();
 	}
 
     }
 
+    /**
+     * Closes this connection and removes it from the active connections, once
+     * nothing can be read from it anymore.
+     */
+    void drop() {
+	// Nothing that is waiting for the session will ever be sent.
+	this.session.fail();
+
+	// Streams that were still coming in will never be completed.
+	for (ChunkedInputStream stream : this.incomingStreams.values())
+	    stream.abort();
+	this.incomingStreams.clear();
+
+	// The responses to the outstanding requests will never come in.
+	this.requestSender.clear();
+
+	try {
+	    this.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	try {
+	    CommunicationManager.drop(this.getDevice());
+	} catch (IllegalArgumentException e) {
+	    // It was not (or no longer) registered.
+	}
+    }
+
 }
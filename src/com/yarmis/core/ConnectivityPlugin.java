@@ -27,6 +27,9 @@ public class ConnectivityPlugin {
 		try {
 		    while (true) {
 			Socket socket = ConnectivityPlugin.this.server.accept();
+			// Requests are pipelined in small frames, which must not wait
+			// for the acknowledgement of the frames before them.
+			socket.setTcpNoDelay(true);
 			Connection connection = new Connection(socket.getInetAddress(), socket.getInputStream(), socket.getOutputStream());
 			CommunicationManager.register(connection);
 		    }
@@ -65,6 +68,7 @@ public class ConnectivityPlugin {
     protected Connection connectTo(Device device) throws IOException {
 
 	Socket socket = new Socket(device.getAddress(), Communication.PORT);
+	socket.setTcpNoDelay(true);
 	
 	Connection connection = new Connection(device, socket.getInputStream(), socket.getOutputStream());
 	CommunicationManager.register(connection);
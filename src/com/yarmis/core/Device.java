@@ -1,11 +1,27 @@
 package com.yarmis.core;
 
 import java.net.InetAddress;
+import java.util.Collection;
+import java.util.EnumSet;
+
+import com.yarmis.core.security.Right;
 
 public class Device {
 	private final InetAddress address;
 	private final String name;
 
+	/**
+	 * The share of the threads that run incoming requests that this device
+	 * gets while other devices are waiting as well.
+	 */
+	private volatile int weight = 1;
+
+	/**
+	 * The Rights that this device has been granted, as a mask of their bits,
+	 * or -1 if it gets the Rights of its Profile.
+	 */
+	private volatile long rights = -1;
+
 	public Device(InetAddress address, String name) {
 		this.address = address;
 		this.name = name;
@@ -18,4 +34,57 @@ public class Device {
 	public InetAddress getAddress() {
 		return address;
 	}
+
+	/**
+	 * Sets the weight of this device. While several devices have requests
+	 * waiting at the same priority, each device gets to start as many of its
+	 * requests per round as its weight. A device with weight 2 gets twice as
+	 * many requests started as a device with weight 1.
+	 * 
+	 * @param weight
+	 *            The weight, at least 1.
+	 */
+	public void setWeight(int weight) {
+		if (weight < 1)
+			throw new IllegalArgumentException("The weight must be at least 1.");
+		this.weight = weight;
+	}
+
+	/**
+	 * The weight of this device, which is 1 unless it has been set.
+	 */
+	public int getWeight() {
+		return this.weight;
+	}
+
+	/**
+	 * Sets the Rights that this device has been granted, instead of the
+	 * Rights of the {@code Profile} it is assigned to. This only lasts as long
+	 * as the Connection to the device.
+	 * 
+	 * @param rights
+	 *            The Rights of this device, or null to go back to the Rights
+	 *            of its Profile.
+	 */
+	public void setRights(Collection<Right> rights) {
+		this.rights = rights == null ? -1 : Right.maskOf(rights.toArray(new Right[rights.size()]));
+	}
+
+	/**
+	 * The Rights that this device has been granted itself.
+	 * 
+	 * @return The Rights, or null if it gets the Rights of its Profile.
+	 */
+	public EnumSet<Right> getRights() {
+		long rights = this.rights;
+		return rights == -1 ? null : Right.fromMask(rights);
+	}
+
+	/**
+	 * The Rights that this device has been granted itself as a mask of their
+	 * bits, or -1 if it gets the Rights of its Profile.
+	 */
+	long getRightsMask() {
+		return this.rights;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,382 @@
+package com.yarmis.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+
+import com.yarmis.core.security.DemandRights;
+import com.yarmis.core.security.Right;
+
+/**
+ * <p>
+ * The methods of a single Module that can be invoked remotely, by their name
+ * and signature. The table is built once, when the Module is created, such
+ * that a request can be dispatched with a single lookup, without any
+ * reflection.
+ * </p>
+ * <p>
+ * The signature of a method consists of the type characters of its
+ * parameters, as given by {@code Communication.convertClassToChar}. Every
+ * method also gets a number from the {@code ModuleManager}, by which the other
+ * side of a {@code Connection} can name it once it knows that number.
+ * </p>
+ */
+final class DispatchTable {
+
+    /**
+     * The entries by the key of their method.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * The entries by the name of their method, of which there are more than
+     * one if it is overloaded.
+     */
+    private final Map<String, Entry[]> overloads = new HashMap<String, Entry[]>();
+
+    /**
+     * The entries by their method, for invocations on the Module itself.
+     */
+    private final Map<Method, Entry> byMethod = new HashMap<Method, Entry>();
+
+    /**
+     * The name of the Module.
+     */
+    private final String module;
+
+    /**
+     * The handler of the Module, which decides where the methods are invoked.
+     */
+    private final ModuleInvocationHandler<?> handler;
+
+    /**
+     * Creates the table for the methods of the given functionality definition.
+     *
+     * @param functionalityDefinition
+     *            The interface of the Module.
+     * @param handler
+     *            The handler of the Module.
+     * @throws IllegalArgumentException
+     *             If a method can't be accessed.
+     */
+    DispatchTable(Class<?> functionalityDefinition,
+	    ModuleInvocationHandler<?> handler) throws IllegalArgumentException {
+	this.handler = handler;
+	this.module = functionalityDefinition.getSimpleName();
+
+	for (Method method : functionalityDefinition.getMethods()) {
+	    if (!ModuleManager.validateMethod(method))
+		continue;
+
+	    String signature = DispatchTable.signature(method);
+	    String key = DispatchTable.key(method.getName(), signature);
+	    Entry entry = new Entry(this, this.module + '.' + key, signature,
+		    method);
+	    entry.id = ModuleManager.register(entry);
+	    this.entries.put(key, entry);
+	    this.byMethod.put(method, entry);
+
+	    Entry[] overloads = this.overloads.get(method.getName());
+	    if (overloads == null)
+		overloads = new Entry[] { entry };
+	    else {
+		overloads = Arrays.copyOf(overloads, overloads.length + 1);
+		overloads[overloads.length - 1] = entry;
+	    }
+	    this.overloads.put(method.getName(), overloads);
+	}
+    }
+
+    /**
+     * Looks up the method that is named by a request.
+     *
+     * @param method
+     *            The name of the method.
+     * @param values
+     *            The arguments of the request, which determine the signature.
+     * @return The entry of the method.
+     * @throws NoSuchMethodException
+     *             If the Module has no such method that can be invoked
+     *             remotely.
+     */
+    Entry lookup(String method, JSONArray values) throws NoSuchMethodException {
+	// Matching the overloads by their signature needs no key to be built.
+	Entry[] overloads = this.overloads.get(method);
+	if (overloads != null)
+	    for (Entry entry : overloads)
+		if (entry.accepts(values))
+		    return entry;
+
+	char[] signature = new char[values.length()];
+	for (int i = 0; i < signature.length; ++i)
+	    signature[i] = Communication.typeOf(values.getJSONObject(i));
+	throw new NoSuchMethodException(method + "(" + new String(signature)
+		+ ")");
+    }
+
+    /**
+     * Looks up the entry of the given method of the functionality definition.
+     *
+     * @return The entry, or {@code null} if the method can't be invoked
+     *         remotely.
+     */
+    Entry lookup(Method method) {
+	return this.byMethod.get(method);
+    }
+
+    /**
+     * All entries of this table.
+     */
+    Collection<Entry> getEntries() {
+	return this.entries.values();
+    }
+
+    /**
+     * The name of the Module of this table.
+     */
+    String getModule() {
+	return this.module;
+    }
+
+    /**
+     * Invokes the method of the given entry with the given arguments, wherever
+     * the Module currently invokes its methods.
+     *
+     * @throws IllegalArgumentException
+     *             If the arguments don't match the parameters of the method.
+     * @throws InvocationTargetException
+     *             If the method threw an exception, which is its cause.
+     */
+    Object dispatch(Entry entry, Object[] arguments)
+	    throws IllegalArgumentException, InvocationTargetException {
+	return this.handler.dispatch(entry, arguments);
+    }
+
+    private static String key(String method, String signature) {
+	return method + '(' + signature + ')';
+    }
+
+    private static String signature(Method method) {
+	Class<?>[] parameters = method.getParameterTypes();
+	char[] signature = new char[parameters.length];
+	for (int i = 0; i < parameters.length; ++i)
+	    signature[i] = Communication.convertClassToChar(parameters[i]);
+	return new String(signature);
+    }
+
+    /**
+     * A method that can be invoked remotely, with the handle that invokes it on
+     * an implementation of the Module.
+     */
+    static final class Entry {
+
+	/**
+	 * Every invoker has this type: it takes the implementation and the array
+	 * of arguments.
+	 */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(
+		Object.class, Object.class, Object[].class);
+
+	private final DispatchTable table;
+
+	/**
+	 * The name of the Module, the name of the method and its signature, which
+	 * together identify the method across devices.
+	 */
+	private final String key;
+
+	/**
+	 * The type characters of the parameters of the method.
+	 */
+	private final String signature;
+
+	private final Method method;
+
+	/**
+	 * The types of the parameters of the method, with primitive types
+	 * replaced by their wrappers.
+	 */
+	private final Class<?>[] parameters;
+
+	private final MethodHandle invoker;
+
+	/**
+	 * The timeout of a remote call, in milliseconds, as given by the
+	 * {@code Timeout} annotation of the method, or -1 if it has none.
+	 */
+	private final long timeout;
+
+	/**
+	 * The Rights that the method demands, or none if it doesn't declare
+	 * them.
+	 */
+	private final Right[] rights;
+
+	/**
+	 * The Rights that the method demands as a mask of their bits, or -1 if
+	 * it doesn't declare them.
+	 */
+	private final long demandedRights;
+
+	/**
+	 * The number that the ModuleManager assigned to the method.
+	 */
+	private int id;
+
+	private Entry(DispatchTable table, String key, String signature,
+		Method method) throws IllegalArgumentException {
+	    this.table = table;
+	    this.key = key;
+	    this.signature = signature;
+	    this.method = method;
+	    this.parameters = MethodType.methodType(void.class,
+		    method.getParameterTypes()).wrap().parameterArray();
+	    Timeout timeout = method.getAnnotation(Timeout.class);
+	    this.timeout = timeout == null ? -1 : timeout.value();
+	    DemandRights rights = method.getAnnotation(DemandRights.class);
+	    this.rights = rights == null ? new Right[0] : rights.value();
+	    this.demandedRights = rights == null ? -1 : Right
+		    .maskOf(this.rights);
+	    try {
+		this.invoker = MethodHandles
+			.publicLookup()
+			.unreflect(method)
+			.asSpreader(Object[].class,
+				method.getParameterTypes().length)
+			.asType(Entry.INVOKER_TYPE);
+	    } catch (IllegalAccessException e) {
+		throw new IllegalArgumentException(method
+			+ " can't be accessed.", e);
+	    }
+	}
+
+	/**
+	 * The method of the functionality definition.
+	 */
+	Method getMethod() {
+	    return this.method;
+	}
+
+	/**
+	 * The table that this entry is part of.
+	 */
+	DispatchTable getTable() {
+	    return this.table;
+	}
+
+	/**
+	 * The name of the Module, the name of the method and its signature, as
+	 * in {@code Module.method(ii)}.
+	 */
+	String getKey() {
+	    return this.key;
+	}
+
+	/**
+	 * The timeout of a remote call in milliseconds, or -1 if the method
+	 * doesn't declare one.
+	 */
+	long getTimeout() {
+	    return this.timeout;
+	}
+
+	/**
+	 * The Rights that the method demands as a mask of their bits, or -1 if
+	 * it doesn't declare them.
+	 */
+	long getDemandedRights() {
+	    return this.demandedRights;
+	}
+
+	/**
+	 * The priority of an incoming request for this method: the priority of
+	 * its Module if that has one, or else that of the most urgent Right
+	 * that the method demands, or else {@code NORMAL}.
+	 */
+	Priority getPriority() {
+	    Priority priority = this.table.handler.getPriority();
+	    if (priority != null)
+		return priority;
+
+	    for (Right right : this.rights) {
+		Priority demanded = CommunicationManager.getPriority(right);
+		if (priority == null || demanded.compareTo(priority) < 0)
+		    priority = demanded;
+	    }
+	    return priority == null ? Priority.NORMAL : priority;
+	}
+
+	/**
+	 * The number by which this method is known to other devices.
+	 */
+	int getId() {
+	    return this.id;
+	}
+
+	/**
+	 * Tells whether the arguments of a request have the signature of the
+	 * method.
+	 *
+	 * @param values
+	 *            The arguments of the request.
+	 */
+	boolean accepts(JSONArray values) {
+	    if (values.length() != this.signature.length())
+		return false;
+	    for (int i = 0; i < values.length(); ++i)
+		if (Communication.typeOf(values.getJSONObject(i)) != this.signature
+			.charAt(i))
+		    return false;
+	    return true;
+	}
+
+	/**
+	 * Verifies that the given arguments can be passed to the method, such
+	 * that invoking it fails only because of the method itself.
+	 *
+	 * @param arguments
+	 *            The arguments, which may be null if the method has no
+	 *            parameters.
+	 * @throws IllegalArgumentException
+	 *             If the amount or the type of the arguments is wrong.
+	 */
+	void check(Object[] arguments) throws IllegalArgumentException {
+	    int count = arguments == null ? 0 : arguments.length;
+	    if (count != this.parameters.length)
+		throw new IllegalArgumentException(this.key + " takes "
+			+ this.parameters.length + " arguments, not " + count
+			+ ".");
+
+	    for (int i = 0; i < count; ++i) {
+		Object argument = arguments[i];
+		if (argument == null ? this.method.getParameterTypes()[i]
+			.isPrimitive() : !this.parameters[i]
+			.isInstance(argument))
+		    throw new IllegalArgumentException("Argument " + i
+			    + " of " + this.key + " must be of type "
+			    + this.parameters[i].getSimpleName() + ".");
+	    }
+	}
+
+	/**
+	 * Invokes the method on the given implementation. The arguments must
+	 * have been checked.
+	 *
+	 * @throws Throwable
+	 *             Whatever the method throws, as it is.
+	 */
+	Object invoke(Object implementation, Object[] arguments)
+		throws Throwable {
+	    return (Object) this.invoker.invokeExact(implementation,
+		    arguments);
+	}
+    }
+}
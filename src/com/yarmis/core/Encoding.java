@@ -0,0 +1,39 @@
+package com.yarmis.core;
+
+/**
+ * <p>
+ * The way in which the messages over a {@code Connection} are encoded. A
+ * Connection always understands both encodings when receiving, so the
+ * encoding can be chosen for each Connection on its own.
+ * </p>
+ */
+public enum Encoding {
+
+    /**
+     * Every message is sent as UTF-8 encoded JSON text.
+     */
+    JSON,
+
+    /**
+     * Requests and responses are sent in a compact binary form, in which the
+     * values are encoded according to their type character instead of as
+     * text. Messages that can't be represented that way are sent as JSON.
+     */
+    BINARY;
+
+    /**
+     * Obtains the encoding with the given name, ignoring case.
+     *
+     * @param name
+     *            The name of the encoding, or {@code null}.
+     * @param fallback
+     *            The encoding to return if no encoding has the given name.
+     * @return The parsed encoding.
+     */
+    static Encoding parse(String name, Encoding fallback) {
+	for (Encoding encoding : Encoding.values())
+	    if (encoding.name().equalsIgnoreCase(name))
+		return encoding;
+	return fallback;
+    }
+}
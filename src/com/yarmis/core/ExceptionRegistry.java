@@ -0,0 +1,393 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.yarmis.core.exceptions.FailedExecutionException;
+import com.yarmis.core.exceptions.InsufficientRightsException;
+import com.yarmis.core.exceptions.InvalidRequestException;
+import com.yarmis.core.exceptions.ModuleInaccessibleException;
+import com.yarmis.core.exceptions.NoDeclaredRightsException;
+import com.yarmis.core.exceptions.OverloadedException;
+import com.yarmis.core.exceptions.RateLimitedException;
+import com.yarmis.core.exceptions.RequestNotFoundException;
+import com.yarmis.core.exceptions.RequestTimeoutException;
+import com.yarmis.core.exceptions.UnauthorizedRequestException;
+import com.yarmis.core.exceptions.UnfoundConnectionException;
+import com.yarmis.core.exceptions.UnsuccessfulRequestException;
+
+/**
+ * <p>
+ * Knows the exceptions that can be sent in a response by a number, and how to
+ * create each of them again from its message. A known exception is sent as
+ * its number and its message, and is created again by its {@code Factory},
+ * without looking up its class.
+ * </p>
+ * <p>
+ * The exceptions of {@code com.yarmis.core.exceptions}, and the common
+ * exceptions of {@code java.lang}, are known from the start. Other exceptions
+ * can be registered, which has to be done under the same number on both
+ * sides. The numbers below {@code FIRST_CODE} are reserved.
+ * </p>
+ * <p>
+ * An exception that is not known is sent as the name of its class and its
+ * message, and is created again with the constructor of that class that takes
+ * a String. That constructor is only looked up the first time.
+ * </p>
+ */
+public final class ExceptionRegistry {
+
+    /**
+     * The lowest number under which an exception can be registered.
+     */
+    public static final int FIRST_CODE = 256;
+
+    /**
+     * The number of the exceptions that are not known.
+     */
+    static final int UNKNOWN = 0;
+
+    /**
+     * The numbers of the known exceptions, by their class.
+     */
+    private static final ConcurrentHashMap<Class<?>, Integer> codes = new ConcurrentHashMap<Class<?>, Integer>();
+
+    /**
+     * The Factories of the known exceptions, by their number.
+     */
+    private static final ConcurrentHashMap<Integer, Factory<?>> factories = new ConcurrentHashMap<Integer, Factory<?>>();
+
+    /**
+     * The Factories of the exceptions that are not known, by the name of
+     * their class, once their constructor has been looked up.
+     */
+    private static final ConcurrentHashMap<String, Factory<?>> constructors = new ConcurrentHashMap<String, Factory<?>>();
+
+    static {
+	ExceptionRegistry.put(1, FailedExecutionException.class,
+		new Factory<FailedExecutionException>() {
+
+		    @Override
+		    public FailedExecutionException create(String message) {
+			return new FailedExecutionException();
+		    }
+
+		});
+	ExceptionRegistry.put(2, InsufficientRightsException.class,
+		new Factory<InsufficientRightsException>() {
+
+		    @Override
+		    public InsufficientRightsException create(String message) {
+			return new InsufficientRightsException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(3, InvalidRequestException.class,
+		new Factory<InvalidRequestException>() {
+
+		    @Override
+		    public InvalidRequestException create(String message) {
+			return new InvalidRequestException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(4, ModuleInaccessibleException.class,
+		new Factory<ModuleInaccessibleException>() {
+
+		    @Override
+		    public ModuleInaccessibleException create(String message) {
+			return new ModuleInaccessibleException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(5, NoDeclaredRightsException.class,
+		new Factory<NoDeclaredRightsException>() {
+
+		    @Override
+		    public NoDeclaredRightsException create(String message) {
+			return new NoDeclaredRightsException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(6, OverloadedException.class,
+		new Factory<OverloadedException>() {
+
+		    @Override
+		    public OverloadedException create(String message) {
+			return new OverloadedException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(7, RateLimitedException.class,
+		new Factory<RateLimitedException>() {
+
+		    @Override
+		    public RateLimitedException create(String message) {
+			return new RateLimitedException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(8, RequestNotFoundException.class,
+		new Factory<RequestNotFoundException>() {
+
+		    @Override
+		    public RequestNotFoundException create(String message) {
+			return new RequestNotFoundException();
+		    }
+
+		});
+	ExceptionRegistry.put(9, RequestTimeoutException.class,
+		new Factory<RequestTimeoutException>() {
+
+		    @Override
+		    public RequestTimeoutException create(String message) {
+			return new RequestTimeoutException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(10, UnauthorizedRequestException.class,
+		new Factory<UnauthorizedRequestException>() {
+
+		    @Override
+		    public UnauthorizedRequestException create(String message) {
+			return new UnauthorizedRequestException();
+		    }
+
+		});
+	ExceptionRegistry.put(11, UnfoundConnectionException.class,
+		new Factory<UnfoundConnectionException>() {
+
+		    @Override
+		    public UnfoundConnectionException create(String message) {
+			return new UnfoundConnectionException();
+		    }
+
+		});
+	ExceptionRegistry.put(12, UnsuccessfulRequestException.class,
+		new Factory<UnsuccessfulRequestException>() {
+
+		    @Override
+		    public UnsuccessfulRequestException create(String message) {
+			return new UnsuccessfulRequestException(message);
+		    }
+
+		});
+
+	ExceptionRegistry.put(128, Exception.class, new Factory<Exception>() {
+
+	    @Override
+	    public Exception create(String message) {
+		return new Exception(message);
+	    }
+
+	});
+	ExceptionRegistry.put(129, RuntimeException.class,
+		new Factory<RuntimeException>() {
+
+		    @Override
+		    public RuntimeException create(String message) {
+			return new RuntimeException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(130, IllegalArgumentException.class,
+		new Factory<IllegalArgumentException>() {
+
+		    @Override
+		    public IllegalArgumentException create(String message) {
+			return new IllegalArgumentException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(131, IllegalStateException.class,
+		new Factory<IllegalStateException>() {
+
+		    @Override
+		    public IllegalStateException create(String message) {
+			return new IllegalStateException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(132, UnsupportedOperationException.class,
+		new Factory<UnsupportedOperationException>() {
+
+		    @Override
+		    public UnsupportedOperationException create(String message) {
+			return new UnsupportedOperationException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(133, NullPointerException.class,
+		new Factory<NullPointerException>() {
+
+		    @Override
+		    public NullPointerException create(String message) {
+			return new NullPointerException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(134, IndexOutOfBoundsException.class,
+		new Factory<IndexOutOfBoundsException>() {
+
+		    @Override
+		    public IndexOutOfBoundsException create(String message) {
+			return new IndexOutOfBoundsException(message);
+		    }
+
+		});
+	ExceptionRegistry.put(135, IOException.class,
+		new Factory<IOException>() {
+
+		    @Override
+		    public IOException create(String message) {
+			return new IOException(message);
+		    }
+
+		});
+    }
+
+    // No instances of ExceptionRegistry
+    private ExceptionRegistry() {
+    }
+
+    /**
+     * Registers an exception, such that it is sent by its number. Only
+     * exceptions of exactly the given class are sent by that number; a
+     * subclass has to be registered by itself.
+     *
+     * @param code
+     *            The number of the exception, at least {@code FIRST_CODE}.
+     * @param type
+     *            The class of the exception.
+     * @param factory
+     *            Creates the exception again from its message.
+     * @throws IllegalArgumentException
+     *             If the number is reserved, or if the number or the class
+     *             has been registered already.
+     */
+    public static <E extends Exception> void register(int code,
+	    Class<E> type, Factory<? extends E> factory) {
+	if (code < ExceptionRegistry.FIRST_CODE)
+	    throw new IllegalArgumentException("The numbers below "
+		    + ExceptionRegistry.FIRST_CODE + " are reserved.");
+	ExceptionRegistry.put(code, type, factory);
+    }
+
+    private static synchronized void put(int code, Class<?> type,
+	    Factory<?> factory) {
+	if (ExceptionRegistry.factories.containsKey(code))
+	    throw new IllegalArgumentException("An exception with number "
+		    + code + " has been registered already.");
+	if (ExceptionRegistry.codes.containsKey(type))
+	    throw new IllegalArgumentException(type.getName()
+		    + " has been registered already.");
+
+	ExceptionRegistry.factories.put(code, factory);
+	ExceptionRegistry.codes.put(type, code);
+    }
+
+    /**
+     * Obtains the number of the given exception.
+     *
+     * @return The number, or {@code UNKNOWN} if its class is not registered.
+     */
+    static int codeOf(Throwable exception) {
+	Integer code = ExceptionRegistry.codes.get(exception.getClass());
+	return code == null ? ExceptionRegistry.UNKNOWN : code;
+    }
+
+    /**
+     * Creates the exception with the given number.
+     *
+     * @param code
+     *            The number of the exception.
+     * @param message
+     *            The message of the exception, which may be null.
+     * @return The exception, or an UnsuccessfulRequestException with the
+     *         message if the number is not known here.
+     */
+    static Exception create(int code, String message) {
+	Factory<?> factory = ExceptionRegistry.factories.get(code);
+	return factory == null ? new UnsuccessfulRequestException(message)
+		: factory.create(message);
+    }
+
+    /**
+     * Creates an exception that is not known, by the name of its class.
+     *
+     * @param name
+     *            The name of the class of the exception.
+     * @param message
+     *            The message of the exception, which may be null.
+     * @return The exception, or an UnsuccessfulRequestException with the name
+     *         and the message if the class can't be created here.
+     */
+    static Exception create(final String name, String message) {
+	Factory<?> factory = ExceptionRegistry.constructors.get(name);
+	if (factory == null) {
+	    // Classes that can't be found are not remembered, as their names
+	    // come from the other side.
+	    factory = ExceptionRegistry.lookUp(name);
+	    if (factory == null)
+		return new UnsuccessfulRequestException(name
+			+ Communication.EXCEPTION_SEPARATOR + message);
+	    ExceptionRegistry.constructors.putIfAbsent(name, factory);
+	}
+	return factory.create(message);
+    }
+
+    /**
+     * Looks up the constructor that takes a message of the exception class
+     * with the given name, without initializing the class if it isn't an
+     * exception.
+     *
+     * @return A Factory that calls the constructor, or null if there is no
+     *         such class or constructor.
+     */
+    private static Factory<?> lookUp(final String name) {
+	final Constructor<? extends Exception> constructor;
+	try {
+	    Class<?> type = Class.forName(name, false,
+		    ExceptionRegistry.class.getClassLoader());
+	    if (!Exception.class.isAssignableFrom(type))
+		return null;
+	    constructor = type.asSubclass(Exception.class).getConstructor(
+		    String.class);
+	} catch (ReflectiveOperationException e) {
+	    return null;
+	} catch (LinkageError e) {
+	    return null;
+	}
+
+	return new Factory<Exception>() {
+
+	    @Override
+	    public Exception create(String message) {
+		try {
+		    return constructor.newInstance(message);
+		} catch (ReflectiveOperationException e) {
+		    return new UnsuccessfulRequestException(name
+			    + Communication.EXCEPTION_SEPARATOR + message);
+		}
+	    }
+
+	};
+    }
+
+    /**
+     * Creates an exception again from its message.
+     */
+    public interface Factory<E extends Exception> {
+
+	/**
+	 * Creates the exception.
+	 *
+	 * @param message
+	 *            The message that the exception was sent with, which may
+	 *            be null.
+	 * @return The exception.
+	 */
+	E create(String message);
+    }
+}
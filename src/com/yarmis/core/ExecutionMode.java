@@ -0,0 +1,141 @@
+package com.yarmis.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * The kind of threads that are used to read from {@code Connection}s and to
+ * run incoming requests.
+ * </p>
+ * <p>
+ * Virtual threads are only available on a Java runtime that supports them. If
+ * they are not available, {@code VIRTUAL} falls back to platform threads.
+ * </p>
+ */
+public enum ExecutionMode {
+
+    /**
+     * Every task runs on its own platform thread.
+     */
+    PLATFORM,
+
+    /**
+     * Every task runs on its own virtual thread. A blocked virtual thread does
+     * not occupy a platform thread, which allows many thousands of blocking
+     * module invocations to be in flight at the same time.
+     */
+    VIRTUAL;
+
+    /**
+     * The factory for virtual threads, or {@code null} if the runtime doesn't
+     * support them.
+     */
+    private static final ThreadFactory VIRTUAL_THREADS = ExecutionMode
+	    .createVirtualThreadFactory();
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}, or {@code null} if
+     * the runtime doesn't support virtual threads.
+     */
+    private static final Method NEW_VIRTUAL_EXECUTOR = ExecutionMode
+	    .findVirtualExecutorFactory();
+
+    /**
+     * Indicates whether this mode can be used on the current runtime. If not,
+     * platform threads are used instead.
+     *
+     * @return true if this mode is supported, false otherwise.
+     */
+    public boolean isSupported() {
+	return this == PLATFORM
+		|| (VIRTUAL_THREADS != null && NEW_VIRTUAL_EXECUTOR != null);
+    }
+
+    /**
+     * Creates a new thread, which is not started yet, that runs the given
+     * task.
+     *
+     * @param task
+     *            The task to run.
+     * @param name
+     *            The name of the thread.
+     * @return The created thread.
+     */
+    public Thread newThread(Runnable task, String name) {
+	Thread thread = this.threadFactory().newThread(task);
+	thread.setName(name);
+	return thread;
+    }
+
+    /**
+     * Creates an ExecutorService that runs every submitted task on a new
+     * thread of this mode.
+     *
+     * @return The created ExecutorService.
+     */
+    public ExecutorService newExecutor() {
+	if (this.isSupported() && this == VIRTUAL)
+	    try {
+		// Virtual threads are cheap, they should never be pooled.
+		return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+	    } catch (Exception e) {
+		e.printStackTrace();
+	    }
+	return Executors.newCachedThreadPool();
+    }
+
+    private ThreadFactory threadFactory() {
+	if (this.isSupported() && this == VIRTUAL)
+	    return VIRTUAL_THREADS;
+	else
+	    return Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Obtains {@code Thread.ofVirtual().factory()} if the runtime supports it.
+     * This is done reflectively such that YARMIS still runs on older runtimes.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    Object builder = ofVirtual.invoke(null);
+	    Method factory = ofVirtual.getReturnType().getMethod("factory");
+	    return (ThreadFactory) factory.invoke(builder);
+	} catch (Exception e) {
+	    // Not supported by this runtime.
+	    return null;
+	}
+    }
+
+    /**
+     * Obtains {@code Executors.newVirtualThreadPerTaskExecutor} if the runtime
+     * supports it.
+     */
+    private static Method findVirtualExecutorFactory() {
+	try {
+	    return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	} catch (Exception e) {
+	    // Not supported by this runtime.
+	    return null;
+	}
+    }
+
+    /**
+     * Parses the mode from the given name, ignoring case.
+     *
+     * @param name
+     *            The name of the mode, or {@code null}.
+     * @param fallback
+     *            The mode to return if no mode has the given name.
+     * @return The parsed mode.
+     */
+    static ExecutionMode parse(String name, ExecutionMode fallback) {
+	for (ExecutionMode mode : ExecutionMode.values())
+	    if (mode.name().equalsIgnoreCase(name))
+		return mode;
+	return fallback;
+    }
+}
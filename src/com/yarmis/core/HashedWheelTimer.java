@@ -0,0 +1,304 @@
+package com.yarmis.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Runs tasks after a delay, with the precision of a tick. It is made for
+ * timeouts, which are scheduled for nearly every request and cancelled for
+ * nearly all of them: neither scheduling nor cancelling a task takes a lock,
+ * both only add the task to a queue.
+ * </p>
+ * <p>
+ * A single thread turns a wheel of buckets, one bucket per tick. A task is
+ * kept in the bucket of the tick at which it expires, modulo the size of the
+ * wheel, along with the amount of turns of the wheel that are left until
+ * then. Every tick, only the tasks in a single bucket are looked at.
+ * </p>
+ * <p>
+ * The tasks are run on the thread of the timer, so they must be short.
+ * </p>
+ */
+final class HashedWheelTimer {
+
+    /**
+     * The timer that is shared by all connections.
+     */
+    static final HashedWheelTimer DEFAULT = new HashedWheelTimer(10,
+	    TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * The maximum amount of scheduled tasks that is put into the wheel per
+     * tick, such that a burst of them doesn't delay the tasks that expire.
+     */
+    private static final int MAX_TRANSFERS = 100000;
+
+    /**
+     * The duration of a tick, in nanoseconds.
+     */
+    private final long tickDuration;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    /**
+     * The tasks that were scheduled, but aren't in the wheel yet.
+     */
+    private final Queue<Task> scheduled = new ConcurrentLinkedQueue<Task>();
+
+    /**
+     * The tasks that were cancelled, and may still be in the wheel.
+     */
+    private final Queue<Task> cancelled = new ConcurrentLinkedQueue<Task>();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The time at which the thread of the timer started, from which the ticks
+     * are counted. Only used by that thread.
+     */
+    private long startTime;
+
+    /**
+     * The tick that is handled next. Only used by the thread of the timer.
+     */
+    private long tick = 0;
+
+    /**
+     * Creates a timer. Its thread is started when the first task is
+     * scheduled.
+     *
+     * @param tickDuration
+     *            The duration of a tick.
+     * @param unit
+     *            The unit of the duration.
+     * @param size
+     *            The amount of buckets in the wheel, which is rounded up to a
+     *            power of two.
+     */
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int size) {
+	if (tickDuration <= 0 || size <= 0)
+	    throw new IllegalArgumentException(
+		    "The tick duration and size must be positive.");
+
+	this.tickDuration = unit.toNanos(tickDuration);
+	int buckets = Integer.highestOneBit(size);
+	if (buckets < size)
+	    buckets <<= 1;
+	this.wheel = new Bucket[buckets];
+	for (int i = 0; i < buckets; ++i)
+	    this.wheel[i] = new Bucket();
+	this.mask = buckets - 1;
+    }
+
+    /**
+     * Schedules the given task to be run once the given delay has passed. It
+     * is run within a tick after that.
+     *
+     * @param runnable
+     *            The task to run.
+     * @param delay
+     *            The delay.
+     * @param unit
+     *            The unit of the delay.
+     * @return The scheduled task, which can be cancelled.
+     */
+    Task schedule(Runnable runnable, long delay, TimeUnit unit) {
+	if (!this.started.get() && this.started.compareAndSet(false, true)) {
+	    Thread thread = new Thread(new Worker(), "yarmis-timer");
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	Task task = new Task(this, runnable, System.nanoTime()
+		+ unit.toNanos(delay));
+	this.scheduled.add(task);
+	return task;
+    }
+
+    private final class Worker implements Runnable {
+
+	@Override
+	public void run() {
+	    HashedWheelTimer timer = HashedWheelTimer.this;
+	    timer.startTime = System.nanoTime();
+
+	    while (true) {
+		long now = timer.awaitTick();
+		timer.removeCancelled();
+		timer.transferScheduled();
+		timer.wheel[(int) (timer.tick & timer.mask)].expire(now);
+		++timer.tick;
+	    }
+	}
+
+    }
+
+    /**
+     * Waits until the current tick has passed.
+     *
+     * @return The current time.
+     */
+    private long awaitTick() {
+	long end = this.startTime + (this.tick + 1) * this.tickDuration;
+	long now;
+	while ((now = System.nanoTime()) < end)
+	    LockSupport.parkNanos(end - now);
+	return now;
+    }
+
+    private void removeCancelled() {
+	Task task;
+	while ((task = this.cancelled.poll()) != null)
+	    if (task.bucket != null)
+		task.bucket.remove(task);
+    }
+
+    /**
+     * Puts the scheduled tasks in the bucket of the tick at which they
+     * expire. A task that should have expired already goes into the bucket of
+     * the current tick.
+     */
+    private void transferScheduled() {
+	for (int i = 0; i < HashedWheelTimer.MAX_TRANSFERS; ++i) {
+	    Task task = this.scheduled.poll();
+	    if (task == null)
+		return;
+	    if (task.state != Task.WAITING)
+		continue;
+
+	    long expiry = (task.deadline - this.startTime) / this.tickDuration;
+	    task.rounds = (expiry - this.tick) / this.wheel.length;
+	    this.wheel[(int) (Math.max(expiry, this.tick) & this.mask)]
+		    .add(task);
+	}
+    }
+
+    /**
+     * A task that is scheduled on the timer.
+     */
+    static final class Task {
+
+	private static final int WAITING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final AtomicIntegerFieldUpdater<Task> STATE = AtomicIntegerFieldUpdater
+		.newUpdater(Task.class, "state");
+
+	private final HashedWheelTimer timer;
+
+	private final Runnable runnable;
+
+	/**
+	 * The time at which the task expires.
+	 */
+	private final long deadline;
+
+	private volatile int state = Task.WAITING;
+
+	// The following are only used by the thread of the timer.
+
+	/**
+	 * The amount of turns of the wheel that are left before the task
+	 * expires.
+	 */
+	private long rounds;
+
+	private Bucket bucket;
+
+	private Task next;
+
+	private Task previous;
+
+	private Task(HashedWheelTimer timer, Runnable runnable, long deadline) {
+	    this.timer = timer;
+	    this.runnable = runnable;
+	    this.deadline = deadline;
+	}
+
+	/**
+	 * Cancels this task, if it hasn't been run yet.
+	 *
+	 * @return true if it was cancelled, false if it was cancelled or run
+	 *         before.
+	 */
+	boolean cancel() {
+	    if (!Task.STATE.compareAndSet(this, Task.WAITING, Task.CANCELLED))
+		return false;
+	    this.timer.cancelled.add(this);
+	    return true;
+	}
+
+	private void expire() {
+	    if (!Task.STATE.compareAndSet(this, Task.WAITING, Task.EXPIRED))
+		return;
+	    try {
+		this.runnable.run();
+	    } catch (Throwable throwable) {
+		throwable.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * The tasks that expire at the same tick of the wheel, in a doubly linked
+     * list. Only used by the thread of the timer.
+     */
+    private static final class Bucket {
+
+	private Task head;
+
+	private Task tail;
+
+	private void add(Task task) {
+	    task.bucket = this;
+	    task.previous = this.tail;
+	    task.next = null;
+	    if (this.tail == null)
+		this.head = task;
+	    else
+		this.tail.next = task;
+	    this.tail = task;
+	}
+
+	private void remove(Task task) {
+	    if (task.previous == null)
+		this.head = task.next;
+	    else
+		task.previous.next = task.next;
+	    if (task.next == null)
+		this.tail = task.previous;
+	    else
+		task.next.previous = task.previous;
+	    task.bucket = null;
+	    task.next = null;
+	    task.previous = null;
+	}
+
+	/**
+	 * Runs the tasks that expire at this tick, and counts down the turns of
+	 * the others.
+	 */
+	private void expire(long now) {
+	    Task task = this.head;
+	    while (task != null) {
+		Task next = task.next;
+		if (task.state != Task.WAITING)
+		    this.remove(task);
+		else if (task.rounds <= 0 && task.deadline <= now) {
+		    this.remove(task);
+		    task.expire();
+		} else
+		    --task.rounds;
+		task = next;
+	    }
+	}
+    }
+}
@@ -0,0 +1,103 @@
+package com.yarmis.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Describes how the fields of a frame header are packed into a single
+ * big-endian {@code int}. The fields are listed from the most significant bits
+ * to the least significant bits, and together take at most 32 bits.
+ * </p>
+ * <p>
+ * The shift and mask of every field are computed once, so packing or unpacking
+ * a field is a single shift and mask, and a header is read or written with a
+ * single {@code int} access.
+ * </p>
+ */
+final class HeaderLayout {
+
+    /**
+     * The size of every header, in bytes.
+     */
+    static final int SIZE = 4;
+
+    private final int[] shifts;
+
+    private final int[] masks;
+
+    /**
+     * Creates a layout with fields of the given widths.
+     *
+     * @param bits
+     *            The amount of bits of every field, starting with the most
+     *            significant field.
+     * @throws IllegalArgumentException
+     *             If a field has no bits, or if the fields together take more
+     *             than 32 bits.
+     */
+    HeaderLayout(int... bits) throws IllegalArgumentException {
+	this.shifts = new int[bits.length];
+	this.masks = new int[bits.length];
+
+	int shift = SIZE * 8;
+	for (int i = 0; i < bits.length; ++i) {
+	    if (bits[i] < 1 || bits[i] > shift)
+		throw new IllegalArgumentException("Field " + i + " of " + bits[i]
+			+ " bits doesn't fit in the header.");
+	    shift -= bits[i];
+	    this.shifts[i] = shift;
+	    this.masks[i] = (int) ((1L << bits[i]) - 1);
+	}
+    }
+
+    /**
+     * The largest value that the given field can hold.
+     *
+     * @param field
+     *            The index of the field.
+     * @return The largest value.
+     */
+    int maximum(int field) {
+	return this.masks[field];
+    }
+
+    /**
+     * Sets the given field of a header to the given value.
+     *
+     * @param header
+     *            The header in which to set the field.
+     * @param field
+     *            The index of the field.
+     * @param value
+     *            The value of the field. This must fit in the field.
+     * @return The header with the field set.
+     */
+    int pack(int header, int field, int value) {
+	assert (value & ~this.masks[field]) == 0 : "Value " + value
+		+ " doesn't fit in field " + field;
+
+	int mask = this.masks[field] << this.shifts[field];
+	return (header & ~mask) | ((value << this.shifts[field]) & mask);
+    }
+
+    /**
+     * Obtains the value of the given field of a header.
+     *
+     * @param header
+     *            The header to read the field from.
+     * @param field
+     *            The index of the field.
+     * @return The value of the field.
+     */
+    int unpack(int header, int field) {
+	return (header >>> this.shifts[field]) & this.masks[field];
+    }
+
+    /**
+     * Reads the header at the position of the given buffer, without moving its
+     * position.
+     */
+    static int peek(ByteBuffer buffer) {
+	return buffer.getInt(buffer.position());
+    }
+}
@@ -1,24 +1,29 @@
 package com.yarmis.core;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.InputMismatchException;
 
+import javax.crypto.Mac;
+
 import com.yarmis.core.security.Crypto;
 
 class Message {
 	private final int version;
+	private final int type;
 	private final int length;
-	private final byte[] header;
-	private final byte[] payload;
+	private final int header;
+	private final ByteBuffer payload;
 
 	private final boolean isSigned;
 	private final boolean isDedicated;
-	private byte[] nonce;
-	private byte[] signature;
+	private ByteBuffer nonce;
+	private ByteBuffer signature;
 
 	private static final int VERSION = 1;
 	private static final int HEADER_SIZE = 4;
@@ -29,8 +34,41 @@ class Message {
 	private static final int LENGTH_BITS = HEADER_SIZE * 8 - VERSION_BITS - TYPE_BITS;
 	private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
 
+	/**
+	 * The indices of the fields in a header layout.
+	 */
+	private static final int VERSION_FIELD = 0, TYPE_FIELD = 1, LENGTH_FIELD = 2;
+
+	/**
+	 * The header layout of every version. The version itself is always stored in the
+	 * most significant bits, such that the layout of a header is known before the rest
+	 * of it is unpacked. All versions currently share the same layout.
+	 */
+	private static final HeaderLayout[] LAYOUTS = new HeaderLayout[MAX_VERSION + 1];
+	static {
+		HeaderLayout layout = new HeaderLayout(VERSION_BITS, TYPE_BITS, LENGTH_BITS);
+		for(int version = 0; version <= MAX_VERSION; version++) {
+			LAYOUTS[version] = layout;
+		}
+	}
+
 	private static final int SIGN_FLAG = 0x01;
 	private static final int DEDICATION_FLAG = 0x02;
+	/**
+	 * Marks a frame that carries one chunk of a larger logical message. The
+	 * payload of such a frame starts with the identifier of the stream that the
+	 * chunk belongs to.
+	 */
+	private static final int CHUNK_FLAG = 0x04;
+	/**
+	 * Marks the frame that carries the last chunk of a logical message.
+	 */
+	private static final int LAST_CHUNK_FLAG = 0x08;
+
+	/**
+	 * The amount of bytes at the start of a chunk's payload that identify its stream.
+	 */
+	static final int CHUNK_HEADER_SIZE = 4;
 
 	private static final int NONCE_SIZE = 8, SIG_SIZE = 32;
 	private static final int BASE_SIZE = HEADER_SIZE + NONCE_SIZE + SIG_SIZE;
@@ -76,24 +114,64 @@ class Message {
 	 * @throws InputMismatchException in case the payload length exceeds the permitted length of a single package.
 	 */
 	public Message(int version, byte[] payload, byte[] nonce, byte[] privateKey, byte[] publicKey) throws InputMismatchException {
+		this(version, 0, ByteBuffer.wrap(payload), nonce, privateKey, publicKey);
+	}
+
+	/**
+	 * Creates a new message with the given additional flags in its type.
+	 * @param  version                The version of this message.
+	 * @param  flags                  The flags, other than the sign and dedication flags, of this message.
+	 * @param  payload                The payload of this message, from its position up to its limit.
+	 * @param  nonce                  The nonce that is used to guarantee freshness of this message, or null.
+	 * @param  publicKey              The public key of the recipient that is used to encrypt the signature, or null.
+	 * @param  privateKey             The private key of the sender that is used to sign the message's hash, or null.
+	 * @throws InputMismatchException in case the payload length exceeds the permitted length of a single package.
+	 */
+	Message(int version, int flags, ByteBuffer payload, byte[] nonce, byte[] privateKey, byte[] publicKey) throws InputMismatchException {
 		this.isSigned = nonce != null && privateKey != null;
 		this.isDedicated = isSigned && publicKey != null;
 		this.version = version;
-		this.length = payload.length;
+		this.type = flags | (isSigned?SIGN_FLAG:0) | (isDedicated?DEDICATION_FLAG:0);
+		this.length = payload.remaining();
 		if(length >= MAX_LENGTH) {
 			throw new InputMismatchException("The length of the payload exceeds the limit of one message.\nPayload length: " + length + "\nLength limit: " + MAX_LENGTH);
 		}
-		this.header = makeHeader(version, this.length, isSigned, isDedicated);
-		this.payload = payload;
+		if(version < 0 || version > MAX_VERSION) {
+			throw new InputMismatchException("The version of the message does not fit in its header.\nVersion: " + version + "\nVersion limit: " + MAX_VERSION);
+		}
+		this.header = makeHeader(version, type, this.length);
+		this.payload = payload.slice();
 		if(isSigned) {
-			this.nonce = nonce;
-			this.signature = Crypto.encrypt(hash(), privateKey);
+			this.nonce = ByteBuffer.wrap(nonce);
+			byte[] signature = sign(privateKey);
 			if(isDedicated) {
-				this.signature = Crypto.encrypt(this.signature, publicKey);
+				signature = Crypto.encrypt(signature, publicKey);
 			}
+			this.signature = ByteBuffer.wrap(signature);
 		}
 	}
 
+	/**
+	 * Creates a message from its decoded parts, as they were received. The
+	 * parts are used as they are; they are not copied.
+	 * @param  version   The version of this message.
+	 * @param  type      The type of this message.
+	 * @param  payload   The payload of this message.
+	 * @param  nonce     The nonce of this message, or null if it is not signed.
+	 * @param  signature The signature of this message, or null if it is not signed.
+	 */
+	private Message(int version, int type, ByteBuffer payload, ByteBuffer nonce, ByteBuffer signature) {
+		this.version = version;
+		this.type = type;
+		this.isSigned = isSigned(type);
+		this.isDedicated = isDedicated(type);
+		this.length = payload.remaining();
+		this.header = makeHeader(version, type, length);
+		this.payload = payload;
+		this.nonce = nonce;
+		this.signature = signature;
+	}
+
 	/**
 	 * Creates a new signed message that is not dedicated to a specific recipient.
 	 * @param  payload    The payload of this message.
@@ -130,29 +208,204 @@ class Message {
 		return m;
 	}
 
+	/**
+	 * Creates an ordinary unsigned frame.
+	 * @param  payload The payload of the frame, from its position up to its limit.
+	 * @return         The created frame.
+	 */
+	static Message frame(ByteBuffer payload) {
+		return frame(payload, null, null);
+	}
+
+	/**
+	 * Creates an ordinary frame, signed with the given key.
+	 * @param  payload    The payload of the frame, from its position up to its limit.
+	 * @param  nonce      The nonce that is used to guarantee freshness of this frame, or null.
+	 * @param  privateKey The key that is used to sign this frame, or null.
+	 * @return            The created frame.
+	 */
+	static Message frame(ByteBuffer payload, byte[] nonce, byte[] privateKey) {
+		return new Message(VERSION, 0, payload, nonce, privateKey, null);
+	}
+
+	/**
+	 * Creates an unsigned frame that carries one chunk of a larger logical message.
+	 * @param  payload The payload of the chunk, from its position up to its limit. This
+	 *                 must start with the {@code CHUNK_HEADER_SIZE} bytes that identify the stream.
+	 * @param  last    Indicates whether this is the last chunk of the logical message.
+	 * @return         The created frame.
+	 */
+	static Message chunk(ByteBuffer payload, boolean last) {
+		return chunk(payload, last, null, null);
+	}
+
+	/**
+	 * Creates a frame that carries one chunk of a larger logical message, signed with the given key.
+	 * @see Message#chunk(ByteBuffer, boolean)
+	 */
+	static Message chunk(ByteBuffer payload, boolean last, byte[] nonce, byte[] privateKey) {
+		return new Message(VERSION, CHUNK_FLAG | (last ? LAST_CHUNK_FLAG : 0), payload, nonce, privateKey, null);
+	}
+
+	/**
+	 * Indicates whether this frame is signed.
+	 */
+	boolean isSigned() {
+		return isSigned;
+	}
+
+	/**
+	 * The nonce of this signed frame, as a number. Senders count their nonces up
+	 * from zero, such that a {@code ReplayWindow} can tell whether it is fresh.
+	 * @throws IllegalStateException in case this frame is not signed.
+	 */
+	long getNonce() throws IllegalStateException {
+		if(!isSigned) {
+			throw new IllegalStateException("This message is not signed; it has no nonce.");
+		}
+		return nonce.getLong(0);
+	}
+
+	/**
+	 * Indicates whether this frame carries a chunk of a larger logical message.
+	 */
+	boolean isChunk() {
+		return (type & CHUNK_FLAG) != 0;
+	}
+
+	/**
+	 * Indicates whether this frame carries the last chunk of a logical message.
+	 */
+	boolean isLastChunk() {
+		return (type & LAST_CHUNK_FLAG) != 0;
+	}
+
+	/**
+	 * The identifier of the stream that the chunk in this frame belongs to.
+	 * @throws IllegalStateException in case this frame does not carry a chunk.
+	 */
+	int getStreamId() throws IllegalStateException {
+		if(!isChunk()) {
+			throw new IllegalStateException("This message does not carry a chunk.");
+		}
+		return payload.getInt(0);
+	}
+
+	/**
+	 * Gives a read-only view on the data of the chunk in this frame, which is the
+	 * payload without the stream identifier.
+	 * @throws IllegalStateException in case this frame does not carry a chunk.
+	 */
+	ByteBuffer getChunkData() throws IllegalStateException {
+		if(!isChunk()) {
+			throw new IllegalStateException("This message does not carry a chunk.");
+		}
+		ByteBuffer data = payload.asReadOnlyBuffer();
+		data.position(CHUNK_HEADER_SIZE);
+		return data.slice();
+	}
+
+	/**
+	 * The total size of this message as a frame, in bytes.
+	 */
+	int size() {
+		return (isSigned ? BASE_SIZE : HEADER_SIZE) + length;
+	}
+
+	/**
+	 * Determines the total size of the frame that starts at the position of the
+	 * given buffer, based on its header. The position of the buffer is not changed.
+	 * @param  buffer The buffer that contains (the start of) a frame.
+	 * @return        The size of the frame in bytes, or -1 if the buffer does not
+	 *                contain a complete header yet.
+	 */
+	static int frameSize(ByteBuffer buffer) {
+		assert HEADER_SIZE == HeaderLayout.SIZE; //Otherwise the header does not fit in one integer.
+		if(buffer.remaining() < HEADER_SIZE) {
+			return -1;
+		}
+		int header = HeaderLayout.peek(buffer);
+		return (isSigned(typeOf(header)) ? BASE_SIZE : HEADER_SIZE) + lengthOf(header);
+	}
+
+	private static int versionOf(int header) {
+		return header >>> (HEADER_SIZE * 8 - VERSION_BITS);
+	}
+
+	private static int typeOf(int header) {
+		return LAYOUTS[versionOf(header)].unpack(header, TYPE_FIELD);
+	}
+
+	private static int lengthOf(int header) {
+		return LAYOUTS[versionOf(header)].unpack(header, LENGTH_FIELD);
+	}
+
+	/**
+	 * Reads exactly one frame from the given stream: first the header, and then
+	 * exactly the amount of bytes that the header announces.
+	 * @param  input  The stream to read the frame from.
+	 * @param  buffer The heap buffer to read the frame into.
+	 * @return        The buffer that contains the complete frame, from position 0 up to its limit. This is
+	 *                a larger buffer than the given one if the frame didn't fit. Null is returned if the stream
+	 *                ended before a new frame started.
+	 * @throws IOException in case the stream ended in the middle of a frame.
+	 */
+	static ByteBuffer readFrame(DataInputStream input, ByteBuffer buffer) throws IOException {
+		int first = input.read();
+		if(first == -1) {
+			return null;
+		}
+		buffer.clear();
+		buffer.put((byte) first);
+		input.readFully(buffer.array(), buffer.arrayOffset() + 1, HEADER_SIZE - 1);
+		buffer.position(0);
+		buffer.limit(HEADER_SIZE);
+
+		int size = frameSize(buffer);
+		if(size > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(size);
+			larger.put(buffer);
+			buffer = larger;
+		}
+		input.readFully(buffer.array(), buffer.arrayOffset() + HEADER_SIZE, size - HEADER_SIZE);
+		buffer.position(0);
+		buffer.limit(size);
+		return buffer;
+	}
+
 	/**
 	 * Turns the content of this message into a single
 	 * byte array.
 	 */
 	public byte[] toByteArray() {
-		ByteBuffer bb;
-		if(isSigned) {
-			bb = ByteBuffer.wrap(new byte[BASE_SIZE + length]);
-		} else {
-			bb = ByteBuffer.wrap(new byte[HEADER_SIZE + length]);
+		ByteBuffer bb = ByteBuffer.allocate(size());
+		writeTo(bb);
+		return bb.array();
+	}
+
+	/**
+	 * Writes this message as a frame into the given buffer, starting at its
+	 * position. This allows a frame to be written directly into a (socket)
+	 * buffer, without intermediate copies.
+	 * @param  target The buffer to write into.
+	 * @throws BufferOverflowException in case the remaining space of the buffer is less than {@code size()}.
+	 */
+	public void writeTo(ByteBuffer target) throws BufferOverflowException {
+		if(target.remaining() < size()) {
+			throw new BufferOverflowException();
 		}
-		bb.put(header);
-		bb.put(payload);
+		target.putInt(header);
+		target.put(payload.duplicate());
 		if(isSigned) {
-			bb.put(nonce);
-			bb.put(signature);
+			target.put(nonce.duplicate());
+			target.put(signature.duplicate());
 		}
-		return bb.array();
 	}
 
 	/**
 	 * Checks whether the signature of this signed message is valid, given the public key of the
-	 * potential signer.
+	 * potential signer. Signatures are HMAC-SHA256 tags, so until keys are exchanged
+	 * asymmetrically, this key is the same shared secret that the message was signed with.
 	 * @param  publicKey The public key that corresponds to the private key used for signing.
 	 * @return           True iff the signature is valid.
 	 * @throws  IllegalStateException in case that this message is not signed.
@@ -161,7 +414,7 @@ class Message {
 		if(!isSigned) {
 			throw new IllegalStateException("This message is not signed; checking the signature is not possible.");
 		}
-		return Crypto.isSignatureValid(hash(), signature, publicKey);
+		return Crypto.isEqual(sign(publicKey), signature);
 	}
 
 	/**
@@ -176,90 +429,56 @@ class Message {
 		if(!isSigned) {
 			throw new IllegalStateException("This message is not signed; checking the signature is not possible.");
 		}
-		return Crypto.isSignatureValid(hash(), Crypto.encrypt(signature, privateKey), publicKey);
+		return Crypto.isEqual(sign(publicKey), ByteBuffer.wrap(Crypto.encrypt(toArray(signature), privateKey)));
 	}
 
 
 	public byte[] getPayload() {
-		return payload;
+		if(payload.hasArray() && payload.arrayOffset() == 0 && payload.array().length == length) {
+			return payload.array();
+		}
+		return toArray(payload);
 	}
 
 	/**
-	 * Calculates the hash of the header, the payload, and the nonce.
+	 * Gives a read-only view on the payload, without copying it. If this message
+	 * was read from a buffer, the view shares its content with that buffer, so it
+	 * is only valid until that buffer is reused.
 	 */
-	private byte[] hash() {
-		ByteBuffer bb = ByteBuffer.wrap(new byte[HEADER_SIZE + NONCE_SIZE + length]); // Signature is not included ..obviously
-		bb.put(header);
-		bb.put(payload);
-		bb.put(nonce);
-		return Crypto.hash(bb.array());
+	public ByteBuffer getPayloadBuffer() {
+		return payload.asReadOnlyBuffer();
 	}
 
-	/**
-	 * Composes the header of the message from the version
-	 * number and the length of the payload.
-	 * This function is extremely ugly since we potentially 
-	 * need to mix two numbers into one byte.
-	 */
-	private byte[] makeHeader(int version, int length, boolean isSigned, boolean isDedicated) {
-		assert VERSION_BITS < 8 && TYPE_BITS < 8; //Otherwise we'll have to rewrite this.
-		assert LENGTH_BITS < 31; //Otherwise we can't even fit the length into one integer in the first place. At least on 32 bits machines.
-		ByteBuffer bb = ByteBuffer.wrap(new byte[HEADER_SIZE]);
-		int shift = 7;
-		byte b = 0;
-		
-		for(int i = VERSION_BITS - 1; i > 0; i--) {
-			b |= (version / (1 << i))<<shift--;
-			version %= (1 << i);
-			if(shift < 0) {
-				bb.put(b);
-				b = 0;
-				shift = 7;
-			}
-		}
-		b |= version << shift--;
-		if(shift < 0) {
-			bb.put(b);
-			b = 0;
-			shift = 7;
-		}
-		int type = 0;
-		type |= (isSigned?SIGN_FLAG:0);
-		type |= (isDedicated?DEDICATION_FLAG:0);
-
-		for(int i = TYPE_BITS - 1; i > 0; i--) {
-			b |= (type / (1 << i))<<shift--;
-			type %= (1 << i);
-			if(shift < 0) {
-				bb.put(b);
-				b = 0;
-				shift = 7;
-			}
-		}
-		b |= type << shift--;
-		if(shift < 0) {
-			bb.put(b);
-			b = 0;
-			shift = 7;
-		}
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] array = new byte[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
 
-		for(int i = LENGTH_BITS - 1; i > 0; i--) {
-			b |= (length / (1 << i))<<shift--;
-			length %= (1 << i);
-			if(shift < 0) {
-				bb.put(b);
-				b = 0;
-				shift = 7;
-			}
-		}
-		b |= length << shift--;
-		if(shift < 0) {
-			bb.put(b);
-			b = 0;
-			shift = 7;
-		}
+	/**
+	 * Signs the header, the payload, and the nonce with the given key. They are fed
+	 * to the signature one after the other, so they are never copied into one array.
+	 */
+	private byte[] sign(byte[] key) {
+		Mac mac = Crypto.mac(key);
+		mac.update((byte) (header >>> 24));
+		mac.update((byte) (header >>> 16));
+		mac.update((byte) (header >>> 8));
+		mac.update((byte) header);
+		mac.update(payload.duplicate());
+		mac.update(nonce.duplicate());
+		return mac.doFinal(); // Signature is not included ..obviously
+	}
 
-		return bb.array();
+	/**
+	 * Composes the header of the message from the version
+	 * number, the type and the length of the payload.
+	 */
+	private static int makeHeader(int version, int type, int length) {
+		HeaderLayout layout = LAYOUTS[version];
+		int header = layout.pack(0, VERSION_FIELD, version);
+		header = layout.pack(header, TYPE_FIELD, type);
+		return layout.pack(header, LENGTH_FIELD, length);
 	}
 	
 	private static boolean isSigned(int type) {
@@ -281,69 +500,106 @@ class Message {
 		// The public key that does supposedly match the signature of any
 		// read message.
 		private final byte[] publicKey;
+
+		// Rejects signed messages that were read before, or null.
+		private final ReplayWindow window;
 		
 		public MessageReader(byte[] publicKey) {
+			this(publicKey, null);
+		}
+
+		/**
+		 * Creates a reader that rejects signed messages of which the nonce is not fresh
+		 * according to the given window. The window is not moved by the reader; that
+		 * only happens once the signature of a message has been checked.
+		 * @param  publicKey The public key of the sender.
+		 * @param  window    The window of the connection that is read from, or null.
+		 */
+		MessageReader(byte[] publicKey, ReplayWindow window) {
 			this.publicKey = publicKey;
+			this.window = window;
 		}
 
+		/**
+		 * Reads one frame from the given stream.
+		 * @return The message that was read, or null if it is a signed message that was
+		 *         replayed or is too old.
+		 */
 		public Message parse(InputStream bb) throws ParseException, IOException {
-			parseHeader(bb);
+			DataInputStream input = new DataInputStream(bb);
+			parseHeader(input);
 			payload = new byte[length];
-			bb.read(payload);
+			input.readFully(payload);
 			if (isSigned(type)) {
 				nonce = new byte[NONCE_SIZE];
-				bb.read(nonce);
+				input.readFully(nonce);
 				signature = new byte[SIG_SIZE];
-				bb.read(signature);
-				if(isDedicated(type)) {
-					return new Message(version, payload, nonce, signature, publicKey);
-				} else {
-					return new Message(version, payload, nonce, signature);									
+				input.readFully(signature);
+				if (!isFresh(ByteBuffer.wrap(nonce))) {
+					return null;
 				}
+				return new Message(version, type, ByteBuffer.wrap(payload), ByteBuffer.wrap(nonce), ByteBuffer.wrap(signature));
 			} else {
-				return new Message(version, payload);
+				return new Message(version, type, ByteBuffer.wrap(payload), null, null);
 			}
 		}
-		
-		private void parseHeader(InputStream bb) throws ParseException, IOException{
-			assert HEADER_SIZE > 0; //Otherwise we'll have to rewrite this.
-			assert LENGTH_BITS < 31; //Otherwise we can't even fit the length into one integer in the first place. At least on 32 bits machines.
-			
-			int[] numBits = new int[]{VERSION_BITS, TYPE_BITS, LENGTH_BITS};
-			int[] values = getBitBlocks(numBits, bb);
-			int i = 0;
-			this.version = values[i++];
-			this.type = values[i++];
-			this.length = values[i++];
-		}
 
-		private int[] getBitBlocks(int[] numBits, InputStream bb) throws IOException{
-			int pos = 0;
-			int b = 0;
-			int value[] = new int[numBits.length];
-			for(int i = 0; i < numBits.length; i++) {
-				int remaining = numBits[i];
-				while(remaining > 0) {
-					if(pos == 0) {
-						int read = bb.read();
-						if (read == -1) {
-							throw new IOException("Stream closed");
-						}
-						b = 0xFF & read;
-						pos = 8;
-					}
-					int maskSize = ((remaining-1) % 8)+1 > pos? pos : ((remaining-1) % 8)+1;
-					byte mask = (byte) (0xFF >> (8 - maskSize));
-					mask <<= pos - maskSize;
-					int val = b & mask;
-					pos -= maskSize;
-					val >>= pos;
-					remaining -= maskSize;
-					val <<= remaining;
-					value[i] |= val;
+		/**
+		 * Reads one complete frame from the given buffer, starting at its position. The
+		 * position is moved past the frame. Nothing is copied: the payload, nonce and
+		 * signature of the returned message are views on the buffer, so the message is
+		 * only valid until the buffer is reused.
+		 * @param  source The buffer that contains the frame.
+		 * @return        The message that was read, or null if it is a signed message that
+		 *                was replayed or is too old. The frame is skipped either way.
+		 * @throws ParseException in case the buffer does not contain a complete frame.
+		 */
+		public Message readFrom(ByteBuffer source) throws ParseException {
+			int size = frameSize(source);
+			if(size < 0 || source.remaining() < size) {
+				throw new ParseException("The buffer does not contain a complete frame.", source.position());
+			}
+			int header = source.getInt();
+			this.version = versionOf(header);
+			this.type = typeOf(header);
+			this.length = lengthOf(header);
+
+			ByteBuffer payload = slice(source, length);
+			if (isSigned(type)) {
+				ByteBuffer nonce = slice(source, NONCE_SIZE);
+				ByteBuffer signature = slice(source, SIG_SIZE);
+				if (!isFresh(nonce)) {
+					return null;
 				}
+				return new Message(version, type, payload, nonce, signature);
+			} else {
+				return new Message(version, type, payload, null, null);
 			}
-			return value;
+		}
+
+		/**
+		 * Checks the given nonce against the replay window, if there is one. This is
+		 * a cheap check, so a replayed frame is rejected before its signature is checked.
+		 */
+		private boolean isFresh(ByteBuffer nonce) {
+			return window == null || window.isFresh(nonce.getLong(0));
+		}
+
+		/**
+		 * Takes the next {@code length} bytes of the buffer as a separate view.
+		 */
+		private static ByteBuffer slice(ByteBuffer source, int length) {
+			ByteBuffer slice = source.duplicate();
+			slice.limit(slice.position() + length);
+			source.position(source.position() + length);
+			return slice.slice();
+		}
+		
+		private void parseHeader(DataInputStream bb) throws ParseException, IOException{
+			int header = bb.readInt();
+			this.version = versionOf(header);
+			this.type = typeOf(header);
+			this.length = lengthOf(header);
 		}
 	}
 
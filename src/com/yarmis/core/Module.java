@@ -1,5 +1,7 @@
 package com.yarmis.core;
 
+import java.util.concurrent.TimeUnit;
+
 
 
 public interface Module<RemoteClass> {
@@ -11,6 +13,21 @@ public interface Module<RemoteClass> {
 	
 	public void useLocalImplementation(RemoteClass localInstance);
 	
+	/**
+	 * Sets how long a remote call waits for its response, for the methods
+	 * that don't declare a {@code Timeout} themselves. A timeout of 0 waits as
+	 * long as it takes. Without it, the timeout of the
+	 * {@code CommunicationManager} applies.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit);
+	
+	/**
+	 * Sets the priority of the incoming requests for this Module, instead of
+	 * the priority that follows from the {@code Right}s that its methods
+	 * demand. Passing {@code null} goes back to the latter.
+	 */
+	public void setPriority(Priority priority);
+	
 
 	public void setFunctionalityDefinitionClass(Class<?> functionalityDefinitionClass);
 	
@@ -1,9 +1,12 @@
 package com.yarmis.core;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
 	Module<RemoteClass> {
@@ -22,6 +25,23 @@ class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
 
     private HashMap<Method, Method> methodCache;
 
+    /**
+     * The methods of the Module, resolved when it was created.
+     */
+    private DispatchTable dispatchTable;
+
+    /**
+     * The timeout of remote calls in milliseconds, or -1 to use the timeout of
+     * the CommunicationManager.
+     */
+    private volatile long timeout = -1;
+
+    /**
+     * The priority of the incoming requests for the Module, or null to use the
+     * priority of the Rights that its methods demand.
+     */
+    private volatile Priority priority = null;
+
     /**
      * The implementation to use for local usage.
      */
@@ -120,6 +140,61 @@ class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
 
     }
 
+    public void setTimeout(long timeout, TimeUnit unit) {
+	if (timeout < 0)
+	    throw new IllegalArgumentException("The timeout can't be negative.");
+	this.timeout = unit.toMillis(timeout);
+    }
+
+    public void setPriority(Priority priority) {
+	this.priority = priority;
+    }
+
+    /**
+     * The priority of the incoming requests for the Module, or null if it
+     * follows from the Rights that its methods demand.
+     */
+    Priority getPriority() {
+	return this.priority;
+    }
+
+    /**
+     * Sets the dispatch table of the Module. This is done once, when the
+     * Module is created.
+     */
+    void setDispatchTable(DispatchTable dispatchTable) {
+	this.dispatchTable = dispatchTable;
+    }
+
+    /**
+     * Invokes the method of the given entry of the dispatch table, either
+     * remotely or on the local implementation, just like an invocation of the
+     * Module itself.
+     * 
+     * @param entry
+     *            The entry of the method to invoke.
+     * @param arguments
+     *            The arguments to pass to the call of the method.
+     * @return The value that the method returned.
+     * @throws IllegalArgumentException
+     *             If the arguments don't match the parameters of the method.
+     * @throws InvocationTargetException
+     *             If the method threw an exception, which is its cause.
+     */
+    Object dispatch(DispatchTable.Entry entry, Object[] arguments)
+	    throws IllegalArgumentException, InvocationTargetException {
+	// Only what the method itself throws is passed on as its outcome.
+	entry.check(arguments);
+	try {
+	    if (this.isRemote)
+		return this.invokeRemotely(entry.getMethod(), arguments);
+	    else
+		return entry.invoke(this.implementation, arguments);
+	} catch (Throwable throwable) {
+	    throw new InvocationTargetException(throwable);
+	}
+    }
+
     /**
      * Indicates whether all method calls will be executed remotely.
      * 
@@ -152,7 +227,14 @@ class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
     }
 
     /**
+     * <p>
      * Call to let the method be executed remotely.
+     * </p>
+     * <p>
+     * If the method returns a {@code CompletableFuture}, the call returns
+     * right away, and the future is completed once the response comes in.
+     * Otherwise the call waits for the response.
+     * </p>
      * 
      * @param method
      *            The method to be executed remotely.
@@ -163,7 +245,28 @@ class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
 	    throws Throwable {
 
 	assert (this.isRemote);
-	return CommunicationManager.request(method, arguments).get();
+	Result result = CommunicationManager.request(method,
+		this.timeoutOf(method), arguments);
+	if (method.getReturnType() == CompletableFuture.class)
+	    return result.toCompletableFuture();
+	return result.get();
+    }
+
+    /**
+     * Determines how long a remote call of the given method waits for its
+     * response: the timeout that the method declares, or else the timeout of
+     * this Module, or else that of the CommunicationManager.
+     * 
+     * @return The timeout in milliseconds, or 0 to wait as long as it takes.
+     */
+    private long timeoutOf(Method method) {
+	DispatchTable.Entry entry = this.dispatchTable == null ? null
+		: this.dispatchTable.lookup(method);
+	if (entry != null && entry.getTimeout() >= 0)
+	    return entry.getTimeout();
+	if (this.timeout >= 0)
+	    return this.timeout;
+	return CommunicationManager.getTimeout();
     }
 
     /**
@@ -244,6 +347,12 @@ class ModuleInvocationHandler<RemoteClass> implements InvocationHandler,
 	// Assert that a local invocation is indeed wanted.
 	assert (this.implementation != null && !this.isRemote);
 
+	// Methods that can be invoked remotely are in the dispatch table.
+	DispatchTable.Entry entry = this.dispatchTable == null ? null
+		: this.dispatchTable.lookup(method);
+	if (entry != null)
+	    return entry.invoke(this.implementation, arguments);
+
 	return lookupImplementingMethod(method).invoke(implementation,
 		arguments);
     }
@@ -3,15 +3,15 @@ package com.yarmis.core;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.yarmis.core.security.DemandRights;
-import com.yarmis.core.security.Right;
 
 public class ModuleManager {
 
@@ -23,6 +23,24 @@ public class ModuleManager {
 
     private static HashSet<String> accessibility = new HashSet<String>();
 
+    /**
+     * The dispatch table of every Module, by the name of the Module.
+     */
+    private static ConcurrentHashMap<String, DispatchTable> dispatchTables = new ConcurrentHashMap<String, DispatchTable>();
+
+    /**
+     * The methods of the current Modules, by their number. The number of a
+     * method that no current Module has anymore holds {@code null}.
+     */
+    private static CopyOnWriteArrayList<DispatchTable.Entry> entries = new CopyOnWriteArrayList<DispatchTable.Entry>();
+
+    /**
+     * The numbers of all methods that were ever registered, by their key. A
+     * method keeps its number when its Module is created again, such that the
+     * numbers that other devices know stay valid.
+     */
+    private static HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
     /**
      * Creates a new Module based on the given class. The resulting Module
      * provides the functionality as defined by {@code functionalityDefinition}.
@@ -53,16 +71,28 @@ public class ModuleManager {
 	validateClass(functionalityDefinition);
 
 	// When it is validated, create a new Module Proxy.
+	ModuleInvocationHandler<Fuctionality> handler = new ModuleInvocationHandler<Fuctionality>();
 	Module<Fuctionality> module = (Module<Fuctionality>) Proxy
 		.newProxyInstance(
 			functionalityDefinition.getClassLoader(),
 			new Class<?>[] { functionalityDefinition, Module.class },
-			new ModuleInvocationHandler<Fuctionality>());
+			handler);
 
 	module.setFunctionalityDefinitionClass(functionalityDefinition);
+
+	// Resolve the methods once, rather than for every request.
+	DispatchTable table = new DispatchTable(functionalityDefinition, handler);
+	handler.setDispatchTable(table);
 	
 	// Register the Module
 	ModuleManager.register(module, functionalityDefinition);
+	DispatchTable replaced = ModuleManager.dispatchTables.put(
+		functionalityDefinition.getSimpleName(), table);
+	if (replaced != null)
+	    ModuleManager.retire(replaced);
+
+	// Other devices can name the new methods by their number from now on.
+	CommunicationManager.publishSchema();
 
 	return (Fuctionality) module;
 
@@ -127,7 +157,7 @@ public class ModuleManager {
      *            The {@code Method} to verify.
      * @return
      */
-    private static boolean validateMethod(Method method) {
+    static boolean validateMethod(Method method) {
 	if (Modifier.isPublic(method.getModifiers())
 		&& method.getAnnotation(DemandRights.class) != null) {
 	    for (Class<?> _class : method.getParameterTypes())
@@ -208,36 +238,117 @@ public class ModuleManager {
 
     }
 
-    static Object handleRequest(JSONObject message, List<Right> assignedRights)
-	    throws Throwable {
+    /**
+     * Finds the method that the given request is for. The method is named
+     * either by its number, or by the name of its Module, its own name and
+     * the types of the arguments.
+     * 
+     * @param request
+     *            The request.
+     * @return The entry of the method in the dispatch table of its Module.
+     * @throws NoSuchMethodException
+     *             If the request names a method that doesn't exist, or that
+     *             can't be invoked remotely.
+     */
+    static DispatchTable.Entry resolve(JSONObject request)
+	    throws NoSuchMethodException {
+	if (request.has(Communication.Request.ID)) {
+	    int id = request.getInt(Communication.Request.ID);
+	    DispatchTable.Entry entry = id < 0
+		    || id >= ModuleManager.entries.size() ? null
+		    : ModuleManager.entries.get(id);
+	    if (entry == null)
+		throw new NoSuchMethodException("Unknown method number " + id);
+	    // The arguments are checked as strictly as when the method is
+	    // named.
+	    if (!entry.accepts(request.getJSONArray(Communication.Request.VALUES)))
+		throw new NoSuchMethodException("Method number " + id
+			+ " is " + entry.getKey());
+	    return entry;
+	}
 
-	String recipient = message.getString(Communication.Request.MODULE);
+	String module = request.getString(Communication.Request.MODULE);
+	DispatchTable table = ModuleManager.getDispatchTable(module);
+	if (table == null)
+	    throw new NoSuchMethodException("Unknown module " + module);
+	return table.lookup(request.getString(Communication.Request.METHOD),
+		request.getJSONArray(Communication.Request.VALUES));
+    }
 
-	// Check whether the module has been cleared for remote invocation.
-	if (!ModuleManager.accessibility.contains(recipient))
-	    throw new IllegalAccessException("Module " + recipient
-		    + " is not accessible for remote invocation.");
+    /**
+     * Assigns a number to the given method: the number that the method had
+     * before, or else the next number.
+     * 
+     * @param entry
+     *            The entry of the method in the dispatch table of its Module.
+     * @return The number of the method.
+     */
+    static synchronized int register(DispatchTable.Entry entry) {
+	Integer id = ModuleManager.ids.get(entry.getKey());
+	if (id != null) {
+	    ModuleManager.entries.set(id, entry);
+	    return id;
+	}
 
-	JSONArray args = message.getJSONArray(Communication.Request.VALUES);
+	ModuleManager.entries.add(entry);
+	ModuleManager.ids.put(entry.getKey(), ModuleManager.entries.size() - 1);
+	return ModuleManager.entries.size() - 1;
+    }
 
-	Class<?>[] argumentTypes = new Class<?>[args.length()];
-	Object[] arguments = new Object[args.length()];
+    /**
+     * Retires the numbers of the methods of a dispatch table that has been
+     * replaced, unless the table that replaced it took them over.
+     * 
+     * @param table
+     *            The dispatch table that has been replaced.
+     */
+    private static synchronized void retire(DispatchTable table) {
+	for (DispatchTable.Entry entry : table.getEntries())
+	    if (ModuleManager.entries.get(entry.getId()) == entry)
+		ModuleManager.entries.set(entry.getId(), null);
+    }
 
-	for (int i = 0; i < args.length(); ++i) {
-	    argumentTypes[i] = Communication.convertCharToClass(args
-		    .getJSONObject(i)
-		    .getString(Communication.Value.TYPE).charAt(0));
-	    arguments[i] = args.getJSONObject(i).get(
-		    Communication.Value.VALUE);
-	}
+    /**
+     * Creates the message that tells another device by which numbers it can
+     * name the methods of the current Modules.
+     * 
+     * @return The schema message.
+     */
+    static JSONObject createSchema() {
+	JSONObject methods = new JSONObject();
+	for (DispatchTable table : ModuleManager.dispatchTables.values())
+	    for (DispatchTable.Entry entry : table.getEntries())
+		methods.put(entry.getKey(), entry.getId());
+
+	JSONObject schema = new JSONObject();
+	schema.put(Communication.TYPE, Communication.SCHEMA);
+	schema.put(Communication.Schema.METHODS, methods);
+	return schema;
+    }
 
-	return ModuleManager.modules
-		.get(recipient)
-		.getClass()
-		.getMethod(message.getString(Communication.Request.METHOD),
-			argumentTypes)
-		.invoke(ModuleManager.modules.get(recipient), arguments);
+    /**
+     * Obtains the dispatch table of the Module that was registered under the
+     * given name.
+     * 
+     * @param module
+     *            The name of the Module
+     * @return The dispatch table, or {@code null} if no Module has been
+     *         registered under the given name.
+     */
+    static DispatchTable getDispatchTable(String module) {
+	return ModuleManager.dispatchTables.get(module);
+    }
 
+    /**
+     * Obtains the Module that was registered under the given name.
+     * 
+     * @param module
+     *            The name of the Module
+     * @return The Module, or {@code null} if no Module has been registered
+     *         under the given name.
+     */
+    static Module<?> getModule(String module) {
+	return ModuleManager.modules.get(module);
     }
 
     /**
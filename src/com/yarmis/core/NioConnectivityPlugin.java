@@ -0,0 +1,622 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A {@code ConnectivityPlugin} that is built on non-blocking
+ * {@code SocketChannel}s. Instead of a Reader thread per {@code Connection}
+ * and a thread that blocks on accepting new connections, a small fixed set of
+ * event loops multiplexes all connections using a {@code Selector}.
+ * </p>
+ * <p>
+ * Each event loop reads the incoming {@code Message} frames of the
+ * connections that are assigned to it, and hands every complete frame to the
+ * {@code CommunicationManager}.
+ * </p>
+ * <p>
+ * An event loop never waits for anything but its selector. A connection over
+ * which a stream comes in faster than it is consumed is no longer read from,
+ * until the stream has caught up, while the other connections of its loop
+ * are still served.
+ * </p>
+ */
+public class NioConnectivityPlugin extends ConnectivityPlugin {
+
+    /**
+     * The maximum amount of frames that is written to a channel at once.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The event loops that handle the connections.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * Used to assign new connections to the event loops in a round robin
+     * fashion.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * The channel that accepts new connections while hosting.
+     */
+    private ServerSocketChannel server = null;
+
+    /**
+     * Creates a new NioConnectivityPlugin that uses one event loop per
+     * available processor.
+     */
+    public NioConnectivityPlugin() {
+	this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new NioConnectivityPlugin that uses the given amount of event
+     * loops.
+     *
+     * @param loops
+     *            The amount of event loops to use. This must be at least 1.
+     */
+    public NioConnectivityPlugin(int loops) {
+	if (loops < 1)
+	    throw new IllegalArgumentException(
+		    "At least one event loop is required.");
+	this.loops = new EventLoop[loops];
+    }
+
+    @Override
+    protected synchronized void startHosting() throws IOException {
+	this.server = ServerSocketChannel.open();
+	this.server.bind(new InetSocketAddress(Communication.PORT));
+	this.server.configureBlocking(false);
+
+	// The first loop also accepts the new connections.
+	this.loop(0).registerServer(this.server);
+    }
+
+    @Override
+    protected synchronized void stopHosting() throws IOException {
+	if (this.server != null)
+	    this.server.close();
+    }
+
+    @Override
+    protected Connection connectTo(Device device) throws IOException {
+
+	SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+		device.getAddress(), Communication.PORT));
+	channel.configureBlocking(false);
+	// Requests are pipelined in small frames, which must not wait for the
+	// acknowledgement of the frames before them.
+	channel.socket().setTcpNoDelay(true);
+
+	ChannelConnection connection = new ChannelConnection(device, channel);
+	this.nextLoop().register(connection);
+	CommunicationManager.register(connection);
+	connection.startSession();
+
+	return connection;
+    }
+
+    @Override
+    protected boolean isHosting() {
+	return this.server != null && this.server.isOpen();
+    }
+
+    /**
+     * Stops all event loops and closes the connections they handle. This also
+     * stops hosting.
+     *
+     * @throws IOException
+     */
+    public synchronized void shutdown() throws IOException {
+	this.stopHosting();
+	for (EventLoop loop : this.loops)
+	    if (loop != null)
+		loop.shutdown();
+    }
+
+    /**
+     * Obtains the event loop to assign the next connection to.
+     */
+    private EventLoop nextLoop() throws IOException {
+	return this.loop((this.nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+		% this.loops.length);
+    }
+
+    /**
+     * Obtains the event loop with the given index. The event loop is started
+     * when it is used for the first time.
+     */
+    private synchronized EventLoop loop(int index) throws IOException {
+	if (this.loops[index] == null)
+	    this.loops[index] = new EventLoop(index);
+	return this.loops[index];
+    }
+
+    /**
+     * An event loop that handles the accepting, reading and writing for a
+     * subset of all connections on a single thread.
+     */
+    private final class EventLoop implements Runnable {
+
+	private final Selector selector;
+
+	/**
+	 * Server channels that need to be registered with the selector.
+	 * Registering has to happen on the thread of the loop itself.
+	 */
+	private final Queue<ServerSocketChannel> servers = new ConcurrentLinkedQueue<ServerSocketChannel>();
+
+	/**
+	 * Connections that need to be registered with the selector.
+	 */
+	private final Queue<ChannelConnection> registrations = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	/**
+	 * Connections that have frames waiting to be written.
+	 */
+	private final Queue<ChannelConnection> writers = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	/**
+	 * Connections that have been throttled, or are no longer throttled.
+	 */
+	private final Queue<ChannelConnection> throttled = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	private volatile boolean running = true;
+
+	private final Thread thread;
+
+	private EventLoop(int index) throws IOException {
+	    this.selector = Selector.open();
+
+	    this.thread = new Thread(this, "yarmis-event-loop-" + index);
+	    this.thread.start();
+	}
+
+	private void registerServer(ServerSocketChannel channel) {
+	    this.servers.add(channel);
+	    this.selector.wakeup();
+	}
+
+	private void register(ChannelConnection connection) {
+	    connection.loop = this;
+	    this.registrations.add(connection);
+	    this.selector.wakeup();
+	}
+
+	private void requestWrite(ChannelConnection connection) {
+	    this.writers.add(connection);
+	    this.selector.wakeup();
+	}
+
+	private void requestReadingChange(ChannelConnection connection) {
+	    this.throttled.add(connection);
+	    this.selector.wakeup();
+	}
+
+	private void shutdown() {
+	    this.running = false;
+	    this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+	    while (this.running) {
+		try {
+		    this.selector.select();
+		    this.processRegistrations();
+		    this.processWriters();
+		    this.processThrottled();
+
+		    Iterator<SelectionKey> keys = this.selector.selectedKeys()
+			    .iterator();
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			this.handle(key);
+		    }
+		} catch (IOException e) {
+		    e.printStackTrace();
+		} catch (RuntimeException e) {
+		    // Whatever went wrong, the other connections of this loop
+		    // must still be served.
+		    e.printStackTrace();
+		} catch (Error e) {
+		    e.printStackTrace();
+		}
+	    }
+
+	    // Close everything that this loop was responsible for.
+	    for (SelectionKey key : this.selector.keys())
+		if (key.attachment() instanceof ChannelConnection)
+		    ((ChannelConnection) key.attachment()).drop();
+	    try {
+		this.selector.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+
+	private void processRegistrations() {
+	    ServerSocketChannel server;
+	    while ((server = this.servers.poll()) != null)
+		try {
+		    server.register(this.selector, SelectionKey.OP_ACCEPT);
+		} catch (ClosedChannelException e) {
+		    // Hosting was stopped before it really started.
+		}
+
+	    ChannelConnection connection;
+	    while ((connection = this.registrations.poll()) != null)
+		try {
+		    connection.key = connection.channel.register(
+			    this.selector, connection.readOps(), connection);
+		} catch (ClosedChannelException e) {
+		    connection.drop();
+		} catch (RuntimeException e) {
+		    e.printStackTrace();
+		    connection.drop();
+		}
+	}
+
+	private void processWriters() {
+	    ChannelConnection connection;
+	    while ((connection = this.writers.poll()) != null)
+		try {
+		    if (connection.key != null && connection.key.isValid())
+			connection.key.interestOps(connection.key.interestOps()
+				| SelectionKey.OP_WRITE);
+		} catch (CancelledKeyException e) {
+		    // The connection was closed in the meantime.
+		    connection.drop();
+		} catch (RuntimeException e) {
+		    e.printStackTrace();
+		    connection.drop();
+		}
+	}
+
+	/**
+	 * Stops or starts reading from the connections whose throttling
+	 * changed, according to whether they are throttled now.
+	 */
+	private void processThrottled() {
+	    ChannelConnection connection;
+	    while ((connection = this.throttled.poll()) != null)
+		try {
+		    SelectionKey key = connection.key;
+		    if (key != null && key.isValid())
+			key.interestOps(connection.readOps()
+				| (key.interestOps() & SelectionKey.OP_WRITE));
+		} catch (CancelledKeyException e) {
+		    connection.drop();
+		}
+	}
+
+	private void handle(SelectionKey key) {
+	    if (!key.isValid())
+		return;
+
+	    if (key.isAcceptable()) {
+		this.accept((ServerSocketChannel) key.channel());
+		return;
+	    }
+
+	    ChannelConnection connection = (ChannelConnection) key
+		    .attachment();
+	    try {
+		if (key.isReadable() && !connection.isThrottled())
+		    connection.read();
+		if (key.isValid() && key.isWritable())
+		    connection.write();
+	    } catch (IOException e) {
+		connection.drop();
+	    } catch (ParseException e) {
+		// The stream is corrupt, there is no way to find the next frame.
+		connection.drop();
+	    } catch (CancelledKeyException e) {
+		connection.drop();
+	    } catch (RuntimeException e) {
+		// Handling a message must never stop the loop.
+		e.printStackTrace();
+	    }
+	}
+
+	private void accept(ServerSocketChannel server) {
+	    try {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+		    channel.configureBlocking(false);
+		    channel.socket().setTcpNoDelay(true);
+		    ChannelConnection connection = new ChannelConnection(
+			    channel);
+		    NioConnectivityPlugin.this.nextLoop().register(connection);
+		    CommunicationManager.register(connection);
+		    connection.startSession();
+		}
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * A Connection over a non-blocking {@code SocketChannel}. The reading and
+     * writing is done by the event loop it is assigned to.
+     */
+    private static final class ChannelConnection extends Connection {
+
+	private final SocketChannel channel;
+
+	/**
+	 * The frames that are waiting to be written.
+	 */
+	private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The amount of bytes in the outgoing frames and the frames that are
+	 * being written.
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	/**
+	 * Notified when the queued bytes drop below the limit, or the channel
+	 * is closed.
+	 */
+	private final Object writable = new Object();
+
+	/**
+	 * The frames that are being written, in a single gathering write. Only
+	 * used by the event loop.
+	 */
+	private final ByteBuffer[] writing = new ByteBuffer[NioConnectivityPlugin.MAX_GATHER];
+
+	/**
+	 * The amount of frames in {@code writing}.
+	 */
+	private int writingCount = 0;
+
+	/**
+	 * Indicates that the event loop has been asked to write the outgoing
+	 * frames, and hasn't found the queue empty since.
+	 */
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/**
+	 * The pooled buffer in which the incoming frames are collected, or
+	 * {@code null} while no partial frame is waiting. Only used by the
+	 * event loop.
+	 */
+	private ByteBuffer incoming = null;
+
+	/**
+	 * Decodes the frames that are read from the incoming buffer.
+	 */
+	private final Message.MessageReader reader = this.newReader();
+
+	private volatile EventLoop loop;
+
+	private volatile SelectionKey key;
+
+	private ChannelConnection(SocketChannel channel) throws IOException {
+	    super(((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+	    this.channel = channel;
+	}
+
+	private ChannelConnection(Device device, SocketChannel channel) {
+	    super(device);
+	    this.channel = channel;
+	}
+
+	@Override
+	protected void queue(Message message) throws IOException {
+	    if (!this.channel.isOpen())
+		throw new ClosedChannelException();
+
+	    ByteBuffer frame = BufferPool.DEFAULT.acquire(message.size());
+	    message.writeTo(frame);
+	    frame.flip();
+
+	    this.outgoing.add(frame);
+	    long queued = this.queuedBytes.addAndGet(frame.limit());
+	    if (queued <= Connection.MAX_QUEUED_BYTES)
+		return;
+
+	    // The event loop can't keep up, so wait for it. The event loop
+	    // itself may send as well, and never waits for its own writes.
+	    EventLoop loop = this.loop;
+	    if (loop == null || Thread.currentThread() == loop.thread)
+		return;
+	    this.flush();
+	    this.awaitWritable();
+	}
+
+	/**
+	 * Waits until the queued bytes are within the limit again.
+	 */
+	private void awaitWritable() throws IOException {
+	    synchronized (this.writable) {
+		while (this.queuedBytes.get() > Connection.MAX_QUEUED_BYTES
+			&& this.channel.isOpen())
+		    try {
+			this.writable.wait();
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		    }
+	    }
+	    if (!this.channel.isOpen())
+		throw new ClosedChannelException();
+	}
+
+	/**
+	 * Takes the given amount of written bytes off the queued bytes, and
+	 * wakes up the senders once they are within the limit again.
+	 */
+	private void written(long bytes) {
+	    long queued = this.queuedBytes.addAndGet(-bytes);
+	    if (queued <= Connection.MAX_QUEUED_BYTES
+		    && queued + bytes > Connection.MAX_QUEUED_BYTES)
+		synchronized (this.writable) {
+		    this.writable.notifyAll();
+		}
+	}
+
+	@Override
+	protected void flush() {
+	    // While a write is requested, the event loop writes every frame
+	    // that is queued, so it only has to be woken up once.
+	    if (!this.writeRequested.get()
+		    && this.writeRequested.compareAndSet(false, true))
+		this.loop.requestWrite(this);
+	}
+
+	@Override
+	protected void readingChanged() {
+	    // The event loop may be the thread that throttles this connection,
+	    // so it is only asked to change what it waits for.
+	    EventLoop loop = this.loop;
+	    if (loop != null)
+		loop.requestReadingChange(this);
+	}
+
+	/**
+	 * The operations to wait for to read from this connection, which are
+	 * none while it is throttled.
+	 */
+	private int readOps() {
+	    return this.isThrottled() ? 0 : SelectionKey.OP_READ;
+	}
+
+	@Override
+	public void close() throws IOException {
+	    super.close();
+	    if (this.key != null)
+		this.key.cancel();
+	    this.channel.close();
+
+	    // Nothing that is still queued will be written.
+	    ByteBuffer frame;
+	    while ((frame = this.outgoing.poll()) != null)
+		BufferPool.DEFAULT.release(frame);
+	    this.queuedBytes.set(0);
+	    synchronized (this.writable) {
+		this.writable.notifyAll();
+	    }
+	}
+
+	/**
+	 * Reads what is available and hands every complete frame over.
+	 */
+	private void read() throws IOException, ParseException {
+	    if (this.incoming == null) {
+		this.incoming = BufferPool.DEFAULT
+			.acquire(Connection.INITIAL_BUFFER_SIZE);
+		this.incoming.limit(this.incoming.capacity());
+	    }
+
+	    if (this.channel.read(this.incoming) < 0) {
+		this.release();
+		this.drop();
+		return;
+	    }
+
+	    // The frames are handled directly from the buffer, which is only
+	    // reused after they have been handled.
+	    this.incoming.flip();
+	    int size;
+	    while ((size = Message.frameSize(this.incoming)) >= 0
+		    && this.incoming.remaining() >= size) {
+		Message message = this.reader.readFrom(this.incoming);
+		// Replayed frames are skipped.
+		if (message != null)
+		    this.receive(message);
+	    }
+
+	    if (!this.incoming.hasRemaining()) {
+		// Don't hold on to a buffer while there is nothing to read.
+		this.release();
+	    } else if (size > this.incoming.capacity()) {
+		// Make sure the next frame fits once it is complete.
+		ByteBuffer larger = BufferPool.DEFAULT.acquire(size);
+		larger.limit(larger.capacity());
+		larger.put(this.incoming);
+		this.release();
+		this.incoming = larger;
+	    } else
+		this.incoming.compact();
+	}
+
+	/**
+	 * Returns the incoming buffer to the pool.
+	 */
+	private void release() {
+	    BufferPool.DEFAULT.release(this.incoming);
+	    this.incoming = null;
+	}
+
+	/**
+	 * Writes as much of the waiting frames as the channel accepts, many of
+	 * them at once.
+	 */
+	private void write() throws IOException {
+	    ByteBuffer[] writing = this.writing;
+	    while (true) {
+		ByteBuffer frame;
+		while (this.writingCount < writing.length
+			&& (frame = this.outgoing.poll()) != null)
+		    writing[this.writingCount++] = frame;
+		if (this.writingCount == 0)
+		    break;
+
+		this.channel.write(writing, 0, this.writingCount);
+
+		int written = 0;
+		long bytes = 0;
+		while (written < this.writingCount
+			&& !writing[written].hasRemaining()) {
+		    bytes += writing[written].limit();
+		    BufferPool.DEFAULT.release(writing[written++]);
+		}
+		this.written(bytes);
+		System.arraycopy(writing, written, writing, 0,
+			this.writingCount - written);
+		Arrays.fill(writing, this.writingCount - written,
+			this.writingCount, null);
+		this.writingCount -= written;
+
+		// The channel is full, wait until it is writable again.
+		if (this.writingCount > 0)
+		    return;
+	    }
+
+	    this.key.interestOps(this.readOps());
+	    this.writeRequested.set(false);
+
+	    // A frame may have been added after the queue was found empty, by a
+	    // thread that saw that a write was still requested.
+	    if (!this.outgoing.isEmpty()
+		    && this.writeRequested.compareAndSet(false, true))
+		this.key.interestOps(this.readOps() | SelectionKey.OP_WRITE);
+	}
+    }
+}
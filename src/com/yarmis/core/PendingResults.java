@@ -0,0 +1,92 @@
+package com.yarmis.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * The Results of the requests over a single {@code Connection} that are
+ * pending a response, by the identifier of their request.
+ * </p>
+ * <p>
+ * The identifiers come from a counter, so the requests that are outstanding
+ * at the same time nearly always have identifiers within a small range of
+ * each other. A Result is therefore kept in the slot that is given by the
+ * lowest bits of its identifier, which is claimed and released with a single
+ * compare-and-set, without locking and without allocating anything. Only if
+ * that slot is still taken by a request that was sent {@code CAPACITY}
+ * requests earlier, the Result is kept in a map instead.
+ * </p>
+ */
+final class PendingResults {
+
+    /**
+     * The amount of slots, which must be a power of two.
+     */
+    static final int CAPACITY = 1024;
+
+    private final AtomicReferenceArray<Result> slots = new AtomicReferenceArray<Result>(
+	    PendingResults.CAPACITY);
+
+    /**
+     * The Results whose slot was taken when they were added.
+     */
+    private final ConcurrentHashMap<Long, Result> overflow = new ConcurrentHashMap<Long, Result>();
+
+    /**
+     * Adds the given Result, by its identifier. No other Result with that
+     * identifier may be pending.
+     *
+     * @param result
+     *            The Result to add.
+     */
+    void put(Result result) {
+	long identifier = result.getIdentifier();
+	if (!this.slots.compareAndSet(PendingResults.index(identifier), null,
+		result))
+	    this.overflow.put(identifier, result);
+    }
+
+    /**
+     * Removes the Result with the given identifier.
+     *
+     * @param identifier
+     *            The identifier of the request.
+     * @return The removed Result, or {@code null} if no Result with that
+     *         identifier is pending.
+     */
+    Result remove(long identifier) {
+	int index = PendingResults.index(identifier);
+	Result result = this.slots.get(index);
+	if (result != null && result.getIdentifier() == identifier
+		&& this.slots.compareAndSet(index, result, null))
+	    return result;
+	return this.overflow.remove(identifier);
+    }
+
+    /**
+     * Removes all pending Results.
+     *
+     * @return The removed Results.
+     */
+    List<Result> removeAll() {
+	List<Result> removed = new ArrayList<Result>();
+	for (int i = 0; i < PendingResults.CAPACITY; ++i) {
+	    Result result = this.slots.getAndSet(i, null);
+	    if (result != null)
+		removed.add(result);
+	}
+	for (Long identifier : this.overflow.keySet()) {
+	    Result result = this.overflow.remove(identifier);
+	    if (result != null)
+		removed.add(result);
+	}
+	return removed;
+    }
+
+    private static int index(long identifier) {
+	return (int) identifier & (PendingResults.CAPACITY - 1);
+    }
+}
@@ -0,0 +1,57 @@
+package com.yarmis.core;
+
+/**
+ * <p>
+ * The priority class of an incoming request. A request of a more urgent class
+ * is always started before the waiting requests of the less urgent classes,
+ * and part of the threads that run requests is kept free for the more urgent
+ * classes, such that they are never stuck behind bulk work.
+ * </p>
+ * <p>
+ * The priority of a request follows from its Module, if the Module has been
+ * given one, or else from the most urgent of the {@code Right}s that its
+ * method demands.
+ * </p>
+ *
+ * @see Module#setPriority(Priority)
+ * @see CommunicationManager#setPriority(com.yarmis.core.security.Right,
+ *      Priority)
+ */
+public enum Priority {
+
+    /**
+     * Requests that someone is waiting for, such as controlling what is
+     * playing. They may use every thread.
+     */
+    HIGH(8),
+
+    /**
+     * Requests that are neither urgent nor bulk work. Together with the
+     * requests of lower priority, they may use seven eighths of the threads.
+     */
+    NORMAL(7),
+
+    /**
+     * Bulk work, such as searching the library. These requests may use half of
+     * the threads.
+     */
+    LOW(4);
+
+    /**
+     * The eighths of the threads that requests of this priority and lower may
+     * use.
+     */
+    private final int share;
+
+    private Priority(int share) {
+	this.share = share;
+    }
+
+    /**
+     * The amount of threads that the requests of this priority and lower may
+     * use, out of the given amount of threads. This is at least one.
+     */
+    int limit(int threads) {
+	return Math.max(1, (int) ((long) threads * this.share / 8));
+    }
+}
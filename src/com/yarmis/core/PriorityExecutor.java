@@ -0,0 +1,339 @@
+package com.yarmis.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Runs tasks on a bounded amount of threads, in the order of their
+ * {@code Priority}. Within a priority, every source of tasks has its own
+ * bounded queue; a task that doesn't fit in the queue of its source is
+ * rejected right away, instead of piling up.
+ * </p>
+ * <p>
+ * The sources that have tasks waiting at the same priority take turns, with
+ * deficit round robin: per round, a source gets to start as many tasks as its
+ * weight. A source that sends many tasks only fills up its own queue, and
+ * doesn't delay the tasks of the others by more than a round.
+ * </p>
+ * <p>
+ * The waiting task of the most urgent priority is started first, as long as
+ * the tasks of that priority and lower don't use more than their share of the
+ * threads. This keeps threads free for urgent tasks while the less urgent ones
+ * are running.
+ * </p>
+ * <p>
+ * The threads are only started when they are needed, and stop once they have
+ * been idle for a while.
+ * </p>
+ */
+final class PriorityExecutor {
+
+    /**
+     * How long an idle thread waits for a task before it stops, in
+     * nanoseconds.
+     */
+    private static final long KEEP_ALIVE = TimeUnit.SECONDS.toNanos(60);
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ExecutionMode mode;
+
+    /**
+     * The maximum amount of threads.
+     */
+    private final int threads;
+
+    /**
+     * The maximum amount of waiting tasks per source and priority.
+     */
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a task may be started.
+     */
+    private final Condition available = this.lock.newCondition();
+
+    // The following are guarded by the lock.
+
+    /**
+     * The waiting tasks, by the ordinal of their priority.
+     */
+    private final FairQueue[] queues;
+
+    /**
+     * The amount of running tasks, by the ordinal of their priority.
+     */
+    private final int[] running = new int[PriorityExecutor.PRIORITIES.length];
+
+    /**
+     * The amount of threads that have been started and haven't stopped yet.
+     */
+    private int workers = 0;
+
+    /**
+     * The amount of threads that are waiting for a task.
+     */
+    private int idle = 0;
+
+    private boolean isShutdown = false;
+
+    /**
+     * Creates an executor. No threads are started yet.
+     *
+     * @param mode
+     *            The kind of threads to run the tasks on.
+     * @param threads
+     *            The maximum amount of threads.
+     * @param capacity
+     *            The maximum amount of waiting tasks per source and priority.
+     */
+    PriorityExecutor(ExecutionMode mode, int threads, int capacity) {
+	if (threads <= 0 || capacity <= 0)
+	    throw new IllegalArgumentException(
+		    "The amount of threads and the capacity must be positive.");
+
+	this.mode = mode;
+	this.threads = threads;
+	this.capacity = capacity;
+	this.queues = new FairQueue[PriorityExecutor.PRIORITIES.length];
+	for (int i = 0; i < this.queues.length; ++i)
+	    this.queues[i] = new FairQueue();
+    }
+
+    /**
+     * Queues the given task to be run at the given priority.
+     *
+     * @param task
+     *            The task to run.
+     * @param priority
+     *            The priority of the task.
+     * @param source
+     *            Where the task comes from, which may be null.
+     * @param weight
+     *            The weight of the source, at least 1.
+     * @return true if the task was queued, false if it was rejected because
+     *         the queue of its source is full or this executor is shut down.
+     */
+    boolean execute(Runnable task, Priority priority, Object source,
+	    int weight) {
+	boolean startWorker;
+	this.lock.lock();
+	try {
+	    if (this.isShutdown
+		    || !this.queues[priority.ordinal()].add(task, source,
+			    weight, this.capacity))
+		return false;
+
+	    startWorker = this.idle == 0 && this.workers < this.threads;
+	    if (startWorker)
+		++this.workers;
+	    else
+		this.available.signal();
+	} finally {
+	    this.lock.unlock();
+	}
+
+	if (startWorker)
+	    this.mode.newThread(new Worker(), "yarmis-request").start();
+	return true;
+    }
+
+    /**
+     * Stops accepting new tasks. The tasks that are already waiting are still
+     * run.
+     */
+    void shutdown() {
+	this.lock.lock();
+	try {
+	    this.isShutdown = true;
+	    this.available.signalAll();
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Finds the most urgent priority of which a waiting task may be started.
+     * Must hold the lock.
+     *
+     * @return The ordinal of the priority, or -1 if no task may be started.
+     */
+    private int next() {
+	// The amount of running tasks of this priority and lower.
+	int running = 0;
+	for (int i = this.running.length - 1; i >= 0; --i)
+	    running += this.running[i];
+
+	for (int i = 0; i < this.queues.length; ++i) {
+	    if (!this.queues[i].isEmpty()
+		    && running < PriorityExecutor.PRIORITIES[i]
+			    .limit(this.threads))
+		return i;
+	    running -= this.running[i];
+	}
+	return -1;
+    }
+
+    /**
+     * Indicates whether no tasks are waiting. Must hold the lock.
+     */
+    private boolean isEmpty() {
+	for (FairQueue queue : this.queues)
+	    if (!queue.isEmpty())
+		return false;
+	return true;
+    }
+
+    private final class Worker implements Runnable {
+
+	@Override
+	public void run() {
+	    PriorityExecutor executor = PriorityExecutor.this;
+	    int priority = -1;
+	    while (true) {
+		Runnable task;
+		executor.lock.lock();
+		try {
+		    if (priority >= 0) {
+			--executor.running[priority];
+			// A task that was held back by the share of its
+			// priority may be started now.
+			if (!executor.isEmpty())
+			    executor.available.signal();
+		    }
+
+		    // A thread may stop while tasks are held back by the share
+		    // of their priority. That is safe: a task is only held back
+		    // while tasks of its priority or lower are running, and the
+		    // thread of the last of those looks for a task again when
+		    // it completes, before it can stop itself.
+		    long remaining = PriorityExecutor.KEEP_ALIVE;
+		    while ((priority = executor.next()) < 0) {
+			if ((executor.isShutdown && executor.isEmpty())
+				|| remaining <= 0) {
+			    --executor.workers;
+			    return;
+			}
+			++executor.idle;
+			try {
+			    remaining = executor.available.awaitNanos(remaining);
+			} catch (InterruptedException e) {
+			    remaining = 0;
+			} finally {
+			    --executor.idle;
+			}
+		    }
+
+		    task = executor.queues[priority].poll();
+		    ++executor.running[priority];
+		} finally {
+		    executor.lock.unlock();
+		}
+
+		try {
+		    task.run();
+		} catch (Throwable throwable) {
+		    throwable.printStackTrace();
+		}
+	    }
+	}
+
+    }
+
+    /**
+     * The waiting tasks of a single priority, in a queue per source, which
+     * are served with deficit round robin. Only used while holding the lock.
+     */
+    private static final class FairQueue {
+
+	/**
+	 * The queues of the sources that have tasks waiting, by their source.
+	 */
+	private final Map<Object, Flow> flows = new HashMap<Object, Flow>();
+
+	/**
+	 * The queues of the sources that have tasks waiting, in the order in
+	 * which they take turns. The first is the one whose turn it is.
+	 */
+	private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+
+	/**
+	 * Adds a task to the queue of its source.
+	 *
+	 * @return false if the queue of the source is full.
+	 */
+	private boolean add(Runnable task, Object source, int weight,
+		int capacity) {
+	    Flow flow = this.flows.get(source);
+	    if (flow == null) {
+		flow = new Flow(source);
+		this.flows.put(source, flow);
+		this.active.add(flow);
+	    } else if (flow.tasks.size() >= capacity)
+		return false;
+
+	    flow.weight = weight;
+	    flow.tasks.add(task);
+	    return true;
+	}
+
+	/**
+	 * Takes the next task of the source whose turn it is. A source keeps
+	 * its turn for as many tasks as its weight, or until it has no more
+	 * tasks waiting.
+	 *
+	 * @return The task, or null if no tasks are waiting.
+	 */
+	private Runnable poll() {
+	    Flow flow = this.active.peek();
+	    if (flow == null)
+		return null;
+
+	    if (flow.deficit == 0)
+		flow.deficit = flow.weight;
+	    Runnable task = flow.tasks.poll();
+	    --flow.deficit;
+
+	    if (flow.tasks.isEmpty()) {
+		// A source that has nothing waiting doesn't save up turns.
+		this.active.poll();
+		this.flows.remove(flow.source);
+	    } else if (flow.deficit == 0)
+		this.active.add(this.active.poll());
+	    return task;
+	}
+
+	private boolean isEmpty() {
+	    return this.active.isEmpty();
+	}
+    }
+
+    /**
+     * The waiting tasks of a single source.
+     */
+    private static final class Flow {
+
+	private final Object source;
+
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+	private int weight;
+
+	/**
+	 * The amount of tasks that the source may still start in its current
+	 * turn.
+	 */
+	private int deficit = 0;
+
+	private Flow(Object source) {
+	    this.source = source;
+	}
+    }
+}
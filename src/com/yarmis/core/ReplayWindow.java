@@ -0,0 +1,72 @@
+package com.yarmis.core;
+
+/**
+ * <p>
+ * Rejects frames whose nonce has been seen before, or is too old to tell. The
+ * nonces of the sender increase monotonically, so it suffices to remember the
+ * highest nonce that was accepted, and which of the {@code SIZE} nonces below
+ * it were accepted as well. Anything below that window is rejected.
+ * </p>
+ * <p>
+ * This takes constant time and memory, however long the connection lives.
+ * </p>
+ */
+final class ReplayWindow {
+
+    /**
+     * The amount of nonces below the highest accepted nonce that are
+     * remembered.
+     */
+    static final int SIZE = 64;
+
+    /**
+     * The highest nonce that has been accepted, or -1 if none has.
+     */
+    private long highest = -1;
+
+    /**
+     * Bit {@code i} is set if nonce {@code highest - i} has been accepted.
+     */
+    private long seen = 0;
+
+    /**
+     * Checks whether the given nonce would be accepted, without accepting it.
+     * This allows a frame to be rejected before its signature is checked.
+     *
+     * @param nonce
+     *            The nonce of a received frame.
+     * @return false if the nonce has been accepted before or is too old, true
+     *         otherwise.
+     */
+    synchronized boolean isFresh(long nonce) {
+	if (nonce < 0)
+	    return false;
+	if (nonce > this.highest)
+	    return true;
+
+	long offset = this.highest - nonce;
+	return offset < ReplayWindow.SIZE && (this.seen & (1L << offset)) == 0;
+    }
+
+    /**
+     * Accepts the given nonce, if it is fresh. This must only be done once the
+     * frame is known to be authentic, otherwise a forged frame could move the
+     * window.
+     *
+     * @param nonce
+     *            The nonce of an authentic frame.
+     * @return true if the nonce was fresh, false if the frame is a replay.
+     */
+    synchronized boolean accept(long nonce) {
+	if (!this.isFresh(nonce))
+	    return false;
+
+	if (nonce > this.highest) {
+	    long shift = nonce - this.highest;
+	    this.seen = shift < ReplayWindow.SIZE ? (this.seen << shift) | 1 : 1;
+	    this.highest = nonce;
+	} else
+	    this.seen |= 1L << (this.highest - nonce);
+	return true;
+    }
+}
@@ -1,34 +1,63 @@
 package com.yarmis.core;
 
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.yarmis.core.Communication.Request;
-import com.yarmis.core.Communication.Response;
 import com.yarmis.core.exceptions.FailedExecutionException;
 import com.yarmis.core.exceptions.InsufficientRightsException;
 import com.yarmis.core.exceptions.InvalidRequestException;
 import com.yarmis.core.exceptions.ModuleInaccessibleException;
 import com.yarmis.core.exceptions.NoDeclaredRightsException;
+import com.yarmis.core.exceptions.OverloadedException;
+import com.yarmis.core.exceptions.RateLimitedException;
 import com.yarmis.core.exceptions.UnauthorizedRequestException;
 
 public class RequestReceiver {
 
     /**
-     * An ExecutorService that runs Requests.
+     * Runs the Requests in the order of their priority.
      */
-    private ExecutorService requestHandlers;
+    private final PriorityExecutor requestHandlers;
 
     public RequestReceiver() {
+	this(CommunicationManager.getExecutionMode());
+    }
 
-	// use a dynamic amount of threads.
-	this.requestHandlers = Executors.newCachedThreadPool();
+    /**
+     * Creates a RequestReceiver that runs the requests on threads of the given
+     * {@code ExecutionMode}, within the limits that are set on the
+     * {@code CommunicationManager}.
+     * 
+     * @param mode
+     *            The kind of threads to run the requests on.
+     */
+    public RequestReceiver(ExecutionMode mode) {
+	this(mode, CommunicationManager.getRequestThreads(mode),
+		CommunicationManager.getRequestQueueSize());
+    }
+
+    /**
+     * Creates a RequestReceiver that runs the requests on at most the given
+     * amount of threads of the given {@code ExecutionMode}. A request that
+     * arrives while the given amount of requests of its {@code Priority} from
+     * the same device is waiting already is rejected.
+     * 
+     * @param mode
+     *            The kind of threads to run the requests on.
+     * @param threads
+     *            The maximum amount of threads.
+     * @param queueSize
+     *            The maximum amount of waiting requests per device and
+     *            priority.
+     */
+    public RequestReceiver(ExecutionMode mode, int threads, int queueSize) {
+	this.requestHandlers = new PriorityExecutor(mode, threads, queueSize);
     }
 
     /**
@@ -43,6 +72,14 @@ public class RequestReceiver {
      * will not be done again. Instead the result of that call will be passed
      * on.
      * </p>
+     * <p>
+     * The Request waits for a thread in the order of its {@code Priority}, and
+     * the devices that have Requests waiting at that priority take turns, in
+     * proportion to their weight. If too many Requests of that priority from
+     * the same device are waiting already, it is answered with an
+     * {@code OverloadedException} right away. A Request above the rate limit
+     * of its device is answered with a {@code RateLimitedException}.
+     * </p>
      * 
      * @param request
      *            The Request to perform
@@ -52,10 +89,68 @@ public class RequestReceiver {
      */
     public void handleRequest(JSONObject request, Connection requester) {
 
-	this.requestHandlers.execute(new RequestRunner(request, requester));
+	this.handleRequest(request, requester, null);
 
     }
 
+    /**
+     * Adds a request that is part of a batch. Its response is added to the
+     * given batch of responses, instead of being sent on its own.
+     * 
+     * @param request
+     *            The Request to perform
+     * @param requester
+     *            The Connection that requested the given Request to be
+     *            performed.
+     * @param responses
+     *            The responses to the batch, or null if the request was sent
+     *            on its own.
+     */
+    void handleRequest(JSONObject request, Connection requester,
+	    ResponseBatch responses) {
+
+	DispatchTable.Entry entry;
+	Priority priority;
+	try {
+	    entry = ModuleManager.resolve(request);
+	    priority = entry.getPriority();
+	} catch (Exception e) {
+	    // The runner answers why the method can't be found.
+	    entry = null;
+	    priority = Priority.NORMAL;
+	}
+
+	Device device = requester == null ? null : requester.getDevice();
+	RequestRunner runner = new RequestRunner(request, requester, responses,
+		entry);
+
+	// A request above the rate of its device is refused before it takes
+	// up any room, also if its method can't be found.
+	if (requester != null)
+	    try {
+		SecurityManager.acquirePermit(entry, requester);
+	    } catch (RateLimitedException e) {
+		runner.answer(false, e);
+		return;
+	    }
+
+	// Every device gets its own turn, such that a device that sends many
+	// requests can't delay those of the others.
+	if (!this.requestHandlers.execute(runner, priority, device,
+		device == null ? 1 : device.getWeight()))
+	    runner.answer(false, new OverloadedException("Too many requests of "
+		    + priority + " priority from this device are waiting."));
+
+    }
+
+    /**
+     * Stops accepting new requests. Requests that are already being handled
+     * will still be completed.
+     */
+    public void shutdown() {
+	this.requestHandlers.shutdown();
+    }
+
     /**
      * The RequestRunner class finds the correct Method to call, checks whether
      * the calling instance is allowed to do so and will perform the request in
@@ -75,30 +170,69 @@ public class RequestReceiver {
 	 */
 	private final Connection connection;
 
+	/**
+	 * The time, as given by {@code System.nanoTime()}, after which the
+	 * requester no longer waits for the response. Only meaningful if
+	 * {@code hasDeadline}.
+	 */
+	private final long deadline;
+
+	private final boolean hasDeadline;
+
+	/**
+	 * The responses to the batch that the Request is part of, or null if it
+	 * was sent on its own.
+	 */
+	private final ResponseBatch responses;
+
+	/**
+	 * The method that the Request is for, or null if it couldn't be
+	 * resolved when the Request came in.
+	 */
+	private final DispatchTable.Entry entry;
+
 	/**
 	 * Creates a new RequestRunner for the given Request. When run is called
 	 * on this runner then that Request is send to Core to handle.
 	 * 
 	 */
-	private RequestRunner(JSONObject request, Connection connection) {
+	private RequestRunner(JSONObject request, Connection connection,
+		ResponseBatch responses, DispatchTable.Entry entry) {
 	    this.request = request;
 	    this.connection = connection;
-
+	    this.responses = responses;
+	    this.entry = entry;
+
+	    // The deadline is relative, as the clocks of both sides differ. The
+	    // time that the request spent in transit is not accounted for.
+	    long remaining = request.optLong(Communication.Request.DEADLINE, -1);
+	    this.hasDeadline = remaining >= 0;
+	    this.deadline = System.nanoTime()
+		    + TimeUnit.MILLISECONDS.toNanos(Math.max(remaining, 0));
 	}
 
 	@Override
 	public void run() {
 
+	    // Nobody is waiting for the response anymore, so the work is not
+	    // worth doing, and the response would be ignored.
+	    if (this.hasDeadline && System.nanoTime() - this.deadline > 0) {
+		if (this.responses != null)
+		    this.responses.skip();
+		return;
+	    }
+
 	    Object returnObj = null;
+	    boolean success = false;
 
 	    try {
 
 		//
 		returnObj = this.performRequest(this.request);
+		success = true;
 
 	    } catch (NoSuchMethodException e) {
 		// the method referenced by request.method didn't exist
-		e.printStackTrace();
 		returnObj = new InvalidRequestException(
 			"Requested function call was unknown");
 	    } catch (SecurityException e) {
@@ -112,59 +246,81 @@ public class RequestReceiver {
 	    } catch (IllegalArgumentException e) {
 		// Everything went okay except for the fact that the wrong
 		// arguments were presented.
-		e.printStackTrace();
 		returnObj = new InvalidRequestException(
 			"The parameters applied were incorrect.");
 	    } catch (InvocationTargetException e) {
 		// Something went wrong during execution. Per documentation, the
-		// real exception is .getCause()
-		e.printStackTrace();
+		// real exception is .getCause(), which is answered like any
+		// other outcome of the method.
 		returnObj = e.getCause();
 	    } catch (Exception e) {
 		// Anything else can just be passed on. This includes
-		// UnauthorizedAccessExceptions.
-		e.printStackTrace();
+		// UnauthorizedAccessExceptions, which are expected, and sent
+		// without printing them.
 		returnObj = e;
 	    }
 
-	    try {
-		connection.sendResponse(new Response(request, returnObj));
-	    } catch (IOException e) {
-		e.printStackTrace();
+	    // An asynchronous method is only answered once it has completed,
+	    // without waiting for it on this thread.
+	    if (success && returnObj instanceof CompletionStage) {
+		((CompletionStage<?>) returnObj)
+			.whenComplete(new BiConsumer<Object, Throwable>() {
+
+			    @Override
+			    public void accept(Object value, Throwable failure) {
+				RequestRunner.this.respond(value, failure);
+			    }
+
+			});
+		return;
 	    }
 
+	    this.answer(success, returnObj);
+
 	}
 
 	/**
-	 * Gets the method object to which the request refers.
-	 * 
-	 * @param request
-	 *            The Request for which to find the Method
-	 * @return
-	 * @throws ClassNotFoundException
-	 * @throws SecurityException
-	 * @throws NoSuchMethodException
-	 * @throws Exception
+	 * Sends the response to the Request, or adds it to the responses to its
+	 * batch.
 	 */
-	// really couldn't care less. It should work as long as we implement
-	// everything correctly.
-	private Method findMethod(Class<?> clazz, JSONObject request)
-		throws NoSuchMethodException, SecurityException {
-
-	    JSONArray arguments = request
-		    .getJSONArray(Communication.Request.VALUES);
-
-	    Class<?>[] parameterTypes = new Class[arguments.length()];
-
-	    // Determine for each named parameter what type it has
-	    for (int i = 0; i < arguments.length(); ++i)
-		parameterTypes[i] = Communication.convertCharToClass(arguments
-			.getJSONObject(i).getString(Communication.Value.TYPE)
-			.charAt(0));
+	private void answer(boolean success, Object value) {
+	    if (this.responses == null) {
+		CommunicationManager.respondToMessage(this.request,
+			this.connection, success, value);
+		return;
+	    }
 
-	    // Obtain the method that is named in the request, using the parameters
-	    return (clazz.getMethod(request.getString(Communication.Request.METHOD), parameterTypes));
+	    JSONObject response;
+	    try {
+		response = CommunicationManager.makeResponse(this.request,
+			success, value);
+	    } catch (RuntimeException e) {
+		// The rest of the batch is still answered.
+		this.responses.skip();
+		throw e;
+	    }
+	    this.responses.add(response);
+	}
 
+	/**
+	 * Responds with the outcome of an asynchronous method.
+	 * 
+	 * @param value
+	 *            The value that it completed with.
+	 * @param failure
+	 *            The exception that it completed with, or {@code null} if
+	 *            it completed normally.
+	 */
+	private void respond(Object value, Throwable failure) {
+	    if (failure instanceof CompletionException
+		    && failure.getCause() != null)
+		failure = failure.getCause();
+
+	    if (failure == null)
+		this.answer(true, value);
+	    else
+		this.answer(false, failure instanceof Exception ? failure
+			: new FailedExecutionException());
 	}
 
 	/**
@@ -206,21 +362,20 @@ public class RequestReceiver {
 		NoDeclaredRightsException, InsufficientRightsException,
 		ModuleInaccessibleException {
 
-	    // Obtain a reference to the module
-	    String moduleName = request.getString(Communication.Request.MODULE);
+	    // Obtain a reference to the method, which was resolved when the
+	    // module was created.
+	    DispatchTable.Entry entry = this.entry != null ? this.entry
+		    : ModuleManager.resolve(request);
+	    DispatchTable table = entry.getTable();
 
 	    // Validate the module
-	    SecurityManager.validateModule(moduleName);
-
-	    // Obtain a reference to the method
-	    Module<?> module = ModuleManager.getModule(moduleName);
-	    Method method = this.findMethod(module.getClass(), request);
+	    SecurityManager.validateModule(table.getModule());
 
 	    // Validate the method
-	    SecurityManager.validateMethod(method, connection.getDevice());
+	    SecurityManager.validateMethod(entry, this.connection);
 
 	    // Execute the method
-	    return method.invoke(module, obtainArguments(request));
+	    return table.dispatch(entry, obtainArguments(request));
 
 	}
 
@@ -1,176 +1,359 @@
 package com.yarmis.core;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.yarmis.core.Communication.Request;
-import com.yarmis.core.Communication.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.yarmis.core.Communication.CommunicationException;
+import com.yarmis.core.exceptions.RequestTimeoutException;
 
 /**
- * A Request queue contains Requests and Results. Requests can be added to the
- * queue. If they already are in the queue you'll get the stored Result.
- * Otherwise a new entry will be made and the accompanying Result is returned.
+ * <p>
+ * Sends the requests over a single {@code Connection}, and matches the
+ * responses that come back to them by their identifier.
+ * </p>
+ * <p>
+ * A request is written by the thread that makes it, and the Result is
+ * registered before that. Any number of requests can thus be outstanding at
+ * the same time, and the other side is free to answer them in the order in
+ * which it completes them, rather than in the order in which they were sent.
+ * </p>
+ * <p>
+ * If batching is enabled in the {@code CommunicationManager}, a request is not
+ * written right away. The requests that are made within the batch window of
+ * the first one are written together, as a single batch, which the other side
+ * answers with a single batch of responses. A batch is written early once it
+ * holds the maximum amount of requests.
+ * </p>
+ * <p>
+ * A batch is written by the thread that fills it, or else once its window has
+ * passed, on a thread of its own. The thread that makes a request never waits
+ * for the window. The single thread that keeps track of the windows doesn't
+ * write itself, so a connection that can't keep up doesn't hold up the
+ * batches of the others.
+ * </p>
+ *
+ * @author Maurice
+ *
  */
 public class RequestSender {
 
-    private Thread requestSender = new Thread(new Runnable() {
-
-	@Override
-	public void run() {
-	    while (true) {
-		try {
-		    synchronized (order) {
-			order.wait();
-		    }
-
-		    while (order.size() > 0)
-			synchronized (order) {
-			    Element next = getNext();
-			    try {
-				next.connection.sendRequest(next.request);
-			    } catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			    }
-			}
-
-		} catch (InterruptedException e) {
-		    e.printStackTrace();
-		}
+    /**
+     * Hands the batches whose window has passed to {@code WRITERS}. Its only
+     * thread is shared by all connections.
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors
+	    .newSingleThreadScheduledExecutor(RequestSender
+		    .daemonThreads("yarmis-batcher"));
 
-	    }
+    /**
+     * Writes the batches whose window has passed, each on a thread of its
+     * own, which is kept for a while to write the next one.
+     */
+    private static final ExecutorService WRITERS = Executors
+	    .newCachedThreadPool(RequestSender
+		    .daemonThreads("yarmis-batch-writer"));
 
-	}
+    /**
+     * The Connection over which the requests are sent.
+     */
+    private final Connection connection;
 
-    });
+    /**
+     * Provides the identifiers of the requests. Identifiers are only unique
+     * per Connection, which is all that is needed to match the responses, and
+     * they stay small enough to take only a few bytes in binary form.
+     */
+    private final AtomicLong nextIdentifier = new AtomicLong();
 
     /**
-     * The order of the requests.
+     * The Results of the requests that have been sent and are pending a
+     * response, by the identifier of the request. A Result is removed as soon
+     * as its response comes in, or when it could not be sent.
      */
-    private final LinkedList<Element> order;
+    private final PendingResults pending = new PendingResults();
 
     /**
-     * Mapping that contains all Request that have been send and are pending a
-     * response. The Mapping maps Requests to Elements. These Elements contain
-     * all important information about where the response should go to.
+     * The requests that are waiting for the window of their batch to pass, or
+     * null if no batch has been started. Guarded by {@code batchLock}.
      */
-    private final HashMap<Request, Element> pending;
+    private List<Outgoing> batch = null;
+
+    private final Object batchLock = new Object();
 
-    public RequestSender() {
-	this.order = new LinkedList<Element>();
-	this.pending = new HashMap<Request, Element>();
-	this.requestSender.start();
+    private final BatchStatistics statistics = new BatchStatistics();
+
+    RequestSender(Connection connection) {
+	this.connection = connection;
     }
 
     /**
-     * Let the {@code Request} be send to the given {@code Connection}. This
-     * will yield a {@code Result} that can be used to be notified when the
-     * {@code Request} has been processed.
-     * 
+     * Obtains a new identifier for a request over the Connection.
+     *
+     * @return The identifier.
+     */
+    long nextIdentifier() {
+	return this.nextIdentifier.getAndIncrement();
+    }
+
+    /**
+     * Sends the given request. This will yield a {@code Result} that can be
+     * used to be notified when the request has been processed. This returns as
+     * soon as the request has been written, or has been added to a batch that
+     * another thread writes; it doesn't wait for the responses of the requests
+     * that were sent before.
+     *
+     * @param identifier
+     *            The identifier of the request, as obtained from
+     *            {@code nextIdentifier()}.
      * @param request
-     *            The Request to send.
-     * @return The Result object associated with the Request. Whoever made the
+     *            The request to send.
+     * @param timeout
+     *            How long to wait for the response in milliseconds, after
+     *            which the Result fails with a {@code RequestTimeoutException}
+     *            and any response is ignored. 0 to wait as long as it takes.
+     *            What is left of it when the request is written is passed on
+     *            as its deadline.
+     * @return The Result object associated with the request. Whoever made the
      *         request should call {@code get()} on this object to wait until
      *         the data is available.
+     * @throws CommunicationException
+     *             If the request could not be sent.
      */
-    public Result send(Request request, Connection connection) {
+    Result send(final long identifier, JSONObject request, final long timeout) {
+	Result result = new Result(identifier);
+	// The response may arrive before send returns, and the timeout may
+	// expire before it is set, so both must find the Result.
+	this.pending.put(result);
+	if (timeout > 0)
+	    result.setTimeout(HashedWheelTimer.DEFAULT.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    RequestSender.this.expire(identifier, timeout);
+		}
 
-	Element element = new Element(request, connection);
-	this.order.addLast(element);
+	    }, timeout, TimeUnit.MILLISECONDS));
 
-	synchronized (this.order) {
-	    this.order.notify();
+	Outgoing outgoing = new Outgoing(request, timeout);
+	long window = CommunicationManager.getBatchWindow();
+	if (window > 0) {
+	    this.enqueue(outgoing, window);
+	    return result;
 	}
 
-	return element.result;
-
+	// The caller gave up already, so the timeout fails the Result.
+	if (!outgoing.stamp(System.nanoTime()))
+	    return result;
+	try {
+	    this.connection.send(request);
+	} catch (IOException e) {
+	    // Failing the Result cancels its timeout as well.
+	    if (this.pending.remove(identifier) != null)
+		result.fail(new CommunicationException(e));
+	    throw new CommunicationException(e);
+	}
+	return result;
     }
 
     /**
-     * <p>
-     * Get the next request from the queue.
-     * </p>
-     * <p>
-     * This will remove the Request from the order. It will however not remove
-     * the Request - Result combination from the mapping. This is done when the
-     * Response is reported.
-     * </p>
+     * Adds the given request to the current batch, starting a new batch if
+     * there is none. The batch is written once the given window has passed,
+     * unless it filled up in the meantime, in which case the thread that
+     * filled it writes it right away.
      * 
-     * @return The next Element from the queue.
+     * @param window
+     *            The batch window, in nanoseconds.
      */
-    private Element getNext() {
+    private void enqueue(Outgoing request, long window) {
+	List<Outgoing> started = null;
+	List<Outgoing> full = null;
+
+	synchronized (this.batchLock) {
+	    if (this.batch == null) {
+		started = new ArrayList<Outgoing>();
+		this.batch = started;
+	    }
+
+	    this.batch.add(request);
+	    if (this.batch.size() >= CommunicationManager.getMaxBatchSize()) {
+		full = this.batch;
+		this.batch = null;
+	    }
+	}
 
-	Element next = this.order.removeFirst();
-	this.pending.put(next.request, next);
-	return next;
+	if (full != null)
+	    this.write(full);
+	else if (started != null)
+	    this.schedule(started, window);
     }
 
     /**
-     * Report a Response to this queue. This will remove the Request - Result
-     * combination from the mapping. It will also push the response to the
-     * result such that other threads waiting on the response will get back to
-     * work.
-     * 
-     * @param response
-     *            The Response that came in
-     * @throws IllegalStateException
-     *             If there was no Result associated with the Request for the
-     *             Response.
+     * Writes the given batch once the given window has passed, unless it was
+     * written already because it filled up before that.
      */
-    public void report(Response response) {
+    private void schedule(final List<Outgoing> batch, long window) {
+	RequestSender.FLUSHER.schedule(new Runnable() {
+
+	    @Override
+	    public void run() {
+		synchronized (RequestSender.this.batchLock) {
+		    if (RequestSender.this.batch != batch)
+			return;
+		    RequestSender.this.batch = null;
+		}
 
-	Element element = this.pending.remove(response.request);
+		RequestSender.WRITERS.execute(new Runnable() {
 
-	if (element != null)
-	    element.report(response);
+		    @Override
+		    public void run() {
+			RequestSender.this.write(batch);
+		    }
+
+		});
+	    }
+
+	}, window, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Clears the RequestQueue of all pending requests. This will make sure that
-     * all result will at least unlock. They will unlock because of an
-     * {@code RequestClearedException}.
+     * Writes a batch of requests, leaving out the ones whose caller gave up
+     * while they waited for the window. If it can't be written, the Results
+     * of its requests fail, as there is no caller to throw to anymore.
      */
-    public void clear() {
+    private void write(List<Outgoing> batch) {
+	long now = System.nanoTime();
+	JSONArray requests = new JSONArray();
+	for (Outgoing outgoing : batch)
+	    if (outgoing.stamp(now))
+		requests.put(outgoing.request);
+	if (requests.length() == 0)
+	    return;
+
+	this.statistics.record(requests.length());
+	try {
+	    if (requests.length() == 1)
+		this.connection.send(requests.getJSONObject(0));
+	    else
+		this.connection.send(CommunicationManager.makeBatch(requests));
+	} catch (IOException e) {
+	    for (int i = 0; i < requests.length(); ++i) {
+		Result result = this.pending.remove(requests.getJSONObject(i)
+			.getLong(Communication.Request.IDENTIFIER));
+		if (result != null)
+		    result.fail(new CommunicationException(e));
+	    }
+	}
+    }
 
-	Iterator<Entry<Request, Element>> iterator = this.pending.entrySet()
-		.iterator();
+    /**
+     * The statistics of the batches that have been sent.
+     */
+    BatchStatistics getBatchStatistics() {
+	return this.statistics;
+    }
 
-	while (iterator.hasNext()) {
-	    Element element = iterator.next().getValue();
-	    element.clear();
-	    iterator.remove();
-	}
+    /**
+     * Report a response to this sender. This will remove the request from the
+     * pending requests, and push the response to its Result such that other
+     * threads waiting on the response will get back to work. A response to a
+     * request that is no longer pending, because it timed out, is ignored.
+     *
+     * @param response
+     *            The response that came in.
+     */
+    void report(JSONObject response) {
+	Result result = this.pending.remove(response
+		.getLong(Communication.Response.IDENTIFIER));
+	if (result != null)
+	    result.set(response);
+    }
 
+    /**
+     * Fails the Result of the given request, if its response didn't come in
+     * yet.
+     */
+    private void expire(long identifier, long timeout) {
+	Result result = this.pending.remove(identifier);
+	if (result != null)
+	    result.fail(new RequestTimeoutException("No response came in within "
+		    + timeout + " ms."));
     }
 
     /**
-     * Class that couples a Request to a Result.
-     * 
-     * @author Maurice
-     * 
+     * Clears the sender of all pending requests. This will make sure that all
+     * Results will at least unlock. They will unlock because of a
+     * {@code CommunicationException}, since their responses will never come.
      */
-    public class Element {
-	public final Request request;
-	public final Result result;
-	public final Connection connection;
+    void clear() {
+	for (Result result : this.pending.removeAll())
+	    result.fail(new CommunicationException(new IOException(
+		    "The connection was dropped before the response came in.")));
+    }
 
-	private Element(Request request, Connection connection) {
-	    this.request = request;
-	    this.result = new Result();
-	    this.connection = connection;
-	}
+    private static ThreadFactory daemonThreads(final String name) {
+	return new ThreadFactory() {
 
-	private void report(Response response) {
+	    @Override
+	    public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	    }
 
-	    this.result.set(response);
-	}
+	};
+    }
+
+    /**
+     * A request that is about to be written, with the time at which its
+     * caller gives up on it.
+     */
+    private static final class Outgoing {
 
-	private void clear() {
+	private final JSONObject request;
 
+	/**
+	 * The time at which the caller gives up, as given by
+	 * {@code System.nanoTime()}, if it gives up at all.
+	 */
+	private final long expiresAt;
+
+	private final boolean expires;
+
+	private Outgoing(JSONObject request, long timeout) {
+	    this.request = request;
+	    this.expires = timeout > 0;
+	    this.expiresAt = System.nanoTime()
+		    + TimeUnit.MILLISECONDS.toNanos(timeout);
 	}
 
+	/**
+	 * Puts the time that is left until the caller gives up in the request,
+	 * as its deadline, rounded up to a whole millisecond.
+	 * 
+	 * @param now
+	 *            The current time, as given by {@code System.nanoTime()}.
+	 * @return false if the caller gave up already, in which case the
+	 *         request is not worth writing.
+	 */
+	private boolean stamp(long now) {
+	    if (!this.expires)
+		return true;
+	    long remaining = this.expiresAt - now;
+	    if (remaining <= 0)
+		return false;
+	    this.request.put(Communication.Request.DEADLINE,
+		    (remaining + 999999) / 1000000);
+	    return true;
+	}
     }
 }
@@ -0,0 +1,80 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Collects the responses to the requests of a batch that was received over a
+ * {@code Connection}, and sends them back in a single batch once every request
+ * has been answered.
+ * </p>
+ * <p>
+ * The requests of a batch are still performed concurrently, but the response
+ * to a quick request waits for the slowest request of its batch. A request
+ * that is skipped because its caller gave up adds no response.
+ * </p>
+ */
+final class ResponseBatch {
+
+    private final Connection connection;
+
+    private final JSONArray responses = new JSONArray();
+
+    /**
+     * The amount of requests that haven't been answered or skipped yet.
+     */
+    private int remaining;
+
+    /**
+     * @param connection
+     *            The Connection over which the batch was received.
+     * @param requests
+     *            The amount of requests in the batch.
+     */
+    ResponseBatch(Connection connection, int requests) {
+	this.connection = connection;
+	this.remaining = requests;
+    }
+
+    /**
+     * Adds the response to one of the requests of the batch.
+     *
+     * @param response
+     *            The response.
+     */
+    void add(JSONObject response) {
+	boolean complete;
+	synchronized (this) {
+	    if (response != null)
+		this.responses.put(response);
+	    complete = --this.remaining == 0;
+	}
+	if (complete)
+	    this.send();
+    }
+
+    /**
+     * Indicates that one of the requests of the batch is not answered.
+     */
+    void skip() {
+	this.add(null);
+    }
+
+    private void send() {
+	if (this.responses.length() == 0)
+	    return;
+
+	try {
+	    if (this.responses.length() == 1)
+		this.connection.send(this.responses.getJSONObject(0));
+	    else
+		this.connection.send(CommunicationManager
+			.makeBatch(this.responses));
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+}
@@ -1,53 +1,99 @@
 package com.yarmis.core;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+import org.json.JSONObject;
 
 
 /**
+ * <p>
  * Result is a class that helps you to get a value from any Connection. It
  * allows your thread to wait for the result that is send over a Connection. If
  * the result is an exception, then this exception will be thrown.
+ * </p>
+ * <p>
+ * A Result takes no lock. Its state is a single field, which holds the threads
+ * and listeners that wait for it until it is released, and its outcome
+ * afterwards. Releasing it swaps the one for the other with a single
+ * compare-and-set.
+ * </p>
  * 
  * @author Maurice
  * 
  */
 public class Result {
 
+	private static final AtomicReferenceFieldUpdater<Result, Object> STATE = AtomicReferenceFieldUpdater
+			.newUpdater(Result.class, Object.class, "state");
+
 	/**
-	 * The object that is the result of a request.
+	 * The identifier of the request that this is the result of.
 	 */
-	private Object result;
+	private final long identifier;
 
 	/**
-	 * <p>
-	 * Indicates whether an exception should be thrown if available. The value
-	 * is equal to the FLAG_THROW_EXCEPTION flag in Response.
-	 * </p>
+	 * Fails this Result if no response comes in on time, or null if it waits
+	 * as long as it takes.
 	 */
-	private boolean success;
+	private volatile HashedWheelTimer.Task timeout;
 
 	/**
 	 * <p>
-	 * Indicates whether this Result has already been released. If it has
-	 * already been released when get() is called, that thread doesn't have to
-	 * wait.
+	 * The {@code Outcome} once this Result has been released. Before that, the
+	 * last {@code Waiter} that was added, which links to the ones before it,
+	 * or null if nothing waits yet.
 	 * </p>
 	 * <p>
-	 * This is not entirely equal to checking whether result is null. It is very
-	 * well possible that the actual result is null.Use this variable instead of
-	 * that check to make sure that you have the correct information.
+	 * This is not entirely equal to checking whether the result is null. It is
+	 * very well possible that the actual result is null.
 	 * </p>
 	 */
-	private boolean hasReleased;
+	private volatile Object state = null;
+
+	/**
+	 * Create a new Result for the request with the given identifier.
+	 *
+	 * @param identifier
+	 */
+	Result(long identifier) {
+		this.identifier = identifier;
+	}
+
+	/**
+	 * The identifier of the request that this is the result of.
+	 */
+	long getIdentifier() {
+		return this.identifier;
+	}
 
 	/**
-	 * Create a new Result.
+	 * Sets the task that fails this Result if no response comes in on time. It
+	 * is cancelled once this Result is released, or right away if it has been
+	 * released already. This must be set before the request is sent.
+	 *
+	 * @param timeout
 	 */
-	Result() {
-		this.result = null;
-		this.hasReleased = false;
+	void setTimeout(HashedWheelTimer.Task timeout) {
+		this.timeout = timeout;
+		// Released in the meantime, as the connection dropped. Either this
+		// sees the outcome, or release sees the task.
+		if (this.state instanceof Outcome)
+			timeout.cancel();
+	}
+
+	/**
+	 * Indicates whether the result is available, such that {@code get()}
+	 * doesn't wait.
+	 */
+	public boolean isDone() {
+		return this.state instanceof Outcome;
 	}
 
 	/**
@@ -65,20 +111,137 @@ public class Result {
 	 * @throws Exception
 	 */
 	public Object get() throws Exception {
+		Object state = this.state;
+		if (!(state instanceof Outcome))
+			state = this.await(false, 0);
+		return ((Outcome) state).get();
+	}
 
-		// wait for the result to be set but only it hasn't released before.
-		if (!this.hasReleased)
-			synchronized (this) {
-				this.wait();
-			}
+	/**
+	 * Waits at most the given time for the result, and returns it as soon as
+	 * it is available.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return The result.
+	 * @throws TimeoutException
+	 *             If the result didn't become available in time. The request
+	 *             is still waiting for its response.
+	 * @throws Exception
+	 *             The exception that the request resulted in.
+	 */
+	public Object get(long timeout, TimeUnit unit) throws Exception {
+		Object state = this.state;
+		if (!(state instanceof Outcome))
+			state = this.await(true, unit.toNanos(timeout));
+		if (state == null)
+			throw new TimeoutException("No result came in within " + timeout
+					+ " " + unit.toString().toLowerCase() + ".");
+		return ((Outcome) state).get();
+	}
 
-		// when you get here, result has been set.
-		if (this.success)
-			throw (Exception) this.result;
+	/**
+	 * Parks the current thread until this Result is released.
+	 *
+	 * @return The outcome, or null if the time ran out.
+	 */
+	private Object await(boolean timed, long nanos) throws InterruptedException {
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		Waiter waiter = null;
+		while (true) {
+			Object state = this.state;
+			if (state instanceof Outcome)
+				return state;
 
-		// If no exception has been thrown, just return it.
-		return this.result;
+			if (waiter == null) {
+				waiter = new Waiter(Thread.currentThread(), null, null);
+				// If it was released in the meantime, the next round sees it.
+				this.push(waiter);
+			} else if (Thread.interrupted()) {
+				this.remove(waiter);
+				throw new InterruptedException();
+			} else if (timed) {
+				nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					this.remove(waiter);
+					return null;
+				}
+				LockSupport.parkNanos(this, nanos);
+			} else
+				LockSupport.park(this);
+		}
+	}
 
+	/**
+	 * <p>
+	 * Adds a listener that is called as soon as the result is available. If it
+	 * is available already, the listener is called right away. No thread waits
+	 * for the result in the meantime.
+	 * </p>
+	 * <p>
+	 * The listener is called on the executor that is set with
+	 * {@code CommunicationManager.setCallbackExecutor}. Without one, it is
+	 * called on the thread that received the result, which must not be
+	 * blocked; the listener should then hand any real work over to another
+	 * thread.
+	 * </p>
+	 *
+	 * @param listener
+	 *            The listener to call.
+	 */
+	public void addOnResultReceivedListener(OnResultReceivedListener listener) {
+		this.addOnResultReceivedListener(listener,
+				CommunicationManager.getCallbackExecutor());
+	}
+
+	/**
+	 * Adds a listener that is called on the given executor as soon as the
+	 * result is available. If it is available already, the listener is handed
+	 * to the executor right away.
+	 *
+	 * @param listener
+	 *            The listener to call.
+	 * @param executor
+	 *            The executor to call it on, or null to call it on the thread
+	 *            that received the result.
+	 */
+	public void addOnResultReceivedListener(OnResultReceivedListener listener,
+			Executor executor) {
+		if (!this.push(new Waiter(null, listener, executor)))
+			Result.deliver((Outcome) this.state, listener, executor);
+	}
+
+	/**
+	 * Gives a future that is completed with the result, or completed
+	 * exceptionally with the exception that the request resulted in.
+	 * <p>
+	 * The future is completed on the executor that is set with
+	 * {@code CommunicationManager.setCallbackExecutor}, or else on the common
+	 * pool, such that the stages that depend on it never run on the thread
+	 * that received the result or on the timer.
+	 * </p>
+	 *
+	 * @return The future.
+	 */
+	public CompletableFuture<Object> toCompletableFuture() {
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+		Executor executor = CommunicationManager.getCallbackExecutor();
+		this.addOnResultReceivedListener(new OnResultReceivedListener() {
+
+			@Override
+			public void onResultReceived(Object value) {
+				future.complete(value);
+			}
+
+			@Override
+			public void onExceptionReceived(Exception exception) {
+				future.completeExceptionally(exception);
+			}
+
+		}, executor == null ? ForkJoinPool.commonPool() : executor);
+		return future;
 	}
 
 	/**
@@ -90,44 +253,218 @@ public class Result {
 
 	void set(JSONObject response) {
 
-		if (this.result != null)
-			throw new IllegalStateException(
-					"The result has already been set. It can only be set once.");
-
-		// No one is allowed to do anything while this is unpacking.
-		synchronized (this) {
-			// unpack the response
-			this.success = response.getBoolean(Communication.Response.SUCCESS);
-
-			// If it is a success, use the response value.
-			if(this.success)
-			    this.result = response.get(Communication.Response.VALUE);
-			// If it wasn't a success, try to recreate the correct exception. 
-			else
-			{
-			    try {
-				this.result = Class.forName(response.getString(Communication.Response.VALUE)).newInstance();
-			    } catch (InstantiationException e) {
-				e.printStackTrace();
-			    } catch (IllegalAccessException e) {
-				e.printStackTrace();
-			    } catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			    } catch (JSONException e) {
-				this.result = e;
+		// unpack the response
+		boolean success = response.getBoolean(Communication.Response.SUCCESS);
+
+		JSONObject value = response.optJSONObject(Communication.Response.VALUE);
+		Object result = value == null ? null : Communication.parseValue(value);
+
+		// If it wasn't a success, the value should be the exception that was
+		// recreated from the response.
+		if (!success && !(result instanceof Exception))
+			result = new UnsuccessfulRequestException(String.valueOf(result));
+
+		this.release(success, result);
+	}
+
+	/**
+	 * Releases this Result with the given exception, for a request to which
+	 * no response will come.
+	 *
+	 * @param exception
+	 */
+	void fail(Exception exception) {
+		this.release(false, exception);
+	}
+
+	/**
+	 * Adds the given waiter, unless this Result has been released.
+	 *
+	 * @return false if this Result has been released already.
+	 */
+	private boolean push(Waiter waiter) {
+		Object state;
+		while (!((state = this.state) instanceof Outcome)) {
+			waiter.next = (Waiter) state;
+			if (Result.STATE.compareAndSet(this, state, waiter))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the given waiter, of a thread that stopped waiting, from the
+	 * stack, along with the others that are no longer needed. Without this, a
+	 * Result that is waited for with a timeout again and again would collect
+	 * them until it is released.
+	 */
+	private void remove(Waiter waiter) {
+		waiter.thread = null;
+		retry: while (true) {
+			Object state = this.state;
+			if (state instanceof Outcome)
+				return;
+
+			Waiter previous = null;
+			for (Waiter current = (Waiter) state; current != null;) {
+				Waiter next = current.next;
+				if (current.thread != null || current.listener != null)
+					previous = current;
+				else if (previous != null) {
+					previous.next = next;
+					// Start over if the one before stopped waiting as well.
+					if (previous.thread == null && previous.listener == null)
+						continue retry;
+				} else if (!Result.STATE.compareAndSet(this, current, next))
+					continue retry;
+				current = next;
+			}
+			return;
+		}
+	}
+
+	private void release(boolean success, Object result) {
+		Outcome outcome = new Outcome(success, result);
+
+		Object state;
+		do {
+			state = this.state;
+			if (state instanceof Outcome)
+				throw new IllegalStateException(
+						"The result has already been set. It can only be set once.");
+		} while (!Result.STATE.compareAndSet(this, state, outcome));
+
+		HashedWheelTimer.Task timeout = this.timeout;
+		if (timeout != null)
+			timeout.cancel();
+
+		// The waiters were added in front, so collect the listeners to call
+		// them in the order in which they were added. The stack itself is
+		// left alone, as a thread that stopped waiting may still unlink from
+		// it.
+		Waiter[] listeners = null;
+		int count = 0;
+		Waiter waiter;
+		for (waiter = (Waiter) state; waiter != null; waiter = waiter.next) {
+			Thread thread = waiter.thread;
+			if (thread != null)
+				LockSupport.unpark(thread);
+			else if (waiter.listener != null) {
+				if (listeners == null)
+					listeners = new Waiter[4];
+				else if (count == listeners.length)
+					listeners = Arrays.copyOf(listeners, count * 2);
+				listeners[count++] = waiter;
+			}
+		}
+
+		while (count > 0) {
+			waiter = listeners[--count];
+			Result.deliver(outcome, waiter.listener, waiter.executor);
+		}
+	}
+
+	private static void deliver(final Outcome outcome,
+			final OnResultReceivedListener listener, Executor executor) {
+		if (executor == null) {
+			outcome.deliver(listener);
+			return;
+		}
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				outcome.deliver(listener);
+			}
+
+		});
+	}
+
+	/**
+	 * The outcome of a request, once it is known.
+	 */
+	private static final class Outcome {
+
+		private final boolean success;
+
+		private final Object result;
+
+		private Outcome(boolean success, Object result) {
+			this.success = success;
+			this.result = result;
+		}
+
+		private Object get() throws Exception {
+			if (!this.success)
+				throw (Exception) this.result;
+			return this.result;
+		}
+
+		private void deliver(OnResultReceivedListener listener) {
+			try {
+				if (this.success)
+					listener.onResultReceived(this.result);
+				else
+					listener.onExceptionReceived((Exception) this.result);
+			} catch (RuntimeException e) {
+				// One listener must not keep the others from being called.
 				e.printStackTrace();
-			    }
-			    
-			    if(this.result == null)
-				this.result = new UnsuccessfulRequestException(response.getString(Communication.Response.VALUE));
 			}
-			
-			// release at the very last moment.
-			this.hasReleased = true;
-			this.notify();
 		}
 	}
 
+	/**
+	 * A thread that waits for a Result, or a listener for it. The waiters of a
+	 * Result form a stack.
+	 */
+	private static final class Waiter {
+
+		/**
+		 * The waiting thread, or null if it is a listener, or if the thread
+		 * stopped waiting.
+		 */
+		private volatile Thread thread;
+
+		private final OnResultReceivedListener listener;
+
+		/**
+		 * The executor of the listener, or null to call it directly.
+		 */
+		private final Executor executor;
+
+		private volatile Waiter next;
+
+		private Waiter(Thread thread, OnResultReceivedListener listener,
+				Executor executor) {
+			this.thread = thread;
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Listener for the moment that a Result is received.
+	 */
+	public interface OnResultReceivedListener {
+
+		/**
+		 * Called when the request was executed successfully.
+		 *
+		 * @param value
+		 *            The value that the request returned, or null.
+		 */
+		void onResultReceived(Object value);
+
+		/**
+		 * Called when the execution of the request resulted in an exception.
+		 *
+		 * @param exception
+		 *            The exception.
+		 */
+		void onExceptionReceived(Exception exception);
+	}
+
 	/**
 	 * Exception indicating that a Request was unsuccessful. This is only used when no better exception can be thrown. 
 	 * @author Maurice
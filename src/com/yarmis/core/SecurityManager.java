@@ -1,20 +1,95 @@
 package com.yarmis.core;
 
-import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.List;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.yarmis.core.exceptions.InsufficientRightsException;
 import com.yarmis.core.exceptions.ModuleInaccessibleException;
 import com.yarmis.core.exceptions.NoDeclaredRightsException;
-import com.yarmis.core.security.DemandRights;
-
+import com.yarmis.core.exceptions.RateLimitedException;
+import com.yarmis.core.security.ProfileManager;
 import com.yarmis.core.security.Right;
 
 public class SecurityManager {
 
-    static List<Right> getRights(Device device) {
-	return Arrays.asList(Right.values());
+    /**
+     * The long-term key pair that identifies this device to the devices it
+     * connects with, or null if it stays anonymous.
+     */
+    private static volatile KeyPair identity = null;
+
+    /**
+     * The limits of the rate of the requests per device, by the ordinal of
+     * the Right that the requests demand, or null if there is no limit. It is
+     * replaced as a whole when it changes.
+     */
+    private static volatile RateLimit[] rateLimits = new RateLimit[Right
+	    .values().length];
+
+    /**
+     * The mask of the Rights that have a limit, such that the requests that
+     * demand none of them are let through at once.
+     */
+    private static volatile long limitedRights = 0;
+
+    /**
+     * The time from which the buckets of the devices count, such that every
+     * time that is kept in them is positive.
+     */
+    private static final long EPOCH = System.nanoTime();
+
+    /**
+     * The buckets that limit the rate of the requests of every device, by
+     * the ordinal of the Right they are for. A device is known by the
+     * fingerprint of its identity, or else by its address, such that it
+     * doesn't get new buckets by connecting again.
+     */
+    private static final ConcurrentHashMap<Object, AtomicLongArray> buckets = new ConcurrentHashMap<Object, AtomicLongArray>();
+
+    /**
+     * The amount of buckets at which the buckets that are full are removed.
+     */
+    private static volatile int sweepAt = SecurityManager.MIN_SWEEP;
+
+    private static final int MIN_SWEEP = 4096;
+
+    /**
+     * Sets the long-term key pair that identifies this device. The other side
+     * of a {@code Connection} that is set up afterwards knows this device by
+     * the fingerprint of its public key. Connections that already exist are
+     * not affected.
+     * 
+     * @param identity
+     *            The key pair, as generated by
+     *            {@code Crypto.generateKeyPair()}, or null to stay anonymous.
+     */
+    public static void setIdentity(KeyPair identity) {
+	SecurityManager.identity = identity;
+    }
+
+    /**
+     * The long-term key pair that identifies this device, or null if it stays
+     * anonymous.
+     */
+    static KeyPair getIdentity() {
+	return SecurityManager.identity;
+    }
+
+    /**
+     * The Rights of the device at the other side of the given Connection, as
+     * a mask of their bits: the Rights that the device has been granted
+     * itself, or else those of the {@code Profile} of the key it
+     * authenticated with. Both are kept in memory.
+     */
+    static long getRights(Connection connection) {
+	long rights = connection.getDevice().getRightsMask();
+	if (rights != -1)
+	    return rights;
+	return ProfileManager.getRights(connection.getKeyFingerprint());
     }
 
     /**
@@ -29,75 +104,268 @@ public class SecurityManager {
 	    throws ModuleInaccessibleException {
 	// First, is the intended module accessible?
 	if (!ModuleManager.isAccessible(module))
-	    throw new ModuleInaccessibleException(module);
+	    throw new ModuleInaccessibleException("Module " + module
+		    + " is not accessible for remote invocation");
+    }
+
+    /**
+     * <p>
+     * Limits the rate at which every device can make requests that demand
+     * the given Right. A device may make up to {@code burst} of them at once,
+     * after which it gets one more per {@code 1 / permitsPerSecond} seconds.
+     * The requests above that are answered with a
+     * {@code RateLimitedException}, before they are queued.
+     * </p>
+     * <p>
+     * A request that demands several limited Rights counts for each of them.
+     * A request for a method that can't be found counts for every limited
+     * Right, as it isn't known which Rights it demands.
+     * </p>
+     * <p>
+     * A device that identifies itself is limited by the fingerprint of its
+     * identity, and an anonymous device by its address, also when it
+     * connects again.
+     * </p>
+     * 
+     * @param right
+     *            The Right to limit.
+     * @param permitsPerSecond
+     *            The rate that is sustained.
+     * @param burst
+     *            The amount of requests that may be made at once.
+     */
+    public static synchronized void setRateLimit(Right right,
+	    double permitsPerSecond, int burst) {
+	if (!(permitsPerSecond > 0) || burst < 1)
+	    throw new IllegalArgumentException(
+		    "The rate must be positive and the burst at least 1.");
+
+	RateLimit[] limits = SecurityManager.rateLimits.clone();
+	limits[right.ordinal()] = new RateLimit(permitsPerSecond, burst);
+	SecurityManager.rateLimits = limits;
+	SecurityManager.limitedRights |= right.bit();
     }
 
     /**
+     * Stops limiting the rate of the requests that demand the given Right.
+     * 
+     * @param right
+     *            The Right.
+     */
+    public static synchronized void removeRateLimit(Right right) {
+	RateLimit[] limits = SecurityManager.rateLimits.clone();
+	limits[right.ordinal()] = null;
+	SecurityManager.rateLimits = limits;
+	SecurityManager.limitedRights &= ~right.bit();
+    }
+
+    /**
+     * Takes a permit for a call of the given method over the given
+     * Connection, for each of the limited Rights that the method demands.
+     * Either a permit is taken for all of them, or for none.
+     * 
+     * @param entry
+     *            The method that is called, or null if it can't be found.
+     * @param connection
+     *            The Connection over which it is called.
+     * @throws RateLimitedException
+     *             If the device has no permit left for one of those Rights.
+     */
+    static void acquirePermit(DispatchTable.Entry entry,
+	    Connection connection) throws RateLimitedException {
+	long limited = SecurityManager.limitedRights;
+	if (entry != null) {
+	    long demanded = entry.getDemandedRights();
+	    if (demanded == -1)
+		return;
+	    limited &= demanded;
+	}
+	if (limited == 0)
+	    return;
+
+	RateLimit[] limits = SecurityManager.rateLimits;
+	long now = System.nanoTime() - SecurityManager.EPOCH;
+	AtomicLongArray buckets = SecurityManager.bucketsOf(connection, now);
+	// Only the bits of the limited Rights are visited.
+	for (long left = limited; left != 0; left &= left - 1) {
+	    int index = Long.numberOfTrailingZeros(left);
+	    RateLimit limit = limits[index];
+	    if (limit == null)
+		continue;
+
+	    long wait = limit.acquire(buckets, index, now);
+	    if (wait > 0) {
+		// The call isn't made, so the permits taken for the Rights
+		// before this one are given back.
+		long taken = limited & ~left;
+		for (; taken != 0; taken &= taken - 1) {
+		    int refunded = Long.numberOfTrailingZeros(taken);
+		    if (limits[refunded] != null)
+			limits[refunded].release(buckets, refunded);
+		}
+		throw new RateLimitedException("Too many requests for "
+			+ Right.values()[index] + ", retry in "
+			+ TimeUnit.NANOSECONDS.toMillis(wait + 999999) + " ms.");
+	    }
+	}
+    }
+
+    /**
+     * Obtains the buckets of the device at the other side of the given
+     * Connection, creating them if it has none.
+     * 
+     * @param now
+     *            The current time, counted from {@code EPOCH}.
+     */
+    private static AtomicLongArray bucketsOf(Connection connection, long now) {
+	Object key = connection.getKeyFingerprint();
+	if (key == null)
+	    key = connection.getDevice().getAddress();
+
+	AtomicLongArray buckets = SecurityManager.buckets.get(key);
+	if (buckets != null)
+	    return buckets;
+
+	if (SecurityManager.buckets.size() >= SecurityManager.sweepAt)
+	    SecurityManager.sweep(now);
+	buckets = new AtomicLongArray(Right.values().length);
+	AtomicLongArray existing = SecurityManager.buckets.putIfAbsent(key,
+		buckets);
+	return existing == null ? buckets : existing;
+    }
+
+    /**
+     * Removes the buckets that are full, as they are the same as new ones.
+     * The next sweep is done once there are twice as many buckets left, such
+     * that sweeping takes constant time per device on average.
+     * 
+     * @param now
+     *            The current time, counted from {@code EPOCH}.
+     */
+    private static synchronized void sweep(long now) {
+	if (SecurityManager.buckets.size() < SecurityManager.sweepAt)
+	    return;
+
+	Iterator<AtomicLongArray> iterator = SecurityManager.buckets.values()
+		.iterator();
+	while (iterator.hasNext()) {
+	    AtomicLongArray buckets = iterator.next();
+	    boolean full = true;
+	    for (int i = 0; i < buckets.length() && full; ++i)
+		full = buckets.get(i) <= now;
+	    if (full)
+		iterator.remove();
+	}
+	SecurityManager.sweepAt = Math.max(SecurityManager.MIN_SWEEP,
+		2 * SecurityManager.buckets.size());
+    }
+
+    /**
+     * <p>
      * Validates the given method call. If the given device is not allowed to
      * make the given request, an exception will be thrown. If the device is
      * allowed to make the request, the call to this method will terminate
      * normally.
+     * </p>
+     * <p>
+     * The Rights that the method demands were collected into a mask when its
+     * Module was created, so this only compares two masks.
+     * </p>
      * 
+     * @param entry
+     *            The method that is called.
+     * @param connection
+     *            The Connection over which it is called.
      * @throws InsufficientRightsException
+     *             If the device lacks any of the Rights that the method
+     *             demands.
      * @throws NoDeclaredRightsException
+     *             If the method doesn't declare which Rights it demands.
      * 
      */
-    static void validateMethod(Method method, Device device)
-	    throws NoDeclaredRightsException, InsufficientRightsException {
-	List<Right> rights = SecurityManager.getRights(device);
+    static void validateMethod(DispatchTable.Entry entry,
+	    Connection connection) throws NoDeclaredRightsException,
+	    InsufficientRightsException {
+	long rights = SecurityManager.getRights(connection);
 
 	// First, a basic check: does the device have rights?
-	if (rights == null || rights.size() == 0)
+	if (rights == 0)
 	    throw new InsufficientRightsException();
 
+	// If no rights have been demanded, then disallow calling to prevent
+	// illegal access.
+	long demanded = entry.getDemandedRights();
+	if (demanded == -1)
+	    throw new NoDeclaredRightsException(
+		    "The intended method "
+			    + entry.getMethod().getName()
+			    + " is not callable. Did you forget to add @DemandRights to the method?");
+
 	// Second, are the rights the device has enough to perform the call?
-	SecurityManager.validateMethodCall(method, rights);
+	long insufficient = demanded & ~rights;
+	if (insufficient != 0)
+	    throw new InsufficientRightsException(new ArrayList<Right>(
+		    Right.fromMask(insufficient)));
 
     }
 
     /**
      * <p>
-     * Checker to see whether the given Connection is allowed to call the given
-     * Method. This will check whether the rights that the method demands are a
-     * subset of all rights assigned to the connection.
+     * The limit of the rate of requests that demand a single Right, as a
+     * token bucket. The bucket of a device is a single time, which is kept in
+     * the buckets of that device: the time at which the bucket would be
+     * full. Every request moves it forward by the time it takes to get a
+     * permit back, and a request that would move it further than the burst
+     * ahead of now is refused.
      * </p>
      * <p>
-     * Do not that a method call is also not permitted if there are no rights
-     * (null), however, that is not checked here.
+     * Taking a permit is a single compare-and-set, so the buckets need no
+     * lock.
      * </p>
-     * 
-     * @param method
-     * @param connection
-     * @return
-     * @throws NoDeclaredRightsException
-     * @throws InsufficientRightsException
      */
-    private static void validateMethodCall(Method method, List<Right> rights)
-	    throws NoDeclaredRightsException, InsufficientRightsException {
+    private static final class RateLimit {
 
-	// Get the Rights that have been demanded.
-	DemandRights requiredRightAnnotation = method
-		.getAnnotation(DemandRights.class);
+	/**
+	 * The time it takes to get a permit back, in nanoseconds.
+	 */
+	private final long interval;
 
-	// If no rights have been demanded, then disallow calling to
-	// prevent
-	// illegal access.
-	if (requiredRightAnnotation == null)
-	    throw new NoDeclaredRightsException(
-		    "The intended method "
-			    + method.getName()
-			    + " is not callable. Did you forget to add @DemandRights to the method?");
+	/**
+	 * How far ahead of now the full time of a bucket may be, in
+	 * nanoseconds.
+	 */
+	private final long tolerance;
 
-	// Create a list of all missing rights
-	List<Right> insufficient = Arrays.asList(requiredRightAnnotation
-		.value());
-	insufficient.removeAll(rights);
+	private RateLimit(double permitsPerSecond, int burst) {
+	    this.interval = Math.max(1,
+		    (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+	    this.tolerance = (burst - 1) * this.interval;
+	}
 
-	// If that list contains any elements, then it is not allowed to be
-	// executed.
-	if (insufficient.size() > 0)
-	    throw new InsufficientRightsException(insufficient);
+	/**
+	 * Takes a permit from the bucket at the given index.
+	 * 
+	 * @return 0 if a permit was taken, or else how long it takes until
+	 *         there is a permit, in nanoseconds.
+	 */
+	private long acquire(AtomicLongArray buckets, int index, long now) {
+	    while (true) {
+		long full = buckets.get(index);
+		long start = Math.max(full, now);
+		if (start - now > this.tolerance)
+		    return start - now - this.tolerance;
+		if (buckets.compareAndSet(index, full, start + this.interval))
+		    return 0;
+	    }
+	}
 
+	/**
+	 * Gives back a permit that was taken from the bucket at the given
+	 * index.
+	 */
+	private void release(AtomicLongArray buckets, int index) {
+	    buckets.addAndGet(index, -this.interval);
+	}
     }
 
 }
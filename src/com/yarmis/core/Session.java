@@ -0,0 +1,269 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.yarmis.core.security.Crypto;
+
+/**
+ * <p>
+ * The keys with which the frames over a single {@code Connection} are signed.
+ * </p>
+ * <p>
+ * When a Connection is set up, both sides send a handshake with a freshly
+ * generated public key, and both agree on a shared secret from the key of the
+ * other side. If a side has an identity, it also sends its long-term public
+ * key, and signs its fresh key with it. This is the only time that expensive
+ * public-key operations are needed: every frame afterwards is signed with a
+ * cheap HMAC, with a key that is derived from the shared secret.
+ * </p>
+ * <p>
+ * Both directions have their own key, such that a frame can't be reflected
+ * back to its sender.
+ * </p>
+ */
+final class Session {
+
+    /**
+     * The value of {@code Communication.TYPE} of a handshake.
+     */
+    static final String HANDSHAKE = "handshake";
+
+    private static final String KEY = "key";
+    private static final String IDENTITY = "identity";
+    private static final String PROOF = "proof";
+
+    /**
+     * Mixed into the derived keys, such that they are never the same as keys
+     * that are derived from the same secret for another purpose.
+     */
+    private static final byte[] LABEL = "yarmis-session-1"
+	    .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * How long to wait for the handshake of the other side before sending.
+     */
+    private static final long TIMEOUT = 10000;
+
+    private final KeyPair ephemeral = Crypto.generateKeyPair();
+
+    private final CountDownLatch established = new CountDownLatch(1);
+
+    private volatile boolean failed = false;
+
+    private byte[] sendKey;
+
+    private byte[] receiveKey;
+
+    private String fingerprint = null;
+
+    /**
+     * Provides the nonces of the frames that are sent. A nonce is never used
+     * twice with the same key.
+     */
+    private final AtomicLong nextNonce = new AtomicLong();
+
+    /**
+     * Rejects frames of the other side that were received before.
+     */
+    private final ReplayWindow window = new ReplayWindow();
+
+    /**
+     * Creates the handshake that is sent to the other side.
+     *
+     * @return The handshake.
+     */
+    JSONObject hello() {
+	try {
+	    byte[] key = this.ephemeral.getPublic().getEncoded();
+
+	    JSONObject hello = new JSONObject();
+	    hello.put(Communication.TYPE, Session.HANDSHAKE);
+	    hello.put(Session.KEY, Session.encode(key));
+
+	    KeyPair identity = SecurityManager.getIdentity();
+	    if (identity != null) {
+		hello.put(Session.IDENTITY,
+			Session.encode(identity.getPublic().getEncoded()));
+		hello.put(Session.PROOF, Session.encode(Crypto.sign(key,
+			identity.getPrivate())));
+	    }
+	    return hello;
+	} catch (JSONException e) {
+	    throw new IllegalStateException(e);
+	} catch (GeneralSecurityException e) {
+	    throw new IllegalStateException(
+		    "The identity can not be used for signing.", e);
+	}
+    }
+
+    /**
+     * Completes this session with the handshake of the other side. Frames can
+     * be sent once this returns.
+     *
+     * @param hello
+     *            The handshake of the other side.
+     * @throws GeneralSecurityException
+     *             If the handshake is malformed, or if the fresh key is not
+     *             signed by the identity that is sent along.
+     */
+    void complete(JSONObject hello) throws GeneralSecurityException {
+	if (this.isEstablished())
+	    throw new GeneralSecurityException(
+		    "The session was already established.");
+
+	try {
+	    byte[] own = this.ephemeral.getPublic().getEncoded();
+	    byte[] other = Session.decode(hello.getString(Session.KEY));
+
+	    if (hello.has(Session.IDENTITY)) {
+		byte[] identity = Session.decode(hello
+			.getString(Session.IDENTITY));
+		PublicKey key = Crypto.decodePublicKey(identity);
+		if (!Crypto.isSignatureValid(other,
+			Session.decode(hello.getString(Session.PROOF)), key))
+		    throw new GeneralSecurityException(
+			    "The key is not signed by the identity.");
+		this.fingerprint = Crypto.fingerprint(identity);
+	    }
+
+	    byte[] secret = Crypto.agree(this.ephemeral.getPrivate(), other);
+	    this.sendKey = Session.derive(secret, own, other);
+	    this.receiveKey = Session.derive(secret, other, own);
+	} catch (JSONException e) {
+	    this.fail();
+	    throw new GeneralSecurityException("Malformed handshake.", e);
+	} catch (IllegalArgumentException e) {
+	    this.fail();
+	    throw new GeneralSecurityException("Malformed handshake.", e);
+	} catch (GeneralSecurityException e) {
+	    this.fail();
+	    throw e;
+	}
+
+	this.established.countDown();
+    }
+
+    /**
+     * Derives the key for the direction from the side with the first key to
+     * the side with the second key.
+     */
+    private static byte[] derive(byte[] secret, byte[] from, byte[] to) {
+	byte[] info = new byte[Session.LABEL.length + from.length + to.length];
+	ByteBuffer.wrap(info).put(Session.LABEL).put(from).put(to);
+	return Crypto.sign(info, secret);
+    }
+
+    /**
+     * Marks this session as failed, such that the frames that are waiting to be
+     * sent are never sent.
+     */
+    void fail() {
+	this.failed = true;
+	this.established.countDown();
+    }
+
+    /**
+     * Indicates whether frames can be sent and received.
+     */
+    boolean isEstablished() {
+	return this.established.getCount() == 0 && !this.failed;
+    }
+
+    /**
+     * Waits until the handshake of the other side has been received.
+     *
+     * @throws IOException
+     *             If the session failed, if the other side didn't send its
+     *             handshake in time, or if the thread was interrupted.
+     */
+    void await() throws IOException {
+	try {
+	    if (!this.established.await(Session.TIMEOUT, TimeUnit.MILLISECONDS))
+		throw new IOException("No handshake was received.");
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException(e);
+	}
+	if (this.failed)
+	    throw new IOException("The handshake failed.");
+    }
+
+    /**
+     * Creates a signed frame with the given payload. The session must be
+     * established.
+     *
+     * @param payload
+     *            The payload, from its position up to its limit.
+     * @return The frame.
+     */
+    Message frame(ByteBuffer payload) {
+	return Message.frame(payload, this.nonce(), this.sendKey);
+    }
+
+    /**
+     * Creates a signed frame that carries one chunk of a larger logical
+     * message. The session must be established.
+     *
+     * @see Message#chunk(ByteBuffer, boolean)
+     */
+    Message chunk(ByteBuffer payload, boolean last) {
+	return Message.chunk(payload, last, this.nonce(), this.sendKey);
+    }
+
+    /**
+     * Checks whether the given frame was signed by the other side of this
+     * session, and hasn't been received before.
+     *
+     * @param message
+     *            The received frame.
+     * @return true iff the frame is signed with the key of the other side, and
+     *         its nonce is fresh.
+     */
+    boolean isAuthentic(Message message) {
+	return this.isEstablished() && message.isSigned()
+		&& message.isSignatureValid(this.receiveKey)
+		&& this.window.accept(message.getNonce());
+    }
+
+    /**
+     * Creates a reader for the frames of the other side, which rejects replayed
+     * frames before their signature is checked.
+     */
+    Message.MessageReader newReader() {
+	return new Message.MessageReader(null, this.window);
+    }
+
+    /**
+     * The fingerprint of the identity of the other side, or null if it is
+     * anonymous or if the session isn't established.
+     */
+    String getFingerprint() {
+	return this.isEstablished() ? this.fingerprint : null;
+    }
+
+    private byte[] nonce() {
+	byte[] nonce = new byte[8];
+	ByteBuffer.wrap(nonce).putLong(this.nextNonce.getAndIncrement());
+	return nonce;
+    }
+
+    private static String encode(byte[] data) {
+	return Base64.getEncoder().encodeToString(data);
+    }
+
+    private static byte[] decode(String data) {
+	return Base64.getDecoder().decode(data);
+    }
+}
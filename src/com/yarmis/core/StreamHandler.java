@@ -0,0 +1,28 @@
+package com.yarmis.core;
+
+import java.io.IOException;
+
+/**
+ * Receives the streams of data that the other side of a {@code Connection}
+ * opens with {@code Connection.openDataStream()}.
+ * 
+ * @see CommunicationManager#setStreamHandler(StreamHandler)
+ */
+public interface StreamHandler {
+
+    /**
+     * Consumes a stream of data while it comes in. This is called on a thread
+     * of the stream executor as soon as the first chunk of the stream has
+     * come in. The stream is closed once this returns.
+     * 
+     * @param connection
+     *            The Connection over which the stream is received.
+     * @param stream
+     *            The stream, which can be read as an {@code InputStream} or as
+     *            a sequence of {@code ByteBuffer}s.
+     * @throws IOException
+     *             If the stream was aborted before it was complete.
+     */
+    void receive(Connection connection, ChunkedInputStream stream)
+	    throws IOException;
+}
@@ -0,0 +1,24 @@
+package com.yarmis.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets how long a remote call of the annotated method waits for its response,
+ * instead of the timeout of its {@code Module}. If no response has come in by
+ * then, the call fails with a {@code RequestTimeoutException}.
+ */
+@Documented
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Timeout {
+
+    /**
+     * The timeout in milliseconds, or 0 to wait as long as it takes.
+     */
+    long value();
+
+}
@@ -2,4 +2,13 @@ package com.yarmis.core.exceptions;
 
 public class FailedExecutionException extends Exception {
 
+    /**
+     * Stands in for the actual failure on the other side, which has no stack
+     * trace here.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
 }
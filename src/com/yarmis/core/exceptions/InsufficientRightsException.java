@@ -14,14 +14,26 @@ public class InsufficientRightsException extends Exception {
 	super("Device doesn't have any rights");
     }
 
+    public InsufficientRightsException(String message) {
+	super(message);
+    }
+
     private static String convertToText(List<Right> insufficient) {
 	StringBuilder sb = new StringBuilder();
 	sb.append("Device is missing the following right(s): ");
 	for (Right right : insufficient)
 	    sb.append(right.name()).append(", ");
 
-	sb.delete(sb.length() - 2, 2);
+	sb.setLength(sb.length() - 2);
 	return sb.toString();
     }
 
+    /**
+     * Thrown for every request that is refused, so it doesn't record where.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
 }
@@ -6,5 +6,13 @@ public class InvalidRequestException extends IllegalArgumentException {
 	{
 		super(msg);
 	}
-	
+
+	/**
+	 * Describes the request, not the code, so no stack trace is recorded.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 }
@@ -2,11 +2,16 @@ package com.yarmis.core.exceptions;
 
 public class ModuleInaccessibleException extends Exception {
 
-    public ModuleInaccessibleException(String module) {
-	super("Module "+module+" is not accessible for remote invocation");
-	// TODO Auto-generated constructor stub
+    public ModuleInaccessibleException(String message) {
+	super(message);
     }
 
-    
+    /**
+     * Only says which module was asked for; where it was thrown is of no use.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
 
 }
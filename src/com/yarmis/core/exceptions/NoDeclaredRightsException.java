@@ -6,4 +6,12 @@ public class NoDeclaredRightsException extends Exception {
 	super(message);
     }
 
+    /**
+     * A refused request, not a failure, so no stack trace is recorded.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
 }
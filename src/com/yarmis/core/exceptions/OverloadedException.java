@@ -0,0 +1,24 @@
+package com.yarmis.core.exceptions;
+
+/**
+ * Indicates that a Request was rejected because too many requests of its
+ * priority were already waiting to be performed. The Request has not been
+ * performed, so it can safely be made again later.
+ *
+ */
+public class OverloadedException extends RuntimeException {
+
+    public OverloadedException(String message) {
+	super(message);
+    }
+
+    /**
+     * Thrown in bulk while overloaded, so it is kept cheap by not recording a
+     * stack trace.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
+}
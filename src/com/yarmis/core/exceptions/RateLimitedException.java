@@ -0,0 +1,24 @@
+package com.yarmis.core.exceptions;
+
+/**
+ * Indicates that a Request was rejected because the device made too many
+ * requests that demand one of its Rights within a short time. The Request has
+ * not been performed, so it can safely be made again later.
+ *
+ */
+public class RateLimitedException extends RuntimeException {
+
+    public RateLimitedException(String message) {
+	super(message);
+    }
+
+    /**
+     * Thrown for every request over the limit, so recording a stack trace would
+     * cost more than the request.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.yarmis.core.exceptions;
+
+/**
+ * Indicates that no response to a Request came in within its timeout. The
+ * Request may still be performed by the other side.
+ *
+ */
+public class RequestTimeoutException extends RuntimeException {
+
+    public RequestTimeoutException(String message) {
+	super(message);
+    }
+
+    /**
+     * The stack trace would only show the thread that noticed the timeout.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+	return this;
+    }
+
+}
@@ -56,4 +56,12 @@ public class UnauthorizedRequestException extends Exception {
 		return this.missing == null;
 	}
 
+	/**
+	 * Expected whenever a request is refused; no stack trace is recorded.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 }
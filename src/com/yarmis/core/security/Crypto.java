@@ -1,7 +1,62 @@
 package com.yarmis.core.security;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 public class Crypto {
 
+	/**
+	 * The size of a hash and of a signature, in bytes.
+	 */
+	public static final int HASH_SIZE = 32;
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String KEY_ALGORITHM = "EC";
+	private static final String CURVE = "secp256r1";
+	private static final String AGREEMENT_ALGORITHM = "ECDH";
+	private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+	/**
+	 * Looking up a MessageDigest or Mac is expensive, and they can not be
+	 * shared between threads, so every thread gets its own instances.
+	 */
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(HASH_ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(HASH_ALGORITHM + " is not available.", e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<KeyedMac> MACS = new ThreadLocal<KeyedMac>() {
+		@Override
+		protected KeyedMac initialValue() {
+			try {
+				return new KeyedMac(Mac.getInstance(MAC_ALGORITHM));
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(MAC_ALGORITHM + " is not available.", e);
+			}
+		}
+	};
+
 	/**
 	 * Encrypts the data array with the given key.
 	 */
@@ -14,8 +69,50 @@ public class Crypto {
 	 * Hashes the data array, using sha256 hash.
 	 */
 	public static byte[] hash(byte[] data) {
-		// NYI;
-		return new byte[32];
+		return digest().digest(data);
+	}
+
+	/**
+	 * Obtains the sha256 MessageDigest of the current thread, ready to hash data
+	 * incrementally. It must only be used by the current thread, and the hash
+	 * must be completed before this is called again.
+	 */
+	public static MessageDigest digest() {
+		MessageDigest digest = DIGESTS.get();
+		digest.reset();
+		return digest;
+	}
+
+	/**
+	 * Signs the data array with the given key, using HMAC-SHA256.
+	 */
+	public static byte[] sign(byte[] data, byte[] key) {
+		return mac(key).doFinal(data);
+	}
+
+	/**
+	 * Obtains the HMAC-SHA256 Mac of the current thread, initialised with the
+	 * given key, ready to sign data incrementally. It must only be used by the
+	 * current thread, and the signature must be completed before this is called
+	 * again.
+	 * @param  key The key to sign with.
+	 * @return     The Mac.
+	 */
+	public static Mac mac(byte[] key) {
+		KeyedMac keyed = MACS.get();
+		// Initialising is relatively expensive, and the same key is often used
+		// for many signatures in a row.
+		if(keyed.key != key) {
+			try {
+				keyed.mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+			} catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException("The key can not be used for signing.", e);
+			}
+			keyed.key = key;
+		} else {
+			keyed.mac.reset();
+		}
+		return keyed.mac;
 	}
 
 	/**
@@ -27,19 +124,121 @@ public class Crypto {
 	 * @param  data      The signed data array
 	 * @param  signature The signature of the data array
 	 * @param  key       The key that the data array is signed with
-	 * @return           True iff the signature matches the encryption of the data array with the provided key.
+	 * @return           True iff the signature matches the signature of the data array with the provided key.
 	 */
 	public static boolean isSignatureValid(byte[] data, byte[] signature, byte[] key) {
-		byte[] trueSignature = encrypt(data, key);
-		if(trueSignature.length != signature.length) {
+		return isEqual(sign(data, key), ByteBuffer.wrap(signature));
+	}
+
+	/**
+	 * Compares an expected signature with the given one in constant time, such
+	 * that the time it takes does not reveal how much of the signature is correct.
+	 * @param  expected  The signature that was computed.
+	 * @param  signature The signature that was received, from its position up to its limit.
+	 * @return           True iff both are equal.
+	 */
+	public static boolean isEqual(byte[] expected, ByteBuffer signature) {
+		if(expected.length != signature.remaining()) {
 			return false;
-		} else {
-			for(int i = 0; i < signature.length; i++) {
-				if(trueSignature[i] != signature[i]) {
-					return false;
-				}
-			}
-			return true;
+		}
+		int difference = 0;
+		int offset = signature.position();
+		for(int i = 0; i < expected.length; i++) {
+			difference |= expected[i] ^ signature.get(offset + i);
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Generates a new key pair, which can be used both as a long-term identity and
+	 * as an ephemeral key pair for a key agreement.
+	 * @return The generated key pair.
+	 */
+	public static KeyPair generateKeyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+			generator.initialize(new ECGenParameterSpec(CURVE));
+			return generator.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(CURVE + " keys are not available.", e);
+		}
+	}
+
+	/**
+	 * Decodes a public key from the encoding given by {@code PublicKey.getEncoded()}.
+	 * @param  encoded                  The encoded public key.
+	 * @return                          The public key.
+	 * @throws GeneralSecurityException in case the encoding is not a valid public key.
+	 */
+	public static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+		return KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+	}
+
+	/**
+	 * Agrees on a shared secret with another party, using their public key and our
+	 * own private key. Both parties end up with the same secret, which is not suitable
+	 * as a key by itself; derive keys from it with {@code sign}.
+	 * @param  privateKey               Our own private key.
+	 * @param  publicKey                The encoded public key of the other party.
+	 * @return                          The shared secret.
+	 * @throws GeneralSecurityException in case the public key can not be used.
+	 */
+	public static byte[] agree(PrivateKey privateKey, byte[] publicKey) throws GeneralSecurityException {
+		KeyAgreement agreement = KeyAgreement.getInstance(AGREEMENT_ALGORITHM);
+		agreement.init(privateKey);
+		agreement.doPhase(decodePublicKey(publicKey), true);
+		return agreement.generateSecret();
+	}
+
+	/**
+	 * Signs the data array with a private key, such that anyone with the public key
+	 * can verify it. This is far more expensive than {@code sign(byte[], byte[])}, so
+	 * it should only be used to authenticate once, rather than for every message.
+	 */
+	public static byte[] sign(byte[] data, PrivateKey key) throws GeneralSecurityException {
+		Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+		signature.initSign(key);
+		signature.update(data);
+		return signature.sign();
+	}
+
+	/**
+	 * Checks whether the signature of a given data array was made with the private
+	 * key that corresponds to the given public key.
+	 * @param  data      The signed data array
+	 * @param  signature The signature of the data array
+	 * @param  publicKey The public key of the signer
+	 * @return           True iff the signature is valid.
+	 */
+	public static boolean isSignatureValid(byte[] data, byte[] signature, PublicKey publicKey) throws GeneralSecurityException {
+		Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+		verifier.initVerify(publicKey);
+		verifier.update(data);
+		return verifier.verify(signature);
+	}
+
+	/**
+	 * Gives the fingerprint of a public key: the hexadecimal sha256 hash of its encoding.
+	 */
+	public static String fingerprint(byte[] publicKey) {
+		byte[] hash = hash(publicKey);
+		StringBuilder builder = new StringBuilder(hash.length * 2);
+		for(byte b : hash) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A Mac, and the key it was last initialised with.
+	 */
+	private static final class KeyedMac {
+		private final Mac mac;
+		private byte[] key;
+
+		private KeyedMac(Mac mac) {
+			this.mac = mac;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -1,5 +1,93 @@
 package com.yarmis.core.security;
 
-public class Profile {
+import java.util.Collection;
+import java.util.EnumSet;
 
+/**
+ * <p>
+ * A named set of Rights, which is given to the devices that are assigned to
+ * it. Profiles are created by the {@code ProfileManager}.
+ * </p>
+ * <p>
+ * A change to the Rights of a Profile applies to the next request of every
+ * device that is assigned to it.
+ * </p>
+ */
+public final class Profile {
+
+	private final String name;
+
+	/**
+	 * The Rights of this Profile, as a mask of their bits.
+	 */
+	private volatile long rights;
+
+	Profile(String name, long rights) {
+		this.name = name;
+		this.rights = rights;
+	}
+
+	/**
+	 * The name of this Profile, which is unique.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * The Rights of this Profile.
+	 */
+	public EnumSet<Right> getRights() {
+		return Right.fromMask(this.rights);
+	}
+
+	/**
+	 * Indicates whether this Profile has the given Right.
+	 */
+	public boolean hasRight(Right right) {
+		return (this.rights & right.bit()) != 0;
+	}
+
+	/**
+	 * Replaces the Rights of this Profile.
+	 * 
+	 * @param rights
+	 *            The new Rights.
+	 */
+	public void setRights(Collection<Right> rights) {
+		this.setRightsMask(Right.maskOf(rights.toArray(new Right[rights.size()])));
+	}
+
+	/**
+	 * Adds the given Right to this Profile.
+	 */
+	public synchronized void grant(Right right) {
+		this.setRightsMask(this.rights | right.bit());
+	}
+
+	/**
+	 * Removes the given Right from this Profile.
+	 */
+	public synchronized void revoke(Right right) {
+		this.setRightsMask(this.rights & ~right.bit());
+	}
+
+	/**
+	 * The Rights of this Profile, as a mask of their bits.
+	 */
+	long getRightsMask() {
+		return this.rights;
+	}
+
+	private synchronized void setRightsMask(long rights) {
+		if (rights == this.rights)
+			return;
+		this.rights = rights;
+		ProfileManager.changed();
+	}
+
+	@Override
+	public String toString() {
+		return this.name + this.getRights();
+	}
 }
@@ -0,0 +1,379 @@
+package com.yarmis.core.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Keeps the {@code Profile}s, and which devices are assigned to which Profile.
+ * A device is known by the fingerprint of the key that it authenticated with.
+ * Devices that are anonymous, or that haven't been assigned to a Profile, get
+ * the default Profile.
+ * </p>
+ * <p>
+ * The Rights that a device has are looked up once and then cached under its
+ * fingerprint, along with the version of the Profiles at that time. Every
+ * change to the Profiles or the assignments increases that version, which
+ * makes every cached lookup stale at once, without touching the cache.
+ * Checking the Rights of a device therefore never reads the file.
+ * </p>
+ * <p>
+ * If a file has been set, the Profiles and assignments are loaded from it,
+ * and saved to it after every change. The file can be set with the system
+ * property {@code yarmis.profiles}.
+ * </p>
+ */
+public final class ProfileManager {
+
+	private static final String PROFILES = "profiles";
+	private static final String ASSIGNMENTS = "assignments";
+	private static final String DEFAULT = "default";
+
+	/**
+	 * The Profiles by their name.
+	 */
+	private static final ConcurrentHashMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+	/**
+	 * The names of the Profiles that devices are assigned to, by the
+	 * fingerprint of the device.
+	 */
+	private static final ConcurrentHashMap<String, String> assignments = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * The Rights of the devices that have been looked up, by their
+	 * fingerprint.
+	 */
+	private static final ConcurrentHashMap<String, Grant> cache = new ConcurrentHashMap<String, Grant>();
+
+	/**
+	 * Increased on every change to the Profiles or the assignments.
+	 */
+	private static final AtomicLong version = new AtomicLong();
+
+	/**
+	 * The Profile of the devices that haven't been assigned to one. Unless it
+	 * is changed, it has every Right.
+	 */
+	private static volatile Profile defaultProfile;
+
+	/**
+	 * The file in which the Profiles are kept, or null if they are only kept
+	 * in memory.
+	 */
+	private static File file = null;
+
+	/**
+	 * Set while the file is loaded, such that loading doesn't save it.
+	 */
+	private static boolean isLoading = false;
+
+	static {
+		ProfileManager.reset();
+
+		String path = System.getProperty("yarmis.profiles");
+		if (path != null)
+			try {
+				ProfileManager.setFile(new File(path));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
+	// No instances of ProfileManager
+	private ProfileManager() {
+	}
+
+	/**
+	 * Creates a new Profile with the given Rights.
+	 *
+	 * @param name
+	 *            The name of the Profile.
+	 * @param rights
+	 *            The Rights of the Profile.
+	 * @return The created Profile.
+	 * @throws IllegalArgumentException
+	 *             If a Profile with the given name exists already.
+	 */
+	public static Profile createProfile(String name, Collection<Right> rights) {
+		Profile profile = new Profile(name, Right.maskOf(rights.toArray(new Right[rights.size()])));
+		if (ProfileManager.profiles.putIfAbsent(name, profile) != null)
+			throw new IllegalArgumentException("A Profile named " + name + " exists already.");
+		ProfileManager.changed();
+		return profile;
+	}
+
+	/**
+	 * Obtains the Profile with the given name.
+	 *
+	 * @return The Profile, or null if there is no Profile with that name.
+	 */
+	public static Profile getProfile(String name) {
+		return ProfileManager.profiles.get(name);
+	}
+
+	/**
+	 * Obtains all Profiles.
+	 */
+	public static Collection<Profile> getProfiles() {
+		return Collections.unmodifiableCollection(new ArrayList<Profile>(ProfileManager.profiles.values()));
+	}
+
+	/**
+	 * Removes the given Profile. The devices that were assigned to it get the
+	 * default Profile from now on. The default Profile itself can not be
+	 * removed.
+	 *
+	 * @param profile
+	 *            The Profile to remove.
+	 */
+	public static void removeProfile(Profile profile) {
+		if (profile == ProfileManager.defaultProfile)
+			throw new IllegalArgumentException("The default Profile can't be removed.");
+		if (!ProfileManager.profiles.remove(profile.getName(), profile))
+			return;
+
+		Iterator<String> assigned = ProfileManager.assignments.values().iterator();
+		while (assigned.hasNext())
+			if (assigned.next().equals(profile.getName()))
+				assigned.remove();
+		ProfileManager.changed();
+	}
+
+	/**
+	 * Sets the Profile of the devices that haven't been assigned to one,
+	 * including the anonymous devices.
+	 *
+	 * @param profile
+	 *            A Profile that was created by this ProfileManager.
+	 */
+	public static void setDefaultProfile(Profile profile) {
+		ProfileManager.verify(profile);
+		ProfileManager.defaultProfile = profile;
+		ProfileManager.changed();
+	}
+
+	/**
+	 * The Profile of the devices that haven't been assigned to one.
+	 */
+	public static Profile getDefaultProfile() {
+		return ProfileManager.defaultProfile;
+	}
+
+	/**
+	 * Assigns the device with the given fingerprint to the given Profile.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the key of the device, as given by
+	 *            {@code Connection.getKeyFingerprint()}.
+	 * @param profile
+	 *            A Profile that was created by this ProfileManager.
+	 */
+	public static void assign(String fingerprint, Profile profile) {
+		ProfileManager.verify(profile);
+		ProfileManager.assignments.put(fingerprint, profile.getName());
+		ProfileManager.changed();
+	}
+
+	/**
+	 * Lets the device with the given fingerprint get the default Profile
+	 * again.
+	 */
+	public static void unassign(String fingerprint) {
+		if (ProfileManager.assignments.remove(fingerprint) != null)
+			ProfileManager.changed();
+	}
+
+	/**
+	 * Obtains the Profile of the device with the given fingerprint.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the key of the device, or null if it is
+	 *            anonymous.
+	 * @return The Profile it is assigned to, or else the default Profile.
+	 */
+	public static Profile getProfileOf(String fingerprint) {
+		if (fingerprint == null)
+			return ProfileManager.defaultProfile;
+
+		String name = ProfileManager.assignments.get(fingerprint);
+		Profile profile = name == null ? null : ProfileManager.profiles.get(name);
+		return profile == null ? ProfileManager.defaultProfile : profile;
+	}
+
+	/**
+	 * Obtains the Rights of the device with the given fingerprint, as a mask
+	 * of their bits. Unless something changed since the last time, this is a
+	 * single lookup in memory.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the key of the device, or null if it is
+	 *            anonymous.
+	 * @return The mask of the Rights of the Profile of the device.
+	 */
+	public static long getRights(String fingerprint) {
+		if (fingerprint == null)
+			return ProfileManager.defaultProfile.getRightsMask();
+
+		long version = ProfileManager.version.get();
+		Grant grant = ProfileManager.cache.get(fingerprint);
+		if (grant != null && grant.version == version)
+			return grant.rights;
+
+		// If something changes while looking it up, the version that is
+		// stored is stale already, so the next lookup is done again.
+		long rights = ProfileManager.getProfileOf(fingerprint).getRightsMask();
+		ProfileManager.cache.put(fingerprint, new Grant(rights, version));
+		return rights;
+	}
+
+	/**
+	 * Sets the file in which the Profiles are kept. If it exists, the current
+	 * Profiles and assignments are replaced by the ones in the file.
+	 * Otherwise the file is created with the current ones. From now on, the
+	 * file is saved after every change. If the file can't be read, nothing
+	 * is saved to it, and the Profiles go back to a default Profile with
+	 * every Right.
+	 *
+	 * @param file
+	 *            The file, or null to only keep the Profiles in memory.
+	 * @throws IOException
+	 *             If the file could not be read or created.
+	 */
+	public static synchronized void setFile(File file) throws IOException {
+		if (file != null && file.exists())
+			ProfileManager.load(file);
+
+		ProfileManager.file = file;
+		ProfileManager.save();
+	}
+
+	/**
+	 * Replaces the Profiles and assignments by the ones in the given file.
+	 */
+	private static void load(File file) throws IOException {
+		JSONObject stored = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+		ProfileManager.isLoading = true;
+		try {
+			ProfileManager.profiles.clear();
+			ProfileManager.assignments.clear();
+
+			JSONObject profiles = stored.getJSONObject(ProfileManager.PROFILES);
+			for (String name : JSONObject.getNames(profiles)) {
+				JSONArray names = profiles.getJSONArray(name);
+				EnumSet<Right> rights = EnumSet.noneOf(Right.class);
+				for (int i = 0; i < names.length(); ++i)
+					rights.add(Right.valueOf(names.getString(i)));
+				ProfileManager.createProfile(name, rights);
+			}
+
+			JSONObject assignments = stored.getJSONObject(ProfileManager.ASSIGNMENTS);
+			if (assignments.length() > 0)
+				for (String fingerprint : JSONObject.getNames(assignments))
+					ProfileManager.assignments.put(fingerprint, assignments.getString(fingerprint));
+
+			Profile defaultProfile = ProfileManager.profiles.get(stored.getString(ProfileManager.DEFAULT));
+			if (defaultProfile == null)
+				throw new IOException("The default Profile of " + file + " doesn't exist.");
+			ProfileManager.defaultProfile = defaultProfile;
+		} catch (RuntimeException e) {
+			// Don't go on with half of the file.
+			ProfileManager.reset();
+			throw new IOException(file + " is not a valid file of Profiles.", e);
+		} catch (IOException e) {
+			ProfileManager.reset();
+			throw e;
+		} finally {
+			ProfileManager.isLoading = false;
+			ProfileManager.version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes the Profiles and assignments to the file. The file is replaced
+	 * at once, such that it is never half written.
+	 */
+	private static synchronized void save() throws IOException {
+		if (ProfileManager.file == null || ProfileManager.isLoading)
+			return;
+
+		JSONObject profiles = new JSONObject();
+		for (Profile profile : ProfileManager.profiles.values()) {
+			JSONArray rights = new JSONArray();
+			for (Right right : profile.getRights())
+				rights.put(right.name());
+			profiles.put(profile.getName(), rights);
+		}
+
+		JSONObject assignments = new JSONObject();
+		for (Map.Entry<String, String> assignment : ProfileManager.assignments.entrySet())
+			assignments.put(assignment.getKey(), assignment.getValue());
+
+		JSONObject stored = new JSONObject();
+		stored.put(ProfileManager.PROFILES, profiles);
+		stored.put(ProfileManager.ASSIGNMENTS, assignments);
+		stored.put(ProfileManager.DEFAULT, ProfileManager.defaultProfile.getName());
+
+		File temporary = new File(ProfileManager.file.getPath() + ".tmp");
+		Files.write(temporary.toPath(), stored.toString(2).getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary.toPath(), ProfileManager.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Goes back to a single default Profile with every Right.
+	 */
+	private static void reset() {
+		ProfileManager.profiles.clear();
+		ProfileManager.assignments.clear();
+		Profile profile = new Profile(ProfileManager.DEFAULT, Right.ALL);
+		ProfileManager.profiles.put(profile.getName(), profile);
+		ProfileManager.defaultProfile = profile;
+	}
+
+	private static void verify(Profile profile) {
+		if (profile == null || ProfileManager.profiles.get(profile.getName()) != profile)
+			throw new IllegalArgumentException(profile + " is not a Profile of the ProfileManager.");
+	}
+
+	/**
+	 * Makes the cached Rights stale, and saves the change.
+	 */
+	static void changed() {
+		ProfileManager.version.incrementAndGet();
+		try {
+			ProfileManager.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The Rights of a device as they were looked up at a version.
+	 */
+	private static final class Grant {
+
+		private final long rights;
+
+		private final long version;
+
+		private Grant(long rights, long version) {
+			this.rights = rights;
+			this.version = version;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.yarmis.core.security;
 
+import java.util.EnumSet;
+
 public enum Right {
 
 	/**
@@ -28,4 +30,47 @@ public enum Right {
 	
 	
 	LIBRARY_SEARCH_ACCESS, VOTE_REQUEST, VOTE_REMOVE, PLAYLIST_EDIT, PLAYLIST_DOWNLOAD, CONNECTIVITY_CHANGE_SETTINGS;
+
+	// Every Right is a bit in a long, so there can be at most 64 of them.
+
+	/**
+	 * The mask that holds every Right.
+	 */
+	public static final long ALL = Right.maskOf(Right.values());
+
+	/**
+	 * The bit of this Right in a mask of Rights.
+	 */
+	public long bit() {
+		return 1L << this.ordinal();
+	}
+
+	/**
+	 * Creates the mask that holds the given Rights.
+	 * 
+	 * @param rights
+	 *            The Rights.
+	 * @return The mask, with the bit of every given Right set.
+	 */
+	public static long maskOf(Right... rights) {
+		long mask = 0;
+		for (Right right : rights)
+			mask |= right.bit();
+		return mask;
+	}
+
+	/**
+	 * Obtains the Rights in the given mask.
+	 * 
+	 * @param mask
+	 *            The mask.
+	 * @return The Rights of which the bit is set in the mask.
+	 */
+	public static EnumSet<Right> fromMask(long mask) {
+		EnumSet<Right> rights = EnumSet.noneOf(Right.class);
+		for (Right right : Right.values())
+			if ((mask & right.bit()) != 0)
+				rights.add(right);
+		return rights;
+	}
 }
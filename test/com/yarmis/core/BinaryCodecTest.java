@@ -0,0 +1,308 @@
+package com.yarmis.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.yarmis.core.exceptions.RateLimitedException;
+
+/**
+ * Tests the binary form of messages: that requests, responses and batches
+ * decode to what they were encoded from, that messages which can't be
+ * represented are left to JSON, and that invalid input is rejected.
+ */
+public class BinaryCodecTest {
+
+    public static void main(String[] args) {
+	Tests.run(BinaryCodecTest.class);
+    }
+
+    static void testRequestByName() throws Exception {
+	JSONObject request = BinaryCodecTest.request(12345L, "Player", "play");
+	request.put(Communication.Request.DEADLINE, 1700000000000L);
+	request.put(Communication.Request.VALUES, new JSONArray()
+		.put(BinaryCodecTest.value("a song"))
+		.put(BinaryCodecTest.value(3)));
+
+	JSONObject decoded = BinaryCodecTest.roundTrip(request);
+	Tests.equal(Communication.REQUEST,
+		decoded.getString(Communication.TYPE), "type");
+	Tests.equal(12345L, decoded.getLong(Communication.Request.IDENTIFIER),
+		"identifier");
+	Tests.equal(1700000000000L,
+		decoded.getLong(Communication.Request.DEADLINE), "deadline");
+	Tests.equal("Player", decoded.getString(Communication.Request.MODULE),
+		"module");
+	Tests.equal("play", decoded.getString(Communication.Request.METHOD),
+		"method");
+	Tests.check(!decoded.has(Communication.Request.ID),
+		"a request by name decodes with a number");
+
+	JSONArray values = decoded.getJSONArray(Communication.Request.VALUES);
+	Tests.equal(2, values.length(), "amount of values");
+	Tests.equal("a song", Communication.parseValue(values.getJSONObject(0)),
+		"first value");
+	Tests.equal(3, Communication.parseValue(values.getJSONObject(1)),
+		"second value");
+    }
+
+    static void testRequestByNumber() throws Exception {
+	JSONObject request = new JSONObject();
+	request.put(Communication.TYPE, Communication.REQUEST);
+	request.put(Communication.Request.IDENTIFIER, 0);
+	request.put(Communication.Request.ID, 0);
+	request.put(Communication.Request.VALUES, new JSONArray());
+
+	JSONObject decoded = BinaryCodecTest.roundTrip(request);
+	Tests.equal(0, decoded.getInt(Communication.Request.ID), "number");
+	Tests.check(!decoded.has(Communication.Request.MODULE),
+		"a request by number decodes with a module");
+	Tests.check(!decoded.has(Communication.Request.DEADLINE),
+		"a request without a deadline decodes with one");
+	Tests.equal(0, decoded.getJSONArray(Communication.Request.VALUES)
+		.length(), "amount of values");
+    }
+
+    static void testValues() throws Exception {
+	Object[] values = { true, false, 'x', '\u20ac', 0, 1, -1,
+		Integer.MAX_VALUE, Integer.MIN_VALUE, 0L, Long.MAX_VALUE,
+		Long.MIN_VALUE, 1.5f, Float.MIN_VALUE, -0.25, Double.MAX_VALUE,
+		"", "na\u00efve \u65e5\u672c" };
+
+	JSONArray array = new JSONArray();
+	for (Object value : values)
+	    array.put(BinaryCodecTest.value(value));
+	JSONObject request = BinaryCodecTest.request(1, "Module", "method");
+	request.put(Communication.Request.VALUES, array);
+
+	JSONArray decoded = BinaryCodecTest.roundTrip(request).getJSONArray(
+		Communication.Request.VALUES);
+	Tests.equal(values.length, decoded.length(), "amount of values");
+	for (int i = 0; i < values.length; ++i)
+	    Tests.equal(values[i],
+		    Communication.parseValue(decoded.getJSONObject(i)),
+		    "value " + i);
+    }
+
+    static void testNullValues() throws Exception {
+	JSONArray array = new JSONArray();
+	for (char type : new char[] { 'b', 'c', 'i', 'l', 'f', 'd', 's' })
+	    array.put(new JSONObject().put(Communication.Value.TYPE, type)
+		    .put(Communication.Value.VALUE, JSONObject.NULL));
+	JSONObject request = BinaryCodecTest.request(1, "Module", "method");
+	request.put(Communication.Request.VALUES, array);
+
+	JSONArray decoded = BinaryCodecTest.roundTrip(request).getJSONArray(
+		Communication.Request.VALUES);
+	for (int i = 0; i < array.length(); ++i) {
+	    JSONObject value = decoded.getJSONObject(i);
+	    Tests.equal(array.getJSONObject(i).getInt(Communication.Value.TYPE),
+		    value.getInt(Communication.Value.TYPE), "type " + i);
+	    Tests.equal(null, Communication.parseValue(value), "value " + i);
+	}
+    }
+
+    static void testSuccessfulResponse() throws Exception {
+	JSONObject response = BinaryCodecTest.response(77, true,
+		BinaryCodecTest.value(42L));
+
+	JSONObject decoded = BinaryCodecTest.roundTrip(response);
+	Tests.equal(Communication.RESPONSE,
+		decoded.getString(Communication.TYPE), "type");
+	Tests.equal(77L, decoded.getLong(Communication.Response.IDENTIFIER),
+		"identifier");
+	Tests.check(decoded.getBoolean(Communication.Response.SUCCESS),
+		"a successful response decodes as failed");
+	Tests.equal(42L, Communication.parseValue(decoded
+		.getJSONObject(Communication.Response.VALUE)), "value");
+    }
+
+    static void testResponseWithoutValue() throws Exception {
+	JSONObject decoded = BinaryCodecTest.roundTrip(BinaryCodecTest
+		.response(5, true, null));
+	Tests.check(!decoded.has(Communication.Response.VALUE),
+		"a response without a value decodes with one");
+    }
+
+    static void testKnownException() throws Exception {
+	JSONObject response = BinaryCodecTest.response(9, false, Communication
+		.convertException(new RateLimitedException("slow down")));
+
+	JSONObject decoded = BinaryCodecTest.roundTrip(response);
+	Tests.check(!decoded.getBoolean(Communication.Response.SUCCESS),
+		"a failed response decodes as successful");
+	Object exception = Communication.parseValue(decoded
+		.getJSONObject(Communication.Response.VALUE));
+	Tests.check(exception instanceof RateLimitedException,
+		"a known exception decodes as " + exception);
+	Tests.equal("slow down", ((Exception) exception).getMessage(),
+		"message");
+    }
+
+    static void testUnknownException() throws Exception {
+	JSONObject response = BinaryCodecTest.response(9, false, Communication
+		.convertException(new ArithmeticException("/ by zero")));
+
+	Object exception = Communication.parseValue(BinaryCodecTest
+		.roundTrip(response)
+		.getJSONObject(Communication.Response.VALUE));
+	Tests.check(exception instanceof ArithmeticException,
+		"an unknown exception decodes as " + exception);
+	Tests.equal("/ by zero", ((Exception) exception).getMessage(),
+		"message");
+    }
+
+    static void testBatch() throws Exception {
+	JSONObject first = BinaryCodecTest.request(1, "Module", "method");
+	first.put(Communication.Request.VALUES,
+		new JSONArray().put(BinaryCodecTest.value("one")));
+	JSONObject second = BinaryCodecTest.response(2, true,
+		BinaryCodecTest.value(2));
+	JSONObject batch = new JSONObject();
+	batch.put(Communication.TYPE, Communication.BATCH);
+	batch.put(Communication.Batch.MESSAGES,
+		new JSONArray().put(first).put(second));
+
+	JSONArray messages = BinaryCodecTest.roundTrip(batch).getJSONArray(
+		Communication.Batch.MESSAGES);
+	Tests.equal(2, messages.length(), "amount of messages");
+	Tests.equal(1L, messages.getJSONObject(0).getLong(
+		Communication.Request.IDENTIFIER), "first identifier");
+	Tests.equal(Communication.RESPONSE, messages.getJSONObject(1)
+		.getString(Communication.TYPE), "type of the second message");
+    }
+
+    static void testDecodeFromStream() throws Exception {
+	JSONObject request = BinaryCodecTest.request(3, "Module", "method");
+	request.put(Communication.Request.VALUES, new JSONArray());
+	byte[] encoded = BinaryCodec.encode(request);
+
+	JSONObject decoded = BinaryCodec.decode(new ByteArrayInputStream(
+		encoded));
+	Tests.equal(3L, decoded.getLong(Communication.Request.IDENTIFIER),
+		"identifier");
+    }
+
+    static void testUnrepresentable() {
+	JSONObject extra = BinaryCodecTest.request(1, "Module", "method");
+	extra.put(Communication.Request.VALUES, new JSONArray());
+	extra.put("unknown", 1);
+	Tests.check(BinaryCodec.encode(extra) == null,
+		"a request with an unknown key is encoded");
+
+	JSONObject negative = BinaryCodecTest.request(-1, "Module", "method");
+	negative.put(Communication.Request.VALUES, new JSONArray());
+	Tests.check(BinaryCodec.encode(negative) == null,
+		"a negative identifier is encoded");
+
+	JSONObject noValues = BinaryCodecTest.request(1, "Module", "method");
+	Tests.check(BinaryCodec.encode(noValues) == null,
+		"a request without values is encoded");
+
+	JSONObject mistyped = BinaryCodecTest.request(1, "Module", "method");
+	mistyped.put(Communication.Request.VALUES, new JSONArray()
+		.put(new JSONObject().put(Communication.Value.TYPE, 'i').put(
+			Communication.Value.VALUE, "not a number")));
+	Tests.check(BinaryCodec.encode(mistyped) == null,
+		"a value that doesn't match its type is encoded");
+
+	JSONObject batch = new JSONObject();
+	batch.put(Communication.TYPE, Communication.BATCH);
+	batch.put(Communication.Batch.MESSAGES, new JSONArray().put(extra));
+	Tests.check(BinaryCodec.encode(batch) == null,
+		"a batch with a message that can't be encoded is encoded");
+
+	Tests.check(BinaryCodec.encode(new JSONObject().put(
+		Communication.TYPE, "other")) == null,
+		"a message of an unknown type is encoded");
+    }
+
+    static void testIsBinary() {
+	JSONObject request = BinaryCodecTest.request(1, "Module", "method");
+	request.put(Communication.Request.VALUES, new JSONArray());
+	Tests.check(BinaryCodec.isBinary(ByteBuffer.wrap(BinaryCodec
+		.encode(request))), "an encoded message is not binary");
+	Tests.check(!BinaryCodec.isBinary(ByteBuffer.wrap(request.toString()
+		.getBytes())), "JSON text is binary");
+	Tests.check(!BinaryCodec.isBinary(ByteBuffer.allocate(0)),
+		"an empty payload is binary");
+    }
+
+    static void testRejectsInvalidInput() {
+	JSONObject request = BinaryCodecTest.request(1, "Module", "method");
+	request.put(Communication.Request.VALUES,
+		new JSONArray().put(BinaryCodecTest.value("a value")));
+	byte[] encoded = BinaryCodec.encode(request);
+
+	BinaryCodecTest.rejects(new byte[] { '{', '}' }, "JSON text");
+	BinaryCodecTest.rejects(new byte[] { (byte) BinaryCodec.MAGIC, 9 },
+		"an unknown kind of message");
+	for (int length = 0; length < encoded.length; ++length)
+	    BinaryCodecTest.rejects(Arrays.copyOf(encoded, length),
+		    "a message cut off after " + length + " bytes");
+
+	byte[] unknownType = encoded.clone();
+	// The type character of the only value.
+	int type = unknownType.length - "a value".length() - 2;
+	Tests.equal((int) 's', (int) unknownType[type], "type of the value");
+	unknownType[type] = 'z';
+	BinaryCodecTest.rejects(unknownType, "an unknown type of value");
+    }
+
+    /**
+     * Encodes the given message and decodes it again.
+     */
+    private static JSONObject roundTrip(JSONObject message) throws IOException {
+	byte[] encoded = BinaryCodec.encode(message);
+	Tests.check(encoded != null, "the message can't be encoded: "
+		+ message);
+	Tests.equal(BinaryCodec.MAGIC, encoded[0] & 0xFF, "first byte");
+	return BinaryCodec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Fails unless decoding the given bytes fails.
+     */
+    private static void rejects(byte[] bytes, String what) {
+	try {
+	    BinaryCodec.decode(ByteBuffer.wrap(bytes));
+	    throw new AssertionError(what + " is decoded");
+	} catch (IOException e) {
+	    // Expected.
+	}
+    }
+
+    private static JSONObject request(long identifier, String module,
+	    String method) {
+	JSONObject request = new JSONObject();
+	request.put(Communication.TYPE, Communication.REQUEST);
+	request.put(Communication.Request.IDENTIFIER, identifier);
+	request.put(Communication.Request.MODULE, module);
+	request.put(Communication.Request.METHOD, method);
+	return request;
+    }
+
+    private static JSONObject response(long identifier, boolean success,
+	    JSONObject value) {
+	JSONObject response = new JSONObject();
+	response.put(Communication.TYPE, Communication.RESPONSE);
+	response.put(Communication.Response.IDENTIFIER, identifier);
+	response.put(Communication.Response.SUCCESS, success);
+	if (value != null)
+	    response.put(Communication.Response.VALUE, value);
+	return response;
+    }
+
+    /**
+     * Creates a value as {@code CommunicationManager} does.
+     */
+    private static JSONObject value(Object value) {
+	return new JSONObject().put(Communication.Value.TYPE,
+		Communication.convertClassToChar(value.getClass())).put(
+		Communication.Value.VALUE, value);
+    }
+}
@@ -0,0 +1,160 @@
+package com.yarmis.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Tests the framing of messages: the header, the size of a frame, and
+ * reading frames from streams and buffers.
+ */
+public class FrameTest {
+
+    private static final byte[] KEY = "a shared key".getBytes(
+	    StandardCharsets.UTF_8);
+
+    public static void main(String[] args) {
+	Tests.run(FrameTest.class);
+    }
+
+    static void testUnsignedRoundTrip() throws Exception {
+	byte[] payload = FrameTest.bytes(100);
+	byte[] frame = Message.frame(ByteBuffer.wrap(payload)).toByteArray();
+
+	Message message = new Message.MessageReader(null)
+		.parse(new ByteArrayInputStream(frame));
+	Tests.equal(payload, message.getPayload(), "payload");
+	Tests.check(!message.isSigned(), "an unsigned frame reads as signed");
+	Tests.check(!message.isChunk(), "a frame reads as a chunk");
+    }
+
+    static void testFrameSize() {
+	for (int length : new int[] { 0, 1, 1000, 70000 }) {
+	    Message message = Message.frame(ByteBuffer.wrap(new byte[length]));
+	    byte[] frame = message.toByteArray();
+	    Tests.equal(frame.length, message.size(), "size of " + length);
+	    Tests.equal(frame.length, Message.frameSize(ByteBuffer.wrap(frame)),
+		    "frame size of " + length);
+	}
+	Tests.equal(-1, Message.frameSize(ByteBuffer.allocate(3)),
+		"frame size of an incomplete header");
+    }
+
+    static void testReadFrameGrowsBuffer() throws Exception {
+	ByteArrayOutputStream stream = new ByteArrayOutputStream();
+	stream.write(Message.frame(ByteBuffer.wrap(FrameTest.bytes(10)))
+		.toByteArray());
+	stream.write(Message.frame(ByteBuffer.wrap(FrameTest.bytes(5000)))
+		.toByteArray());
+	DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+		stream.toByteArray()));
+
+	ByteBuffer buffer = ByteBuffer.allocate(64);
+	ByteBuffer first = Message.readFrame(input, buffer);
+	Tests.equal(14, first.remaining(), "size of the first frame");
+	Tests.check(first == buffer, "a frame that fits is read elsewhere");
+
+	ByteBuffer second = Message.readFrame(input, buffer);
+	Tests.equal(5004, second.remaining(), "size of the second frame");
+	Message message = new Message.MessageReader(null).readFrom(second);
+	Tests.equal(FrameTest.bytes(5000), message.getPayload(),
+		"payload of the second frame");
+
+	Tests.check(Message.readFrame(input, buffer) == null,
+		"a frame is read after the end of the stream");
+    }
+
+    static void testReadFrameFailsInsideFrame() throws Exception {
+	byte[] frame = Message.frame(ByteBuffer.wrap(FrameTest.bytes(100)))
+		.toByteArray();
+	DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+		frame, 0, frame.length - 1));
+	try {
+	    Message.readFrame(input, ByteBuffer.allocate(256));
+	    throw new AssertionError("a truncated frame was read");
+	} catch (EOFException e) {
+	    // Expected.
+	}
+    }
+
+    static void testReadFromMovesPastFrame() throws Exception {
+	byte[] one = Message.frame(ByteBuffer.wrap(FrameTest.bytes(3)))
+		.toByteArray();
+	byte[] two = Message.frame(ByteBuffer.wrap(FrameTest.bytes(7)))
+		.toByteArray();
+	ByteBuffer buffer = ByteBuffer.allocate(one.length + two.length);
+	buffer.put(one).put(two).flip();
+
+	Message.MessageReader reader = new Message.MessageReader(null);
+	Tests.equal(3, reader.readFrom(buffer).getPayload().length,
+		"length of the first payload");
+	Tests.equal(one.length, buffer.position(), "position after one frame");
+	Tests.equal(7, reader.readFrom(buffer).getPayload().length,
+		"length of the second payload");
+	Tests.check(!buffer.hasRemaining(), "bytes are left after two frames");
+    }
+
+    static void testReadFromRejectsIncompleteFrame() {
+	byte[] frame = Message.frame(ByteBuffer.wrap(FrameTest.bytes(20)))
+		.toByteArray();
+	ByteBuffer buffer = ByteBuffer.wrap(frame, 0, frame.length - 1);
+	try {
+	    new Message.MessageReader(null).readFrom(buffer);
+	    throw new AssertionError("an incomplete frame was read");
+	} catch (ParseException e) {
+	    Tests.equal(0, buffer.position(), "position after a failed read");
+	}
+    }
+
+    static void testChunk() throws Exception {
+	ByteBuffer payload = ByteBuffer.allocate(Message.CHUNK_HEADER_SIZE + 5);
+	payload.putInt(42).put(FrameTest.bytes(5)).flip();
+	byte[] frame = Message.chunk(payload, true).toByteArray();
+
+	Message message = new Message.MessageReader(null).readFrom(ByteBuffer
+		.wrap(frame));
+	Tests.check(message.isChunk(), "a chunk reads as a frame");
+	Tests.check(message.isLastChunk(), "the last chunk reads as another");
+	Tests.equal(42, message.getStreamId(), "stream");
+	ByteBuffer data = message.getChunkData();
+	byte[] read = new byte[data.remaining()];
+	data.get(read);
+	Tests.equal(FrameTest.bytes(5), read, "data of the chunk");
+    }
+
+    static void testSignedFrame() throws Exception {
+	byte[] nonce = ByteBuffer.allocate(8).putLong(7).array();
+	byte[] frame = Message.frame(ByteBuffer.wrap(FrameTest.bytes(30)),
+		nonce, FrameTest.KEY).toByteArray();
+
+	Message message = new Message.MessageReader(null).readFrom(ByteBuffer
+		.wrap(frame));
+	Tests.check(message.isSigned(), "a signed frame reads as unsigned");
+	Tests.equal(7L, message.getNonce(), "nonce");
+	Tests.check(message.isSignatureValid(FrameTest.KEY),
+		"the signature is not valid");
+	Tests.check(!message.isSignatureValid(new byte[] { 1, 2, 3 }),
+		"the signature is valid for another key");
+
+	// Flip a bit of the payload.
+	frame[10] ^= 1;
+	message = new Message.MessageReader(null).readFrom(ByteBuffer
+		.wrap(frame));
+	Tests.check(!message.isSignatureValid(FrameTest.KEY),
+		"the signature of a changed frame is valid");
+    }
+
+    /**
+     * Gives the given amount of bytes that count up from 0.
+     */
+    private static byte[] bytes(int amount) {
+	byte[] bytes = new byte[amount];
+	for (int i = 0; i < amount; ++i)
+	    bytes[i] = (byte) i;
+	return bytes;
+    }
+}
@@ -0,0 +1,117 @@
+package com.yarmis.core;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the window that rejects replayed and stale nonces.
+ */
+public class ReplayWindowTest {
+
+    public static void main(String[] args) {
+	Tests.run(ReplayWindowTest.class);
+    }
+
+    static void testInOrder() {
+	ReplayWindow window = new ReplayWindow();
+	for (long nonce = 0; nonce < 1000; ++nonce)
+	    Tests.check(window.accept(nonce), "nonce " + nonce
+		    + " is rejected");
+    }
+
+    static void testDuplicate() {
+	ReplayWindow window = new ReplayWindow();
+	Tests.check(window.accept(5), "a fresh nonce is rejected");
+	Tests.check(!window.isFresh(5), "an accepted nonce is fresh");
+	Tests.check(!window.accept(5), "an accepted nonce is accepted again");
+    }
+
+    static void testOutOfOrder() {
+	ReplayWindow window = new ReplayWindow();
+	Tests.check(window.accept(10), "nonce 10 is rejected");
+	Tests.check(window.accept(8), "a late nonce is rejected");
+	Tests.check(window.accept(9), "a late nonce is rejected");
+	Tests.check(!window.accept(8), "a late nonce is accepted twice");
+	Tests.check(window.accept(11), "nonce 11 is rejected");
+	Tests.check(!window.accept(10), "nonce 10 is accepted twice");
+    }
+
+    static void testEdgeOfWindow() {
+	ReplayWindow window = new ReplayWindow();
+	long highest = 1000;
+	Tests.check(window.accept(highest), "the highest nonce is rejected");
+	Tests.check(window.isFresh(highest - ReplayWindow.SIZE + 1),
+		"the oldest nonce in the window is not fresh");
+	Tests.check(!window.isFresh(highest - ReplayWindow.SIZE),
+		"a nonce below the window is fresh");
+    }
+
+    static void testJumpForgetsWindow() {
+	ReplayWindow window = new ReplayWindow();
+	Tests.check(window.accept(1), "nonce 1 is rejected");
+	Tests.check(window.accept(1 + 10 * ReplayWindow.SIZE),
+		"a nonce far ahead is rejected");
+	Tests.check(!window.accept(1), "nonce 1 is accepted twice");
+	Tests.check(window.accept(10 * ReplayWindow.SIZE),
+		"a nonce just below the highest is rejected");
+    }
+
+    static void testIsFreshDoesntAccept() {
+	ReplayWindow window = new ReplayWindow();
+	Tests.check(window.isFresh(3), "a fresh nonce isn't fresh");
+	Tests.check(window.isFresh(3), "checking a nonce accepted it");
+	Tests.check(window.accept(3), "checking a nonce accepted it");
+    }
+
+    static void testNegative() {
+	ReplayWindow window = new ReplayWindow();
+	Tests.check(!window.isFresh(-1), "a negative nonce is fresh");
+	Tests.check(!window.accept(Long.MIN_VALUE),
+		"a negative nonce is accepted");
+    }
+
+    /**
+     * Compares the window to a set of all accepted nonces, for nonces that
+     * mostly increase but arrive somewhat out of order, and are sometimes
+     * sent twice.
+     */
+    static void testAgainstModel() {
+	Random random = new Random(42);
+	ReplayWindow window = new ReplayWindow();
+	Set<Long> accepted = new HashSet<Long>();
+	long highest = -1;
+
+	for (int i = 0; i < 100000; ++i) {
+	    long nonce = Math.max(0, i + random.nextInt(100) - 70);
+	    boolean expected = !accepted.contains(nonce)
+		    && nonce > highest - ReplayWindow.SIZE;
+	    Tests.equal(expected, window.accept(nonce), "accepting " + nonce
+		    + " at step " + i);
+	    if (expected) {
+		accepted.add(nonce);
+		highest = Math.max(highest, nonce);
+	    }
+	}
+    }
+
+    static void testReaderSkipsStaleFrames() throws Exception {
+	ReplayWindow window = new ReplayWindow();
+	byte[] key = { 1, 2, 3 };
+	byte[] nonce = ByteBuffer.allocate(8).putLong(7).array();
+	byte[] frame = Message.frame(ByteBuffer.wrap(new byte[10]), nonce, key)
+		.toByteArray();
+	Message.MessageReader reader = new Message.MessageReader(null, window);
+
+	Tests.check(reader.readFrom(ByteBuffer.wrap(frame)) != null,
+		"a fresh frame is skipped");
+	Tests.check(reader.readFrom(ByteBuffer.wrap(frame)) != null,
+		"a frame is skipped before it was accepted");
+	window.accept(7);
+	ByteBuffer buffer = ByteBuffer.wrap(frame);
+	Tests.check(reader.readFrom(buffer) == null,
+		"a replayed frame is read");
+	Tests.check(!buffer.hasRemaining(), "a replayed frame is not skipped");
+    }
+}
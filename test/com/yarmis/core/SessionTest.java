@@ -0,0 +1,175 @@
+package com.yarmis.core;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+import com.yarmis.core.security.Crypto;
+
+/**
+ * Tests the handshake that sets up a session, and the frames that are signed
+ * with the keys of a session.
+ */
+public class SessionTest {
+
+    public static void main(String[] args) {
+	Tests.run(SessionTest.class);
+    }
+
+    static void testFramesAreAuthentic() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+
+	Tests.check(two.isAuthentic(SessionTest.read(two, one.frame(SessionTest
+		.payload()))), "a frame of one side is rejected by the other");
+	Tests.check(one.isAuthentic(SessionTest.read(one, two.frame(SessionTest
+		.payload()))), "a frame of the other side is rejected");
+    }
+
+    static void testReflectedFrameIsRejected() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+
+	Message frame = one.frame(SessionTest.payload());
+	Tests.check(!one.isAuthentic(SessionTest.read(one, frame)),
+		"a frame is accepted by the side that sent it");
+    }
+
+    static void testReplayedFrameIsRejected() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+
+	byte[] frame = one.frame(SessionTest.payload()).toByteArray();
+	Tests.check(two.isAuthentic(two.newReader().readFrom(
+		ByteBuffer.wrap(frame))), "a fresh frame is rejected");
+	Message replayed = two.newReader().readFrom(ByteBuffer.wrap(frame));
+	Tests.check(replayed == null || !two.isAuthentic(replayed),
+		"a replayed frame is accepted");
+    }
+
+    static void testChangedFrameIsRejected() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+
+	byte[] frame = one.frame(SessionTest.payload()).toByteArray();
+	frame[5] ^= 1;
+	Tests.check(!two.isAuthentic(two.newReader().readFrom(
+		ByteBuffer.wrap(frame))), "a changed frame is accepted");
+    }
+
+    static void testSessionsDontShareKeys() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+	Session three = new Session();
+	Session four = new Session();
+	SessionTest.shake(three, four);
+
+	Tests.check(!four.isAuthentic(SessionTest.read(four, one
+		.frame(SessionTest.payload()))),
+		"a frame of another session is accepted");
+    }
+
+    static void testIdentity() throws Exception {
+	KeyPair identity = Crypto.generateKeyPair();
+	Session one = new Session();
+	Session two = new Session();
+
+	JSONObject hello;
+	SecurityManager.setIdentity(identity);
+	try {
+	    hello = one.hello();
+	} finally {
+	    SecurityManager.setIdentity(null);
+	}
+	two.complete(hello);
+	one.complete(two.hello());
+
+	Tests.equal(Crypto.fingerprint(identity.getPublic().getEncoded()),
+		two.getFingerprint(), "fingerprint of the identity");
+	Tests.equal(null, one.getFingerprint(),
+		"fingerprint of an anonymous side");
+    }
+
+    static void testForgedIdentityFails() throws Exception {
+	KeyPair identity = Crypto.generateKeyPair();
+	KeyPair other = Crypto.generateKeyPair();
+	Session one = new Session();
+	Session two = new Session();
+
+	JSONObject hello;
+	SecurityManager.setIdentity(identity);
+	try {
+	    hello = one.hello();
+	} finally {
+	    SecurityManager.setIdentity(null);
+	}
+	// Claim another identity, with the proof of the first.
+	hello.put("identity", Base64.getEncoder().encodeToString(
+		other.getPublic().getEncoded()));
+
+	try {
+	    two.complete(hello);
+	    throw new AssertionError("a forged identity is accepted");
+	} catch (GeneralSecurityException e) {
+	    Tests.check(!two.isEstablished(),
+		    "the session is established after a forged handshake");
+	}
+    }
+
+    static void testMalformedHandshakeFails() {
+	Session session = new Session();
+	JSONObject hello = new JSONObject();
+	hello.put(Communication.TYPE, Session.HANDSHAKE);
+	hello.put("key", "not a key");
+	try {
+	    session.complete(hello);
+	    throw new AssertionError("a malformed handshake is accepted");
+	} catch (GeneralSecurityException e) {
+	    Tests.check(!session.isEstablished(),
+		    "the session is established after a malformed handshake");
+	}
+    }
+
+    static void testSecondHandshakeFails() throws Exception {
+	Session one = new Session();
+	Session two = new Session();
+	SessionTest.shake(one, two);
+	try {
+	    two.complete(new Session().hello());
+	    throw new AssertionError("a second handshake is accepted");
+	} catch (GeneralSecurityException e) {
+	    // Expected.
+	}
+    }
+
+    /**
+     * Completes both sessions with the handshake of the other.
+     */
+    private static void shake(Session one, Session two)
+	    throws GeneralSecurityException {
+	JSONObject hello = one.hello();
+	one.complete(two.hello());
+	two.complete(hello);
+    }
+
+    /**
+     * Writes the given frame and reads it back as the given session would.
+     */
+    private static Message read(Session session, Message frame)
+	    throws Exception {
+	return session.newReader().readFrom(
+		ByteBuffer.wrap(frame.toByteArray()));
+    }
+
+    private static ByteBuffer payload() {
+	return ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+    }
+}
@@ -0,0 +1,93 @@
+package com.yarmis.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Runs the tests of a test class, and checks their outcomes. A test is a
+ * static method without parameters whose name starts with {@code test}; it
+ * fails by throwing.
+ * </p>
+ * <p>
+ * Every test class has a {@code main} method that passes itself to
+ * {@code run}, which exits with status 1 if any of its tests failed.
+ * </p>
+ */
+final class Tests {
+
+    // No instances.
+    private Tests() {
+    }
+
+    /**
+     * Runs all tests of the given class, in the order of their names, and
+     * prints the outcome of each.
+     * 
+     * @param tests
+     *            The test class.
+     */
+    static void run(Class<?> tests) {
+	Method[] methods = tests.getDeclaredMethods();
+	String[] names = new String[methods.length];
+	for (int i = 0; i < methods.length; ++i)
+	    names[i] = methods[i].getName();
+	Arrays.sort(names);
+
+	int failed = 0;
+	for (String name : names) {
+	    if (!name.startsWith("test"))
+		continue;
+	    String test = tests.getSimpleName() + "." + name;
+	    try {
+		Method method = tests.getDeclaredMethod(name);
+		if (!Modifier.isStatic(method.getModifiers()))
+		    continue;
+		method.setAccessible(true);
+		method.invoke(null);
+		System.out.println("PASS " + test);
+	    } catch (InvocationTargetException e) {
+		++failed;
+		System.out.println("FAIL " + test);
+		e.getCause().printStackTrace(System.out);
+	    } catch (ReflectiveOperationException e) {
+		++failed;
+		e.printStackTrace(System.out);
+	    }
+	}
+
+	if (failed > 0) {
+	    System.out.println(failed + " failed.");
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Fails with the given message unless the condition holds.
+     */
+    static void check(boolean condition, String message) {
+	if (!condition)
+	    throw new AssertionError(message);
+    }
+
+    /**
+     * Fails unless the given values are equal.
+     */
+    static void equal(Object expected, Object actual, String what) {
+	if (expected == null ? actual != null : !expected.equals(actual))
+	    throw new AssertionError(what + ": expected " + expected
+		    + ", but was " + actual);
+    }
+
+    /**
+     * Fails unless the given arrays hold the same bytes.
+     */
+    static void equal(byte[] expected, byte[] actual, String what) {
+	if (!Arrays.equals(expected, actual))
+	    throw new AssertionError(what + ": expected "
+		    + Arrays.toString(expected) + ", but was "
+		    + Arrays.toString(actual));
+    }
+}